@@ -0,0 +1,279 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw.bench;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rkw.ConcurrentIniFile;
+import com.rkw.IniBatch;
+import com.rkw.IniFile;
+
+/**
+ * Thread contention benchmarks, ConcurrentIniFile against an IniFile behind one global lock.
+ *
+ * javac -d /tmp/inibench com/rkw/*.java bench/com/rkw/bench/*.java
+ * java -cp /tmp/inibench com.rkw.bench.ContentionBenchmark 1 8 64
+ *
+ * Each argument is a thread count, -size= sets the size of the synthetic .ti file and -keys=
+ * the number of keys in the large section.
+ * Four workloads are run for each thread count, reads only, reads with 1% writes, reads
+ * while one more thread calls writeFile() over and over, and writes to one large section,
+ * one key at a time and in batches of 100.  The total reads and writes per second of all
+ * threads are printed, a batch counts as one op.
+ */
+public class ContentionBenchmark {
+	private static long warmupNanos = 1000L * 1000L * 1000L;
+	private static long measureNanos = 2000L * 1000L * 1000L;
+	private static long size = 1024L * 1024L;
+	private static int sectionKeys = 10000;
+
+	public static void main(String[] args) throws Exception {
+		java.util.List<Integer> threads = new java.util.ArrayList<Integer>();
+
+		for (String a : args) {
+			if (a.startsWith("-warmup="))
+				warmupNanos = Long.parseLong(a.substring(8)) * 1000000L;
+			else if (a.startsWith("-measure="))
+				measureNanos = Long.parseLong(a.substring(9)) * 1000000L;
+			else if (a.startsWith("-size="))
+				size = Long.parseLong(a.substring(6)) * 1024L;
+			else if (a.startsWith("-keys="))
+				sectionKeys = Integer.parseInt(a.substring(6));
+			else
+				threads.add(Integer.parseInt(a));
+		}
+
+		if (threads.size() == 0) {
+			threads.add(1);
+			threads.add(8);
+			threads.add(64);
+		}
+
+		File ti = File.createTempFile("inibench", ".ti");
+		File props = File.createTempFile("inibench", ".properties");
+		File out = File.createTempFile("inibench", ".out");
+		ti.deleteOnExit();
+		props.deleteOnExit();
+		out.deleteOnExit();
+
+		final int secCount = IniFileBenchmark.SyntheticIni.write(ti, props, size);
+		System.out.println("# " + ti.length() + " bytes, " + secCount + " sections");
+
+		final String[] secs = new String[1024];
+		for (int i = 0; i < secs.length; i++)
+			secs[i] = IniFileBenchmark.SyntheticIni.sectionName((int) (((i * 2654435761L) & 0x7fffffffL) % secCount));
+
+		for (int n : threads) {
+			System.out.println();
+			System.out.println("# " + n + " threads");
+
+			final IniFile locked = new IniFile(ti.getPath());
+			locked.setFileName(out.getPath());
+			final ConcurrentIniFile concurrent = new ConcurrentIniFile(ti.getPath());
+			concurrent.setFileName(out.getPath());
+
+			for (int writePct : new int[] { 0, 1 }) {
+				final int every = (writePct == 0) ? 0 : 100 / writePct;
+				String name = (writePct == 0) ? "read" : "read+" + writePct + "% write";
+
+				run("IniFile+lock " + name, n, false, new Worker() {
+					public void op(int i) {
+						String sec = secs[i & (secs.length - 1)];
+						synchronized (locked) {
+							if (every != 0 && i % every == 0)
+								locked.addValuePair(sec, "port", Integer.toString(i & 0xffff));
+							else
+								IniFileBenchmark.sink = locked.getSectionValueAsInt(sec, "port");
+						}
+					}
+
+					public void admin() {
+					}
+				});
+
+				run("ConcurrentIniFile " + name, n, false, new Worker() {
+					public void op(int i) {
+						String sec = secs[i & (secs.length - 1)];
+						if (every != 0 && i % every == 0)
+							concurrent.addValuePair(sec, "port", Integer.toString(i & 0xffff));
+						else
+							IniFileBenchmark.sink = concurrent.getSectionValueAsInt(sec, "port");
+					}
+
+					public void admin() {
+					}
+				});
+			}
+
+			run("IniFile+lock read+writeFile", n, true, new Worker() {
+				public void op(int i) {
+					synchronized (locked) {
+						IniFileBenchmark.sink = locked.getSectionValueAsInt(secs[i & (secs.length - 1)], "port");
+					}
+				}
+
+				public void admin() {
+					synchronized (locked) {
+						locked.writeFile(true);
+					}
+				}
+			});
+
+			run("ConcurrentIniFile read+writeFile", n, true, new Worker() {
+				public void op(int i) {
+					IniFileBenchmark.sink = concurrent.getSectionValueAsInt(secs[i & (secs.length - 1)], "port");
+				}
+
+				public void admin() {
+					concurrent.writeFile(true);
+				}
+			});
+
+			// a large section, a single write changes one value in place, a batch copies the section once.
+			final String large = "large";
+			final int keys = sectionKeys;
+			IniBatch.Work fill = new IniBatch.Work() {
+				public void apply(IniBatch b) {
+					b.addSection(large);
+					for (int k = 0; k < keys; k++)
+						b.put(large, "key" + k, "value" + k);
+				}
+			};
+			locked.batch(fill);
+			concurrent.batch(fill);
+
+			run("IniFile+lock large section write", n, false, new Worker() {
+				public void op(int i) {
+					synchronized (locked) {
+						locked.addValuePair(large, "key" + (i % keys), Integer.toString(i));
+					}
+				}
+
+				public void admin() {
+				}
+			});
+
+			run("ConcurrentIniFile large section write", n, false, new Worker() {
+				public void op(int i) {
+					concurrent.addValuePair(large, "key" + (i % keys), Integer.toString(i));
+				}
+
+				public void admin() {
+				}
+			});
+
+			run("IniFile+lock large section add+remove", n, false, new Worker() {
+				public void op(int i) {
+					synchronized (locked) {
+						locked.addValuePair(large, "new" + (i & 1023), "x");
+						locked.removeValuePair(large, "new" + ((i + 512) & 1023));
+					}
+				}
+
+				public void admin() {
+				}
+			});
+
+			run("ConcurrentIniFile large section add+remove", n, false, new Worker() {
+				public void op(int i) {
+					concurrent.addValuePair(large, "new" + (i & 1023), "x");
+					concurrent.removeValuePair(large, "new" + ((i + 512) & 1023));
+				}
+
+				public void admin() {
+				}
+			});
+
+			run("ConcurrentIniFile large section batch(100)", n, false, new Worker() {
+				public void op(final int i) {
+					concurrent.batch(new IniBatch.Work() {
+						public void apply(IniBatch b) {
+							for (int k = 0; k < 100; k++)
+								b.put(large, "key" + ((i * 100 + k) % keys), Integer.toString(i));
+						}
+					});
+				}
+
+				public void admin() {
+				}
+			});
+		}
+
+		ti.delete();
+		props.delete();
+		out.delete();
+	}
+
+	public interface Worker {
+		// one read or write by a worker thread.
+		void op(int i);
+
+		// one pass of the admin thread.
+		void admin();
+	}
+
+	private static volatile boolean measuring;
+	private static volatile boolean stop;
+
+	private static void run(String name, int threads, final boolean withAdmin, final Worker w) throws Exception {
+		final AtomicLong total = new AtomicLong();
+		final AtomicLong adminOps = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads + (withAdmin ? 1 : 0));
+		measuring = false;
+		stop = false;
+
+		for (int t = 0; t < threads; t++) {
+			final int seed = t * 7919;
+			Thread th = new Thread(new Runnable() {
+				public void run() {
+					long ops = 0;
+					int i = seed;
+					while (measuring == false && stop == false)
+						w.op(i++);
+					while (stop == false) {
+						w.op(i++);
+						ops++;
+					}
+					total.addAndGet(ops);
+					done.countDown();
+				}
+			});
+			th.setDaemon(true);
+			th.start();
+		}
+
+		if (withAdmin) {
+			Thread th = new Thread(new Runnable() {
+				public void run() {
+					long ops = 0;
+					while (stop == false) {
+						w.admin();
+						if (measuring)
+							ops++;
+					}
+					adminOps.addAndGet(ops);
+					done.countDown();
+				}
+			});
+			th.setDaemon(true);
+			th.start();
+		}
+
+		Thread.sleep(warmupNanos / 1000000L);
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep(measureNanos / 1000000L);
+		stop = true;
+		long elapsed = System.nanoTime() - start;
+		done.await();
+
+		double opsSec = total.get() * 1e9 / elapsed;
+		if (withAdmin)
+			System.out.println(String.format("%-40s %14.0f ops/s %8.1f writeFile/s", name, opsSec, adminOps.get() * 1e9 / elapsed));
+		else
+			System.out.println(String.format("%-40s %14.0f ops/s", name, opsSec));
+	}
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.rkw.Durability;
+import com.rkw.IniBatch;
+import com.rkw.IniFile;
+import com.rkw.IniSnapshot;
+import com.rkw.LayeredIniFile;
+import com.rkw.LoadMode;
+
+/**
+ * Micro benchmarks for the IniFile class.
+ *
+ * The benchmarks have no outside dependencies, they are compiled and run with the JDK alone:
+ *
+ * javac -d /tmp/inibench com/rkw/*.java bench/com/rkw/bench/*.java
+ * java -cp /tmp/inibench com.rkw.bench.IniFileBenchmark 1K 1M 64M 500M
+ *
+ * Each argument is the size of a synthetic .ti file to generate, a K, M or G suffix is allowed.
+ * Every case is run for a warmup period and then for a measuring period, the average time per
+ * operation is printed.  java.util.Properties is run over the same data as a baseline.
+ */
+public class IniFileBenchmark {
+	// Keep results alive so the JIT can not remove the work.
+	public static volatile Object sink;
+
+	private static long warmupNanos = 1000L * 1000L * 1000L;
+	private static long measureNanos = 2000L * 1000L * 1000L;
+
+	// inputString() copies the whole file into one String, it is only timed up to this size.
+	private static long quadraticLimit = 512L * 1024L;
+
+	public static void main(String[] args) throws Exception {
+		List<Long> sizes = new ArrayList<Long>();
+
+		for (String a : args) {
+			if (a.startsWith("-warmup="))
+				warmupNanos = Long.parseLong(a.substring(8)) * 1000000L;
+			else if (a.startsWith("-measure="))
+				measureNanos = Long.parseLong(a.substring(9)) * 1000000L;
+			else
+				sizes.add(parseSize(a));
+		}
+
+		if (sizes.size() == 0) {
+			sizes.add(1024L);
+			sizes.add(1024L * 1024L);
+			sizes.add(64L * 1024L * 1024L);
+		}
+
+		for (long size : sizes) {
+			File ti = File.createTempFile("inibench", ".ti");
+			File props = File.createTempFile("inibench", ".properties");
+			File out = File.createTempFile("inibench", ".out");
+			ti.deleteOnExit();
+			props.deleteOnExit();
+			out.deleteOnExit();
+
+			int secCount = SyntheticIni.write(ti, props, size);
+			System.out.println();
+			System.out.println("# " + ti.length() + " bytes, " + secCount + " sections");
+
+			runFile(ti, props, out, secCount);
+
+			ti.delete();
+			props.delete();
+			out.delete();
+		}
+	}
+
+	private static void runFile(final File ti, final File props, final File out, final int secCount) throws Exception {
+		final String path = ti.getPath();
+		final boolean small = ti.length() <= quadraticLimit;
+
+		run("open", new Op() {
+			public Object run(int i) {
+				return new IniFile(path);
+			}
+		});
+
+		run("open(MAPPED)", new Op() {
+			public Object run(int i) {
+				return new IniFile(ti.toPath(), LoadMode.MAPPED);
+			}
+		});
+
+		run("open(PARALLEL)", new Op() {
+			public Object run(int i) {
+				return new IniFile(ti.toPath(), LoadMode.PARALLEL);
+			}
+		});
+
+		run("open(LAZY)+1 section", new Op() {
+			public Object run(int i) {
+				IniFile ini = new IniFile(ti.toPath(), LoadMode.LAZY);
+				return ini.getSectionValueAsString(SyntheticIni.sectionName(i % secCount), "host");
+			}
+		});
+
+		heap("heap(no SymbolTable)", ti, false, false);
+		heap("heap(LinkedHashMap)", ti, false, true);
+		heap("heap(CompactValueMap)", ti, true, true);
+
+		final Path tib = ti.toPath().resolveSibling(ti.getName() + "b");
+		run("compile", new Op() {
+			public Object run(int i) {
+				return IniFile.compile(ti.toPath(), tib);
+			}
+		});
+
+		run("openCompiled+1 key", new Op() {
+			public Object run(int i) {
+				IniFile ini = IniFile.openCompiled(tib);
+				return ini.getSectionValueAsString(SyntheticIni.sectionName(i % secCount), "host");
+			}
+		});
+		Files.deleteIfExists(tib);
+
+		final IniFile mapped = new IniFile(ti.toPath(), LoadMode.MAPPED);
+		run("reread(MAPPED)", new Op() {
+			public Object run(int i) {
+				mapped.reread();
+				return mapped;
+			}
+		});
+
+		mapped.open(ti.toPath(), LoadMode.MAPPED);
+		run("reloadIncremental(unchanged)", new Op() {
+			public Object run(int i) {
+				return mapped.reloadIncremental();
+			}
+		});
+
+		if (small) {
+			final String data = SyntheticIni.read(ti);
+			run("inputString", new Op() {
+				public Object run(int i) {
+					IniFile ini = new IniFile(null);
+					ini.inputString(null, data);
+					return ini;
+				}
+			});
+		} else {
+			skip("inputString");
+		}
+
+		run("Properties.load", new Op() {
+			public Object run(int i) throws IOException {
+				Properties p = new Properties();
+				Reader rd = new FileReader(props);
+				p.load(rd);
+				rd.close();
+				return p;
+			}
+		});
+
+		final IniFile ini = new IniFile(path);
+		final Properties p = new Properties();
+		Reader rd = new FileReader(props);
+		p.load(rd);
+		rd.close();
+
+		final String[] secs = new String[1024];
+		final String[] propKeys = new String[secs.length];
+		for (int i = 0; i < secs.length; i++) {
+			int s = (int) (((i * 2654435761L) & 0x7fffffffL) % secCount);
+			secs[i] = SyntheticIni.sectionName(s);
+			propKeys[i] = secs[i] + ".port";
+		}
+		final int mask = secs.length - 1;
+
+		run("getSectionValueAsString", new Op() {
+			public Object run(int i) {
+				return ini.getSectionValueAsString(secs[i & mask], "host");
+			}
+		});
+
+		run("Properties.getProperty", new Op() {
+			public Object run(int i) {
+				return p.getProperty(propKeys[i & mask]);
+			}
+		});
+
+		run("getSectionValueAsInt", new Op() {
+			public Object run(int i) {
+				return ini.getSectionValueAsInt(secs[i & mask], "port");
+			}
+		});
+
+		run("Integer.parseInt(Properties)", new Op() {
+			public Object run(int i) {
+				return Integer.parseInt(p.getProperty(propKeys[i & mask]));
+			}
+		});
+
+		run("getSectionValueAsDouble", new Op() {
+			public Object run(int i) {
+				return ini.getSectionValueAsDouble(secs[i & mask], "ratio");
+			}
+		});
+
+		run("getSectionValueAsBoolean", new Op() {
+			public Object run(int i) {
+				return ini.getSectionValueAsBoolean(secs[i & mask], "enabled");
+			}
+		});
+
+		run("getSectionValueAsMillis", new Op() {
+			public Object run(int i) {
+				return ini.getSectionValueAsMillis(secs[i & mask], "timeout", -1);
+			}
+		});
+
+		run("getSectionValueAsInt(malformed)", new Op() {
+			public Object run(int i) {
+				return ini.getSectionValueAsInt(secs[i & mask], "host", -1);
+			}
+		});
+
+		run("getString(expand)", new Op() {
+			public Object run(int i) {
+				return ini.getString(secs[i & mask], "url", true);
+			}
+		});
+
+		// the file under two small override layers, the key is found in the bottom layer.
+		IniFile env = new IniFile((String) null);
+		env.inputString(null, "[" + secs[0] + "]\nhost = env\n");
+		IniFile host = new IniFile((String) null);
+		host.inputString(null, "[" + secs[1] + "]\nhost = host\n");
+		final LayeredIniFile layered = new LayeredIniFile(ini, env, host);
+		run("LayeredIniFile getSectionValueAsInt", new Op() {
+			public Object run(int i) {
+				return layered.getSectionValueAsInt(secs[i & mask], "port");
+			}
+		});
+		layered.close();
+
+		final IniSnapshot snap = ini.freeze();
+		run("snapshot getSectionValueAsString", new Op() {
+			public Object run(int i) {
+				return snap.getSectionValueAsString(secs[i & mask], "host");
+			}
+		});
+
+		run("snapshot getSectionValueAsInt", new Op() {
+			public Object run(int i) {
+				return snap.getSectionValueAsInt(secs[i & mask], "port");
+			}
+		});
+
+		run("snapshot getString(expand)", new Op() {
+			public Object run(int i) {
+				return snap.getString(secs[i & mask], "url", true);
+			}
+		});
+
+		run("moveUpValuePair", new Op() {
+			public Object run(int i) {
+				// down then back up again, so the key never reaches the edge of the section.
+				if ((i & 1) == 0)
+					ini.moveDownValuePair(secs[(i >> 1) & mask], "host");
+				else
+					ini.moveUpValuePair(secs[(i >> 1) & mask], "host");
+				return ini;
+			}
+		});
+
+		ini.setFileName(out.getPath());
+		run("writeFile", new Op() {
+			public Object run(int i) {
+				return ini.writeFile(true);
+			}
+		});
+
+		for (Durability d : Durability.values()) {
+			ini.setAtomicWrite(d);
+			run("writeFile(atomic " + d + ")", new Op() {
+				public Object run(int i) {
+					return ini.writeFile(true);
+				}
+			});
+		}
+		ini.setAtomicWrite(null);
+
+		for (Durability d : Durability.values()) {
+			ini.enableJournal(d);
+			run("addValuePair+save(journal " + d + ")", new Op() {
+				public Object run(int i) {
+					ini.addValuePair(secs[i & mask], "port", Integer.toString(i & 0xffff));
+					return ini.writeFile(true);
+				}
+			});
+			ini.disableJournal();
+		}
+
+		// 1000 puts per op, saved to the journal after each put or once for the batch.
+		ini.enableJournal(Durability.NONE);
+		run("1000 x addValuePair(journal NONE)", new Op() {
+			public Object run(int i) {
+				for (int n = 0; n < 1000; n++)
+					ini.addValuePair(secs[(i + n) & mask], "port", Integer.toString(n));
+				return ini;
+			}
+		});
+
+		run("batch 1000 puts(journal NONE)", new Op() {
+			public Object run(final int i) {
+				return ini.batch(new IniBatch.Work() {
+					public void apply(IniBatch b) {
+						for (int n = 0; n < 1000; n++)
+							b.put(secs[(i + n) & mask], "port", Integer.toString(n));
+					}
+				});
+			}
+		});
+		ini.disableJournal();
+
+		run("stringFile", new Op() {
+			public Object run(int i) {
+				return ini.stringFile(null);
+			}
+		});
+
+		run("writeTo(channel)", new Op() {
+			public Object run(int i) throws IOException {
+				ini.writeTo(NullChannel.INSTANCE);
+				return ini;
+			}
+		});
+	}
+
+	// Counts and drops the bytes, so only the serializer is timed.
+	private static final class NullChannel implements WritableByteChannel {
+		static final NullChannel INSTANCE = new NullChannel();
+
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+	public interface Op {
+		Object run(int i) throws Exception;
+	}
+
+	// Prints the heap held by the sections of the file, read with or without compact maps and a symbol table.
+	private static void heap(String name, File ti, boolean compact, boolean symbols) {
+		sink = null;
+		long before = usedHeap();
+		IniFile ini = new IniFile((String) null);
+		ini.setCompactMaps(compact);
+		if (symbols == false)
+			ini.setSymbolTable(null);
+		ini.open(ti.toPath(), LoadMode.MAPPED);
+		long after = usedHeap();
+		sink = ini;
+		System.out.println(String.format("%-32s %14d bytes %s", name, after - before, symbols ? ini.getSymbolTable() : ""));
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static void skip(String name) {
+		System.out.println(String.format("%-32s %s", name, "skipped, file too large"));
+	}
+
+	private static void run(String name, Op op) throws Exception {
+		// warmup
+		long end = System.nanoTime() + warmupNanos;
+		int i = 0;
+		do {
+			sink = op.run(i++);
+		} while (System.nanoTime() < end);
+
+		// measure, check the clock in batches so cheap operations are not dominated by nanoTime().
+		long ops = 0;
+		int batch = 1;
+		long start = System.nanoTime();
+		long now = start;
+		end = start + measureNanos;
+		while (now < end) {
+			for (int b = 0; b < batch; b++)
+				sink = op.run(i++);
+			ops += batch;
+			now = System.nanoTime();
+			if ((now - start) < measureNanos / 100 && batch < (1 << 20))
+				batch <<= 1;
+		}
+
+		double nsOp = (double) (now - start) / ops;
+		System.out.println(String.format("%-32s %14.1f ns/op %14.1f ops/s", name, nsOp, 1e9 / nsOp));
+	}
+
+	private static long parseSize(String s) {
+		s = s.trim().toUpperCase();
+		long mult = 1;
+		char c = s.charAt(s.length() - 1);
+		if (c == 'K')
+			mult = 1024L;
+		else if (c == 'M')
+			mult = 1024L * 1024L;
+		else if (c == 'G')
+			mult = 1024L * 1024L * 1024L;
+		if (mult != 1)
+			s = s.substring(0, s.length() - 1);
+		return Long.parseLong(s) * mult;
+	}
+
+	/**
+	 * Generates .ti files and the equivalent .properties file.
+	 */
+	public static class SyntheticIni {
+
+		public static String sectionName(int n) {
+			return "service" + n;
+		}
+
+		/**
+		 * Writes about size bytes of sections to ti and the same key/values to props.
+		 * @return the number of sections written.
+		 */
+		public static int write(File ti, File props, long size) throws IOException {
+			BufferedWriter t = new BufferedWriter(new FileWriter(ti), 1 << 16);
+			BufferedWriter p = new BufferedWriter(new FileWriter(props), 1 << 16);
+			StringBuilder sb = new StringBuilder();
+			long written = 0;
+			int n = 0;
+
+			t.write("# synthetic benchmark file\n");
+
+			while (written < size || n == 0) {
+				String sec = sectionName(n);
+				sb.setLength(0);
+				sb.append("\n[").append(sec).append("]\n");
+				sb.append("\thost = host").append(n).append(".example.com\n");
+				sb.append("\tport = ").append(1024 + (n % 60000)).append('\n');
+				sb.append("\ttimeout = ").append(n % 5000).append("ms\n");
+				sb.append("\tenabled = ").append((n & 1) == 0 ? "true" : "false").append('\n');
+				sb.append("\tratio = 0.").append(n % 1000).append('\n');
+				sb.append("\turl = http://(host):(port)/api ; expanded on read\n");
+				t.write(sb.toString());
+				written += sb.length();
+
+				p.write(sec + ".host=host" + n + ".example.com\n");
+				p.write(sec + ".port=" + (1024 + (n % 60000)) + "\n");
+				p.write(sec + ".timeout=" + (n % 5000) + "ms\n");
+				p.write(sec + ".enabled=" + ((n & 1) == 0 ? "true" : "false") + "\n");
+				p.write(sec + ".ratio=0." + (n % 1000) + "\n");
+				p.write(sec + ".url=http://(host):(port)/api\n");
+				n++;
+			}
+
+			// indexed sections are written after the plain sections, the same as writeFile() does.
+			for (int s = 0; s < n; s += 16) {
+				sb.setLength(0);
+				sb.append("\n{").append(sectionName(s)).append("-list}\n");
+				for (int i = 0; i < 8; i++)
+					sb.append('\t').append(i).append(" = item").append(i).append('\n');
+				t.write(sb.toString());
+			}
+
+			t.close();
+			p.close();
+
+			return n;
+		}
+
+		public static String read(File f) throws IOException {
+			StringBuilder sb = new StringBuilder((int) f.length());
+			Reader rd = new FileReader(f);
+			char[] buf = new char[8192];
+			int n;
+			while ((n = rd.read(buf)) != -1)
+				sb.append(buf, 0, n);
+			rd.close();
+			return sb.toString();
+		}
+	}
+}
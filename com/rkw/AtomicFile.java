@@ -0,0 +1,89 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces a file by writing a temp file in the same directory and renaming it over the file.
+ */
+final class AtomicFile {
+	private AtomicFile() {
+	}
+	
+	// writes the temp file.
+	interface Contents {
+		void write(FileChannel ch) throws IOException;
+	}
+	
+	static void write(Path file, Durability durability, final byte[] bytes) throws IOException {
+		write(file, durability, new Contents() {
+			public void write(FileChannel ch) throws IOException {
+				ByteBuffer b = ByteBuffer.wrap(bytes);
+				while (b.hasRemaining())
+					ch.write(b);
+			}
+		});
+	}
+	
+	static void write(Path file, Durability durability, Contents contents) throws IOException {
+		file = file.toAbsolutePath();
+		Path dir = file.getParent();
+		Path tmp = Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+		try {
+			copyPermissions(file, tmp);
+			
+			FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				contents.write(ch);
+				if (durability != Durability.NONE)
+					ch.force(durability == Durability.METADATA);
+			} finally {
+				ch.close();
+			}
+			
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			
+			if (durability == Durability.METADATA)
+				forceDirectory(dir);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	// the temp file is created readable by the owner only, give it the permissions of the file it replaces.
+	private static void copyPermissions(Path from, Path to) {
+		try {
+			if (Files.exists(from) == true)
+				Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+		} catch (UnsupportedOperationException | IOException e) {
+			// not a POSIX file system, keep the defaults.
+		}
+	}
+	
+	// makes the rename durable, not every platform can open a directory.
+	static void forceDirectory(Path dir) {
+		try {
+			FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ);
+			try {
+				ch.force(true);
+			} finally {
+				ch.close();
+			}
+		} catch (IOException e) {
+			// ex. Windows, the rename is as durable as the platform makes it.
+		}
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A Map of String keys to String values that keeps the order of insertion like a LinkedHashMap,
+ * in two arrays and an int hash table instead of one node per entry.
+ * The order is a doubly linked list of entry numbers in two int arrays, so a key is moved to
+ * the top, the bottom, up, down or after another key in constant time.
+ * A removed entry leaves a hole that is dropped when more than half of the entries are holes,
+ * the arrays shrink then too.  A null key is kept out of the hash table, like a LinkedHashMap
+ * one null key is allowed.
+ * The values map of ValuePairMap and the comment maps of IniFile, unless IniFile.setCompactMaps()
+ * is turned off.
+ */
+public final class CompactValueMap extends AbstractMap<String, String> {
+	private static final int MIN = 8;
+	
+	// keys and values by entry, a removed entry has a null key.
+	private String[] keys;
+	private String[] vals;
+	// previous and next entry in key order, -1 at the ends.
+	private int[] prev;
+	private int[] next;
+	private int head = -1;
+	private int tail = -1;
+	private int used = 0;
+	private int live = 0;
+	// open addressing table of entry + 1, 0 is an empty slot.  A slot of a removed entry is reused.
+	private int[] table;
+	// entry of the null key, -1 if there is none.
+	private int nullEntry = -1;
+	private int modCount = 0;
+	
+	public CompactValueMap() {
+		this(MIN);
+	}
+	
+	public CompactValueMap(int capacity) {
+		alloc(Math.max(MIN, capacity));
+	}
+	
+	public CompactValueMap(Map<String, String> m) {
+		this(m.size());
+		putAll(m);
+	}
+	
+	private void alloc(int capacity) {
+		keys = new String[capacity];
+		vals = new String[capacity];
+		prev = new int[capacity];
+		next = new int[capacity];
+		int size = 16;
+		while (size < capacity * 2)
+			size <<= 1;
+		table = new int[size];
+	}
+	
+	@Override
+	public int size() {
+		return live;
+	}
+	
+	@Override
+	public boolean containsKey(Object k) {
+		return find(k) != -1;
+	}
+	
+	@Override
+	public String get(Object k) {
+		int e = find(k);
+		return (e != -1) ? vals[e] : null;
+	}
+	
+	@Override
+	public String put(String k, String v) {
+		int e = find(k);
+		if (e != -1) {
+			String old = vals[e];
+			vals[e] = v;
+			return old;
+		}
+		
+		if (used == keys.length)
+			resize(Math.max(MIN, live * 2));
+		e = used++;
+		keys[e] = k;
+		vals[e] = v;
+		insert(e);
+		link(e, tail);
+		live++;
+		modCount++;
+		return null;
+	}
+	
+	@Override
+	public String remove(Object k) {
+		int e = find(k);
+		if (e == -1)
+			return null;
+		String old = vals[e];
+		removeEntry(e);
+		if (live < used / 2)
+			resize(Math.max(MIN, live * 2));
+		return old;
+	}
+	
+	@Override
+	public void clear() {
+		alloc(MIN);
+		head = -1;
+		tail = -1;
+		used = 0;
+		live = 0;
+		nullEntry = -1;
+		modCount++;
+	}
+	
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+			public int size() {
+				return live;
+			}
+			
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Entries();
+			}
+		};
+	}
+	
+	/**
+	 * Moves a key to the top.
+	 * @return false if moved, true if the key does not exist.
+	 */
+	public boolean moveToTop(String k) {
+		return moveAfter(k, null);
+	}
+	
+	/**
+	 * Moves a key to the bottom.
+	 * @return false if moved, true if the key does not exist.
+	 */
+	public boolean moveToBottom(String k) {
+		int e = find(k);
+		if (e == -1)
+			return true;
+		if (e != tail)
+			move(e, tail);
+		return false;
+	}
+	
+	/**
+	 * Moves a key one place up.
+	 * @return false if moved, true if the key does not exist or is at the top.
+	 */
+	public boolean moveUp(String k) {
+		int e = find(k);
+		if (e == -1 || prev[e] == -1)
+			return true;
+		move(e, prev[prev[e]]);
+		return false;
+	}
+	
+	/**
+	 * Moves a key one place down.
+	 * @return false if moved, true if the key does not exist or is at the bottom.
+	 */
+	public boolean moveDown(String k) {
+		int e = find(k);
+		if (e == -1 || next[e] == -1)
+			return true;
+		move(e, next[e]);
+		return false;
+	}
+	
+	/**
+	 * Moves a key to just after another key.
+	 * @param k key to move.
+	 * @param after the key to follow, null for the top.
+	 * @return false if moved, true if either key does not exist.
+	 */
+	public boolean moveAfter(String k, String after) {
+		int e = find(k);
+		int a = (after != null) ? find(after) : -1;
+		if (e == -1 || (after != null && a == -1))
+			return true;
+		if (a != e)
+			move(e, a);
+		return false;
+	}
+	
+	/**
+	 * Puts the keys in the order given, keys not given keep their order after them.
+	 * A key that does not exist or is given twice is skipped.
+	 * @param order keys in their new order.
+	 */
+	public void reorder(List<String> order) {
+		Set<String> seen = new HashSet<String>();
+		int last = -1;
+		for (String k : order) {
+			int e = find(k);
+			if (e == -1 || seen.add(k) == false)
+				continue;
+			if (e != last)
+				move(e, last);
+			last = e;
+		}
+	}
+	
+	/**
+	 * Returns the key before a key.
+	 * @return the key, null if k is at the top or does not exist.
+	 */
+	public String previousKey(String k) {
+		int e = find(k);
+		return (e != -1 && prev[e] != -1) ? keys[prev[e]] : null;
+	}
+	
+	// Entry of key k, -1 if not found.
+	private int find(Object k) {
+		if (k == null)
+			return nullEntry;
+		
+		int mask = table.length - 1;
+		int slot = mix(k.hashCode()) & mask;
+		int e;
+		while ((e = table[slot]) != 0) {
+			e--;
+			if (k.equals(keys[e]) == true)
+				return e;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	// Adds entry e to the table in the first empty slot or slot of a removed entry.
+	private void insert(int e) {
+		if (keys[e] == null) {
+			nullEntry = e;
+			return;
+		}
+		
+		int mask = table.length - 1;
+		int slot = mix(keys[e].hashCode()) & mask;
+		int s;
+		while ((s = table[slot]) != 0 && keys[s - 1] != null)
+			slot = (slot + 1) & mask;
+		table[slot] = e + 1;
+	}
+	
+	// Links entry e into the order after entry p, -1 for the top.
+	private void link(int e, int p) {
+		int n = (p == -1) ? head : next[p];
+		prev[e] = p;
+		next[e] = n;
+		if (p == -1)
+			head = e;
+		else
+			next[p] = e;
+		if (n == -1)
+			tail = e;
+		else
+			prev[n] = e;
+	}
+	
+	private void unlink(int e) {
+		if (prev[e] == -1)
+			head = next[e];
+		else
+			next[prev[e]] = next[e];
+		if (next[e] == -1)
+			tail = prev[e];
+		else
+			prev[next[e]] = prev[e];
+	}
+	
+	// Moves entry e to after entry p, p is not e.
+	private void move(int e, int p) {
+		unlink(e);
+		link(e, p);
+		modCount++;
+	}
+	
+	private void removeEntry(int e) {
+		unlink(e);
+		if (e == nullEntry)
+			nullEntry = -1;
+		keys[e] = null;
+		vals[e] = null;
+		live--;
+		modCount++;
+	}
+	
+	// Moves the live entries in key order to new arrays of the given size, dropping the holes.
+	private void resize(int capacity) {
+		String[] k = keys;
+		String[] v = vals;
+		int[] nx = next;
+		int from = head;
+		alloc(capacity);
+		head = -1;
+		tail = -1;
+		used = 0;
+		nullEntry = -1;
+		for (int e = from; e != -1; e = nx[e]) {
+			keys[used] = k[e];
+			vals[used] = v[e];
+			insert(used);
+			link(used, tail);
+			used++;
+		}
+	}
+	
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	// Iterates the entries in key order.
+	private final class Entries implements Iterator<Map.Entry<String, String>> {
+		private int cursor = head;
+		private int last = -1;
+		private int expected = modCount;
+		
+		public boolean hasNext() {
+			return cursor != -1;
+		}
+		
+		public Map.Entry<String, String> next() {
+			if (expected != modCount)
+				throw new ConcurrentModificationException();
+			if (cursor == -1)
+				throw new NoSuchElementException();
+			last = cursor;
+			cursor = next[cursor];
+			final int e = last;
+			return new AbstractMap.SimpleEntry<String, String>(keys[e], vals[e]) {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				public String setValue(String v) {
+					vals[e] = v;
+					return super.setValue(v);
+				}
+			};
+		}
+		
+		public void remove() {
+			if (last == -1)
+				throw new IllegalStateException();
+			if (expected != modCount)
+				throw new ConcurrentModificationException();
+			// the holes are dropped by the next remove() of the map, not while iterating.
+			removeEntry(last);
+			last = -1;
+			expected = modCount;
+		}
+	}
+}
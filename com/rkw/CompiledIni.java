@@ -0,0 +1,419 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A .ti file compiled by IniFile.compile() and mapped into memory by IniFile.openCompiled().
+ *
+ * All numbers are big endian ints unless noted, strings are numbers into the string table, -1 is null.
+ *
+ * header, 80 bytes:
+ *   magic TIB1, format version, long CRC32C of every byte after it,
+ *   long size, long modified time and long CRC32C of the .ti file it was compiled from,
+ *   source path string, header comment string, string count, section count, indexed section count,
+ *   entry count, key slot count, top comment count, string bytes size, 0.
+ * string offsets, string count + 1 byte offsets into the string bytes.
+ * section directory, sections then indexed sections, each name, comment, first entry and entry count.
+ * entries, each key, value and comment, the key of an indexed section entry is the index itself.
+ * key slots, an open addressing table of hash and entry + 1 pairs for the key/values of the sections.
+ * top comments.
+ * string bytes, UTF-8.
+ *
+ * Nothing is parsed when a file is opened, the section directory is read and sections are read
+ * from the mapping the first time they are used.
+ */
+final class CompiledIni {
+	private static final int MAGIC = 0x54494231;		// TIB1
+	static final int VERSION = 1;
+	private static final int HEADER = 80;
+	
+	final Path file;
+	final Path source;
+	final long sourceSize;
+	final long sourceModified;
+	final long sourceCrc;
+	final String header;
+	
+	private final ByteBuffer buf;
+	private final int secCount;
+	private final int idxCount;
+	private final int slotCount;
+	private final int topCount;
+	private final int offsetsAt;
+	private final int sectionsAt;
+	private final int entriesAt;
+	private final int slotsAt;
+	private final int topAt;
+	private final int stringsAt;
+	// strings read so far, a string used by many entries is only made once.
+	private final String[] strings;
+	// section name to its place in the directory, indexed sections are after the sections.
+	private final Map<String, Integer> secIndex = new HashMap<String, Integer>();
+	private final Map<String, Integer> idxIndex = new HashMap<String, Integer>();
+	
+	private CompiledIni(Path file, ByteBuffer buf) {
+		this.file = file;
+		this.buf = buf;
+		
+		sourceSize = buf.getLong(16);
+		sourceModified = buf.getLong(24);
+		sourceCrc = buf.getLong(32);
+		int stringCount = buf.getInt(48);
+		secCount = buf.getInt(52);
+		idxCount = buf.getInt(56);
+		int entryCount = buf.getInt(60);
+		slotCount = buf.getInt(64);
+		topCount = buf.getInt(68);
+		
+		offsetsAt = HEADER;
+		sectionsAt = offsetsAt + (stringCount + 1) * 4;
+		entriesAt = sectionsAt + (secCount + idxCount) * 16;
+		slotsAt = entriesAt + entryCount * 12;
+		topAt = slotsAt + slotCount * 8;
+		stringsAt = topAt + topCount * 4;
+		strings = new String[stringCount];
+		
+		String src = string(buf.getInt(40));
+		source = (src != null) ? Paths.get(src) : null;
+		header = string(buf.getInt(44));
+		
+		for (int s = 0; s < secCount + idxCount; s++) {
+			if (s < secCount)
+				secIndex.put(name(s), s);
+			else
+				idxIndex.put(name(s), s);
+		}
+	}
+	
+	/**
+	 * Maps a compiled file.
+	 * @return null if the file does not exist, is not a compiled file, was made by another
+	 * format version or is damaged.
+	 */
+	static CompiledIni open(Path tib) throws IOException {
+		if (Files.exists(tib) == false)
+			return null;
+		
+		ByteBuffer b;
+		FileChannel ch = FileChannel.open(tib, StandardOpenOption.READ);
+		try {
+			long size = ch.size();
+			if (size < HEADER || size > Integer.MAX_VALUE)
+				return null;
+			b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			ch.close();
+		}
+		
+		if (b.getInt(0) != MAGIC || b.getInt(4) != VERSION)
+			return null;
+		
+		CRC32C crc = new CRC32C();
+		b.position(16);
+		crc.update(b);
+		b.clear();
+		if (crc.getValue() != b.getLong(8))
+			return null;
+		
+		return new CompiledIni(tib, b);
+	}
+	
+	// true if the .ti file was changed after it was compiled, false if it is the same or is gone.
+	boolean isStale() {
+		if (source == null)
+			return false;
+		try {
+			BasicFileAttributes a = Files.readAttributes(source, BasicFileAttributes.class);
+			return a.size() != sourceSize || a.lastModifiedTime().toMillis() != sourceModified;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	int sectionCount() {
+		return secCount;
+	}
+	
+	int indexedSectionCount() {
+		return idxCount;
+	}
+	
+	// name of section s, indexed sections are numbered after the sections.
+	String name(int s) {
+		return string(buf.getInt(sectionsAt + s * 16));
+	}
+	
+	String comment(int s) {
+		return string(buf.getInt(sectionsAt + s * 16 + 4));
+	}
+	
+	// place of a section in the directory, -1 if it is not in the file.
+	int section(Object name, boolean indexed) {
+		Integer s = (indexed ? idxIndex : secIndex).get(name);
+		return (s != null) ? s : -1;
+	}
+	
+	// The section was removed or renamed, its compiled contents are no longer used.
+	void forget(String name, boolean indexed) {
+		(indexed ? idxIndex : secIndex).remove(name);
+	}
+	
+	String topComment(int i) {
+		return string(buf.getInt(topAt + i * 4));
+	}
+	
+	int topCommentCount() {
+		return topCount;
+	}
+	
+	// Fills a section with its key/values.
+	void load(int s, ValuePairMap vpm, Map<String, String> kvComments) {
+		int first = buf.getInt(sectionsAt + s * 16 + 8);
+		int count = buf.getInt(sectionsAt + s * 16 + 12);
+		for (int e = first; e < first + count; e++) {
+			int at = entriesAt + e * 12;
+			String key = string(buf.getInt(at));
+			vpm.add(key, string(buf.getInt(at + 4)));
+			String c = string(buf.getInt(at + 8));
+			if (c != null)
+				kvComments.put(key, c);
+		}
+	}
+	
+	// Fills an indexed section with its values.
+	void load(int s, IndexedValuePair ivp, Map<String, String> kvComments) {
+		int first = buf.getInt(sectionsAt + s * 16 + 8);
+		int count = buf.getInt(sectionsAt + s * 16 + 12);
+		for (int e = first; e < first + count; e++) {
+			int at = entriesAt + e * 12;
+			int idx = buf.getInt(at);
+			ivp.add(idx, string(buf.getInt(at + 4)));
+			String c = string(buf.getInt(at + 8));
+			if (c != null)
+				kvComments.put(Integer.toString(idx), c);
+		}
+	}
+	
+	/**
+	 * Looks a key up in the key slots without reading the rest of the section.
+	 * @return the value, null if the section or key is not in the file.
+	 */
+	String get(Object sec, String key) {
+		int s = section(sec, false);
+		if (s == -1 || slotCount == 0)
+			return null;
+		
+		int first = buf.getInt(sectionsAt + s * 16 + 8);
+		int count = buf.getInt(sectionsAt + s * 16 + 12);
+		int h = hash(s, key);
+		int mask = slotCount - 1;
+		int slot = h & mask;
+		int e;
+		while ((e = buf.getInt(slotsAt + slot * 8 + 4)) != 0) {
+			e--;
+			if (buf.getInt(slotsAt + slot * 8) == h && e >= first && e < first + count) {
+				int at = entriesAt + e * 12;
+				if (key.equals(string(buf.getInt(at))) == true)
+					return string(buf.getInt(at + 4));
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+	
+	private String string(int i) {
+		if (i < 0)
+			return null;
+		
+		String s = strings[i];
+		if (s == null) {
+			int from = buf.getInt(offsetsAt + i * 4);
+			int to = buf.getInt(offsetsAt + i * 4 + 4);
+			byte[] b = new byte[to - from];
+			buf.get(stringsAt + from, b);
+			s = new String(b, StandardCharsets.UTF_8);
+			strings[i] = s;
+		}
+		return s;
+	}
+	
+	private static int hash(int sec, String key) {
+		int h = (key.hashCode() + sec * 31) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Writes a compiled file, replacing it with a rename so a reader never maps half a file.
+	 * @param source the .ti file the sections were read from.
+	 * @param stamp size, modified time and CRC32C of the .ti file.
+	 */
+	static void write(Path tib, Path source, long[] stamp, String header, List<String> topComments,
+			Map<String, ValuePairMap> sections, Map<String, IndexedValuePair> idxSections,
+			Map<String, String> secComments, Map<String, String> kvComments) throws IOException {
+		Strings st = new Strings();
+		int sourceStr = st.id(source.toString());
+		int headerStr = st.id(header);
+		
+		// section directory and entries.
+		int count = sections.size() + idxSections.size();
+		int[] dir = new int[count * 4];
+		int entryCount = 0;
+		for (ValuePairMap vpm : sections.values())
+			entryCount += vpm.values.size();
+		for (IndexedValuePair ivp : idxSections.values())
+			entryCount += ivp.values.size();
+		int[] entries = new int[entryCount * 3];
+		
+		int s = 0;
+		int e = 0;
+		for (Map.Entry<String, ValuePairMap> m : sections.entrySet()) {
+			dir[s * 4] = st.id(m.getKey());
+			dir[s * 4 + 1] = st.id(secComments.get(m.getKey()));
+			dir[s * 4 + 2] = e;
+			dir[s * 4 + 3] = m.getValue().values.size();
+			for (Map.Entry<String, String> kv : m.getValue().values.entrySet()) {
+				entries[e * 3] = st.id(kv.getKey());
+				entries[e * 3 + 1] = st.id(kv.getValue());
+				entries[e * 3 + 2] = st.id(kvComments.get(kv.getKey()));
+				e++;
+			}
+			s++;
+		}
+		int keyCount = e;
+		for (Map.Entry<String, IndexedValuePair> m : idxSections.entrySet()) {
+			dir[s * 4] = st.id(m.getKey());
+			dir[s * 4 + 1] = st.id(secComments.get(m.getKey()));
+			dir[s * 4 + 2] = e;
+			dir[s * 4 + 3] = m.getValue().values.size();
+			for (Map.Entry<Integer, String> kv : m.getValue().values.entrySet()) {
+				entries[e * 3] = kv.getKey();
+				entries[e * 3 + 1] = st.id(kv.getValue());
+				entries[e * 3 + 2] = st.id(kvComments.get(kv.getKey().toString()));
+				e++;
+			}
+			s++;
+		}
+		
+		// key slots of the sections, at most half full.
+		int slotCount = 0;
+		if (keyCount > 0) {
+			slotCount = 2;
+			while (slotCount < keyCount * 2)
+				slotCount <<= 1;
+		}
+		int[] slots = new int[slotCount * 2];
+		int mask = slotCount - 1;
+		for (s = 0; s < sections.size(); s++) {
+			for (e = dir[s * 4 + 2]; e < dir[s * 4 + 2] + dir[s * 4 + 3]; e++) {
+				int h = hash(s, st.get(entries[e * 3]));
+				int slot = h & mask;
+				while (slots[slot * 2 + 1] != 0)
+					slot = (slot + 1) & mask;
+				slots[slot * 2] = h;
+				slots[slot * 2 + 1] = e + 1;
+			}
+		}
+		
+		int[] top = new int[topComments.size()];
+		for (int i = 0; i < top.length; i++)
+			top[i] = st.id(topComments.get(i));
+		
+		long size = HEADER + (st.count() + 1) * 4L + dir.length * 4L + entries.length * 4L + slots.length * 4L + top.length * 4L + st.bytes.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException(source + " is too large to compile.");
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) size);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(0);		// CRC32C, filled in below.
+		out.writeLong(stamp[0]);
+		out.writeLong(stamp[1]);
+		out.writeLong(stamp[2]);
+		out.writeInt(sourceStr);
+		out.writeInt(headerStr);
+		out.writeInt(st.count());
+		out.writeInt(sections.size());
+		out.writeInt(idxSections.size());
+		out.writeInt(entryCount);
+		out.writeInt(slotCount);
+		out.writeInt(top.length);
+		out.writeInt(st.bytes.size());
+		out.writeInt(0);
+		for (int i = 0; i < st.count(); i++)
+			out.writeInt(st.offsets[i]);
+		out.writeInt(st.bytes.size());
+		writeInts(out, dir);
+		writeInts(out, entries);
+		writeInts(out, slots);
+		writeInts(out, top);
+		st.bytes.writeTo(out);
+		out.flush();
+		
+		byte[] b = bytes.toByteArray();
+		CRC32C crc = new CRC32C();
+		crc.update(b, 16, b.length - 16);
+		ByteBuffer.wrap(b).putLong(8, crc.getValue());
+		
+		AtomicFile.write(tib, Durability.NONE, b);
+	}
+	
+	private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+		for (int i : a)
+			out.writeInt(i);
+	}
+	
+	// The string table being built, each distinct string is stored once.
+	private static final class Strings {
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		String[] list = new String[256];
+		int[] offsets = new int[256];
+		
+		int id(String s) {
+			if (s == null)
+				return -1;
+			
+			Integer id = ids.get(s);
+			if (id == null) {
+				id = ids.size();
+				if (id == list.length) {
+					list = Arrays.copyOf(list, id * 2);
+					offsets = Arrays.copyOf(offsets, id * 2);
+				}
+				list[id] = s;
+				offsets[id] = bytes.size();
+				byte[] b = s.getBytes(StandardCharsets.UTF_8);
+				bytes.write(b, 0, b.length);
+				ids.put(s, id);
+			}
+			return id;
+		}
+		
+		String get(int id) {
+			return list[id];
+		}
+		
+		int count() {
+			return ids.size();
+		}
+	}
+}
@@ -0,0 +1,1639 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An IniFile that can be used by many threads at once.
+ * It has the same methods as IniFile and returns the same values.
+ *
+ * Readers of single values never lock.  Each section keeps its values in a concurrent map,
+ * a writer changes one value in place, so a reader sees either the old or the new value.
+ * A write is O(log n) in the size of the section, the order of the keys is kept in a tree next
+ * to the map.  Writers lock the section they change, sections are spread over a fixed set of
+ * locks so writers of different sections seldom wait on each other.  Adding, removing or
+ * renaming sections also locks the list of sections, which is replaced, never changed.
+ *
+ * Reads of a whole section, such as getSectionKeys(), take the lock of the section.
+ * writeFile(), stringFile() and freeze() take all of the locks just long enough to copy the
+ * key/value pairs, the file is then written from that copy while readers and writers go on.
+ */
+public class ConcurrentIniFile {
+	// number of section locks, a power of two.
+	private static final int STRIPES = 16;
+	
+	// sections in file order, the maps are replaced, never changed, when sections are added or removed.
+	private volatile Map<String, Section<String>> sections = new LinkedHashMap<String, Section<String>>();
+	private volatile Map<String, Section<Integer>> idxSections = new LinkedHashMap<String, Section<Integer>>();
+	private volatile List<String> topComments = new ArrayList<String>();
+	// key name to the first section holding it, built on first use and dropped when a key is
+	// added or removed or a section moves.  ownerChanges counts the drops, see owners().
+	private final AtomicReference<Owners> owners = new AtomicReference<Owners>();
+	private final AtomicLong ownerChanges = new AtomicLong();
+	// expanded values of the sections, a changed key drops only the values that used it.
+	private final VariableExpander expander = new VariableExpander("ConcurrentIniFile", new VariableExpander.Source() {
+		public String value(String sec, Object key, boolean indexed) {
+			Section<?> s = indexed ? idxSections.get(sec) : sections.get(sec);
+			return (s != null) ? s.get(key) : null;
+		}
+		
+		public String owner(Object key, boolean indexed) {
+			return owners().owner(key, indexed);
+		}
+		
+		// values are only changed through this class, getSectionValues() returns a copy.
+		public boolean changed(String sec, Object key, boolean indexed, String source) {
+			return false;
+		}
+	});
+	private volatile String iniFileName = null;
+	private volatile boolean changed = false;
+	private boolean noWrite = false;
+	// set to write the file with a temp file and a rename.
+	private volatile Durability atomicWrite = null;
+	
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+	private final ReentrantLock dirLock = new ReentrantLock();
+	// one writeFile() at a time so two writers do not mix their output.
+	private final ReentrantLock fileLock = new ReentrantLock();
+	
+	/**
+	 * Set to true if file was found.
+	 */
+	public volatile boolean fileFound = false;
+	
+	/**
+	 * Constructor for the ConcurrentIniFile Class.
+	 * @param fileName name of .ti type file to create or read.
+	 * @param noWrite boolean if true then disable write to file.
+	 */
+	public ConcurrentIniFile(String fileName, boolean noWrite) {
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new ReentrantLock();
+		iniFileName = fileName;
+		this.noWrite = noWrite;
+		if (fileName != null)
+			load(new IniFile(fileName, noWrite));
+	}
+	
+	/**
+	 * Constructor for the ConcurrentIniFile Class.
+	 * @param fileName name of .ti type file to create or read.
+	 */
+	public ConcurrentIniFile(String fileName) {
+		this(fileName, false);
+	}
+	
+	/**
+	 * Constructor for the ConcurrentIniFile Class.
+	 * @param file path of .ti type file to create or read.
+	 * @param mode how the file is read, see LoadMode.  All sections are read before the constructor returns.
+	 */
+	public ConcurrentIniFile(Path file, LoadMode mode) {
+		this(null, false);
+		iniFileName = file.toString();
+		load(new IniFile(file, mode));
+	}
+	
+	/**
+	 * Takes a string that has a .ini format and parses it, replacing all sections.
+	 * @param fileName name used when the list is written.
+	 * @param iniData - ini formated string
+	 */
+	public void inputString(String fileName, String iniData) {
+		IniFile ini = new IniFile(null);
+		ini.inputString(fileName, iniData);
+		iniFileName = fileName;
+		load(ini);
+	}
+	
+	// Replaces all sections with the sections of ini.
+	private void load(IniFile ini) {
+		Map<String, Section<String>> secs = new LinkedHashMap<String, Section<String>>();
+		for (Object name : ini.getSectionNames()) {
+			ValuePairMap vpm = ini.getSectionValues(name);
+			secs.put((String) name, new Section<String>(vpm.values, 0));
+		}
+		
+		Map<String, Section<Integer>> idx = new LinkedHashMap<String, Section<Integer>>();
+		for (Object name : ini.getIndexedSectionNames()) {
+			IndexedValuePair ivp = ini.getIndexedSectionValues(name);
+			idx.put((String) name, new Section<Integer>(ivp.values, ivp.getNextIndex()));
+		}
+		
+		lockAll();
+		try {
+			sections = secs;
+			idxSections = idx;
+			topComments = new ArrayList<String>(ini.getTopComments());
+			fileFound = ini.fileFound;
+			changedAll();
+		} finally {
+			unlockAll();
+		}
+	}
+	
+	/**
+	 * Returns the filename.
+	 * @return String
+	 */
+	public String getFileName() {
+		return iniFileName;
+	}
+	
+	/**
+	 * Used to change or supply the filename if null was passed to the constructor.
+	 * @param fileName
+	 */
+	public void setFileName(String fileName) {
+		iniFileName = fileName;
+	}
+	
+	/**
+	 * Returns the whether the list has changed or not.
+	 * @return boolean
+	 */
+	public boolean getChangedFlag() {
+		return changed;
+	}
+	
+	/**
+	 * Sets the changed flag.
+	 * @param changed
+	 */
+	public void setChangedFlag(boolean changed) {
+		this.changed = changed;
+	}
+	
+	/**
+	 * Rereads the file, discarding all changes.
+	 * The file is read first and then replaces the sections in one step.
+	 */
+	public void reread() {
+		if (iniFileName != null)
+			load(new IniFile(iniFileName, noWrite));
+		changed = false;
+	}
+	
+	/**
+	 * Clears all sections and key/value pairs.
+	 */
+	public void clearAll() {
+		lockAll();
+		try {
+			sections = new LinkedHashMap<String, Section<String>>();
+			idxSections = new LinkedHashMap<String, Section<Integer>>();
+			changedAll();
+		} finally {
+			unlockAll();
+		}
+	}
+	
+	/**
+	 * Adds a key/value pair to an existing section or creates the section if it
+	 * does not exist.
+	 * @param sec section name
+	 * @param key key name
+	 * @param value value of the key
+	 */
+	public void addSection(String sec, String key, String value) {
+		if (key == null)
+			return;
+		ReentrantLock l = lock(sec);
+		try {
+			Section<String> s = sections.get(sec);
+			boolean added;
+			if (s != null) {
+				added = s.put(key, value);
+			} else {
+				s = new Section<String>(0);
+				added = s.put(key, value);
+				putSection(sec, s);
+			}
+			changed(key, added);
+		} finally {
+			l.unlock();
+		}
+	}
+	
+	/**
+	 * Adds a indexed value to an existing indexed section or creates the section if it
+	 * does not exist.
+	 * @param sec section name
+	 * @param value value of the index
+	 */
+	public void addIndexedSection(String sec, String value) {
+		ReentrantLock l = lock(sec);
+		try {
+			Section<Integer> s = idxSections.get(sec);
+			if (s == null) {
+				s = new Section<Integer>(0);
+				putIndexedSection(sec, s);
+			}
+			Integer key = s.next;
+			s.put(key, value);
+			changed(key, true);
+		} finally {
+			l.unlock();
+		}
+	}
+	
+	/**
+	 * Adds a new section with no key/value pairs.
+	 * @param sec section name
+	 * @return true if already exists, true if already exists.
+	 */
+	public boolean addSection(String sec) {
+		ReentrantLock l = lock(sec);
+		try {
+			if (sections.containsKey(sec) == true)
+				return true;
+			putSection(sec, new Section<String>(0));
+			changed = true;
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Adds a new section with no key/value pairs.
+	 * @param sec section name
+	 * @return true if already exists, true if already exists.
+	 */
+	public boolean addIndexedSection(String sec) {
+		ReentrantLock l = lock(sec);
+		try {
+			if (idxSections.containsKey(sec) == true)
+				return true;
+			putIndexedSection(sec, new Section<Integer>(0));
+			changed = true;
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Renames a section.
+	 * @param from from section name
+	 * @param to to section name
+	 * @return false if successful, true if to name exists
+	 */
+	public boolean renameSection(String from, String to) {
+		ReentrantLock[] held = lock(from, to);
+		try {
+			if (sections.containsKey(to) == true)
+				return true;		// section already exists.
+			
+			Section<String> s = sections.get(from);
+			if (s != null) {
+				dirLock.lock();
+				try {
+					Map<String, Section<String>> m = new LinkedHashMap<String, Section<String>>(sections);
+					s = m.remove(from);
+					m.put(to, s);
+					sections = m;
+				} finally {
+					dirLock.unlock();
+				}
+				changed(s.keys());
+			}
+		} finally {
+			unlock(held);
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Renames a section.
+	 * @param from from section name
+	 * @param to to section name
+	 * @return false if successful, true if to name exists
+	 */
+	public boolean renameIndexedSection(String from, String to) {
+		ReentrantLock[] held = lock(from, to);
+		try {
+			if (idxSections.containsKey(to) == true)
+				return true;		// section already exists.
+			
+			Section<Integer> s = idxSections.get(from);
+			if (s != null) {
+				dirLock.lock();
+				try {
+					Map<String, Section<Integer>> m = new LinkedHashMap<String, Section<Integer>>(idxSections);
+					s = m.remove(from);
+					m.put(to, s);
+					idxSections = m;
+				} finally {
+					dirLock.unlock();
+				}
+				changed(s.keys());
+			}
+		} finally {
+			unlock(held);
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Moves the key/value pair to top of the linked list.
+	 * @param sec section name.
+	 * @param key key name.
+	 */
+	public void moveToTopValuePair(String sec, String key) {
+		moveValuePair(sec, key, Integer.MIN_VALUE);
+	}
+	
+	/**
+	 * Moves the key/value pair to bottom of linked list.
+	 * @param sec section name.
+	 * @param key key name.
+	 */
+	public void moveToBottomValuePair(String sec, String key) {
+		moveValuePair(sec, key, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Moves the key/value pair one place up in the linked list if it can.
+	 * @param sec section name.
+	 * @param key key name.
+	 */
+	public void moveUpValuePair(String sec, String key) {
+		moveValuePair(sec, key, -1);
+	}
+	
+	/**
+	 * Moves the key/value pair one place down in the linked list if it can.
+	 * @param sec section name.
+	 * @param key key name.
+	 */
+	public void moveDownValuePair(String sec, String key) {
+		moveValuePair(sec, key, 1);
+	}
+	
+	// Moves key by places, the key stops at the top or bottom of the section.
+	private void moveValuePair(String sec, String key, int places) {
+		ReentrantLock l = lock(sec);
+		try {
+			Section<String> s = sections.get(sec);
+			if (s == null || s.containsKey(key) == false)
+				return;
+			
+			s.move(key, places);
+			changed = true;
+		} finally {
+			l.unlock();
+		}
+	}
+	
+	/**
+	 * Adds a key/value pair to the an existing section, if section does
+	 * not exist the key/value is NOT added.
+	 * @param sec section name
+	 * @param key key within section
+	 * @param value value of the key
+	 * @return true if section does not exist, else false;
+	 */
+	public boolean addValuePair(String sec, String key, String value) {
+		if (key == null)
+			return true;
+		ReentrantLock l = lock(sec);
+		try {
+			Section<String> s = sections.get(sec);
+			if (s == null)
+				return true;
+			changed(key, s.put(key, value));
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Adds a key/value pair to the an existing section, if section does
+	 * not exist the key/value is NOT added.
+	 * @param sec section name
+	 * @param value value of the key
+	 * @return true if section does not exist, else false;
+	 */
+	public boolean addIndexedValue(String sec, String value) {
+		ReentrantLock l = lock(sec);
+		try {
+			Section<Integer> s = idxSections.get(sec);
+			if (s == null)
+				return true;
+			Integer key = s.next;
+			s.put(key, value);
+			changed(key, true);
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Appends a key/value to an existing section, if the key/value does
+	 * not exist then it is created.
+	 * @param sec section name
+	 * @param key key within section
+	 * @param value value of the key
+	 * @return true if section does not exist, else false.
+	 */
+	public boolean appendValuePair(String sec, String key, String value) {
+		if (key == null)
+			return true;
+		ReentrantLock l = lock(sec);
+		try {
+			Section<String> s = sections.get(sec);
+			if (s == null)
+				return true;
+			String v = s.get(key);
+			s.put(key, (v == null) ? value : v + " " + value);
+			changed(key, v == null);
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Appends a key/value to an existing section, if the key/value does
+	 * not exist then it is created.
+	 * @param sec section name
+	 * @param key key within section
+	 * @param value value of the key
+	 * @return true if section does not exist, else false.
+	 */
+	public boolean appendIndexedValue(String sec, Integer key, String value) {
+		if (key == null)
+			return true;
+		ReentrantLock l = lock(sec);
+		try {
+			Section<Integer> s = idxSections.get(sec);
+			if (s == null)
+				return true;
+			String v = s.get(key);
+			s.put(key, (v == null) ? value : v + " " + value);
+			changed(key, v == null);
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Removes an existing section and all of it's key/value pairs.
+	 * @param sec section name to remove
+	 * @return true if section does not exist.
+	 */
+	public boolean removeSection(String sec) {
+		ReentrantLock l = lock(sec);
+		try {
+			Section<String> s = sections.get(sec);
+			if (s == null)
+				return true;
+			dirLock.lock();
+			try {
+				Map<String, Section<String>> m = new LinkedHashMap<String, Section<String>>(sections);
+				m.remove(sec);
+				sections = m;
+			} finally {
+				dirLock.unlock();
+			}
+			changed(s.keys());
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Removes an existing section and all of it's key/value pairs.
+	 * @param sec section name to remove
+	 * @return true if section does not exist.
+	 */
+	public boolean removeIndexedSection(String sec) {
+		ReentrantLock l = lock(sec);
+		try {
+			Section<Integer> s = idxSections.get(sec);
+			if (s == null)
+				return true;
+			dirLock.lock();
+			try {
+				Map<String, Section<Integer>> m = new LinkedHashMap<String, Section<Integer>>(idxSections);
+				m.remove(sec);
+				idxSections = m;
+			} finally {
+				dirLock.unlock();
+			}
+			changed(s.keys());
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Removes an existing key/value pair from an existing section.
+	 * @param sec section name
+	 * @param key key within section
+	 * @return true if section does not exist or key removal fails.
+	 */
+	public boolean removeValuePair(String sec, String key) {
+		ReentrantLock l = lock(sec);
+		try {
+			Section<String> s = sections.get(sec);
+			if (s == null || s.remove(key) == false)
+				return true;
+			changed(key, true);
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Removes an existing key/value pair from an existing section.
+	 * @param sec section name
+	 * @param key key within section
+	 * @return true if section does not exist or key removal fails.
+	 */
+	public boolean removeIndexedValue(String sec, Integer key) {
+		ReentrantLock l = lock(sec);
+		try {
+			Section<Integer> s = idxSections.get(sec);
+			if (s == null || s.remove(key) == false)
+				return true;
+			changed(key, true);
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Makes the changes work records in an IniBatch, all of them or none of them, see IniFile.batch().
+	 * The changed sections are copied and the copies are published to readers together.
+	 * @param work records the changes.
+	 * @return true if work threw or a change can not be made, else false.
+	 */
+	public boolean batch(IniBatch.Work work) {
+		IniBatch b = new IniBatch();
+		try {
+			work.apply(b);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return true;
+		}
+		
+		lockAll();
+		try {
+			IniBatch.Op bad = b.check(sections, idxSections);
+			if (bad != null) {
+				System.err.println("ConcurrentIniFile: section " + bad.sec + " does not exist, batch not applied.");
+				return true;
+			}
+			if (b.ops.isEmpty() == true)
+				return false;
+			
+			Map<String, Section<String>> secs = new LinkedHashMap<String, Section<String>>(sections);
+			Map<String, Section<Integer>> idx = new LinkedHashMap<String, Section<Integer>>(idxSections);
+			// sections made by this batch, not seen by readers until secs and idx are published.
+			Set<Section<?>> made = Collections.newSetFromMap(new IdentityHashMap<Section<?>, Boolean>());
+			for (IniBatch.Op o : b.ops) {
+				switch (o.op) {
+				case IniJournal.PUT:
+					unpublished(secs, o.sec, made).put(o.a, o.b);
+					break;
+				case IniJournal.REMOVE:
+					unpublished(secs, o.sec, made).remove(o.a);
+					break;
+				case IniJournal.SECTION:
+					if (secs.containsKey(o.sec) == false)
+						made.add(add(secs, o.sec, new Section<String>(0)));
+					break;
+				case IniJournal.DROP:
+					secs.remove(o.sec);
+					break;
+				case IniJournal.IPUT:
+					unpublished(idx, o.sec, made).put(Integer.valueOf(o.a), o.b);
+					break;
+				case IniJournal.IREMOVE:
+					unpublished(idx, o.sec, made).remove(Integer.valueOf(o.a));
+					break;
+				case IniJournal.ISECTION:
+					if (idx.containsKey(o.sec) == false)
+						made.add(add(idx, o.sec, new Section<Integer>(0)));
+					break;
+				case IniJournal.IDROP:
+					idx.remove(o.sec);
+					break;
+				}
+			}
+			
+			sections = secs;
+			idxSections = idx;
+			changedAll();
+		} finally {
+			unlockAll();
+		}
+		
+		return false;
+	}
+	
+	// The section of a batch, a published section is copied the first time the batch changes it.
+	private static <K> Section<K> unpublished(Map<String, Section<K>> m, String sec, Set<Section<?>> made) {
+		Section<K> s = m.get(sec);
+		if (made.contains(s) == false) {
+			s = new Section<K>(s);
+			m.put(sec, s);
+			made.add(s);
+		}
+		return s;
+	}
+	
+	private static <K> Section<K> add(Map<String, Section<K>> m, String sec, Section<K> s) {
+		m.put(sec, s);
+		return s;
+	}
+	
+	/**
+	 * Rename key of a ValuePair, see IniFile.renameValuePair().
+	 * @param sec section name
+	 * @param from from value key
+	 * @param to to value key
+	 * @return true if section does not exist.
+	 */
+	public boolean renameValuePair(String sec, String from, String to) {
+		if (to == null)
+			return true;
+		ReentrantLock l = lock(sec);
+		try {
+			Section<String> s = sections.get(sec);
+			String value = (s != null) ? s.get(from) : null;
+			if (value == null)
+				return true;
+			String[] a = value.split(",");
+			if (a.length == 2)
+				value = a[0] + "," + a[1] + "," + from;
+			
+			s.remove(from);
+			s.put(to, value);
+			changed(from, true);
+			changed(to, true);
+		} finally {
+			l.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the number of sections in file.
+	 * @return int number of sections in a file.
+	 */
+	public int getSectionCount() {
+		return sections.size() + idxSections.size();
+	}
+	
+	/**
+	 * returns the number of total key/values pairs by adding all sections together.
+	 * @return int total key/value pair count
+	 */
+	public int getValueCount() {
+		int count = 0;
+		for (Section<String> s : sections.values())
+			count += s.size();
+		for (Section<Integer> s : idxSections.values())
+			count += s.size();
+		return count;
+	}
+	
+	/**
+	 * Returns key/value pair count of a section
+	 * @param sectionName section name
+	 * @return int count of key/value pairs in a section.
+	 */
+	public int getSectionValueCount(Object sectionName) {
+		Section<String> s = sections.get(sectionName);
+		return (s != null) ? s.size() : 0;
+	}
+	
+	/**
+	 * Returns index/value pair count of a section
+	 * @param sectionName section name
+	 * @return int count of key/value pairs in a section.
+	 */
+	public int getIndexedSectionValueCount(Object sectionName) {
+		Section<Integer> s = idxSections.get(sectionName);
+		return (s != null) ? s.size() : 0;
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string.
+	 * Same as getSectionValueAsString().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param flag whether to expand variables or not.
+	 * @return String value
+	 */
+	public String getString(Object sectionName, Object keyName, boolean flag) {
+		return getSectionValueAsString(sectionName, keyName, flag);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string but does not
+	 * expand any variables.  Same as getSectionValueAsString().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return String value
+	 */
+	public String getString(Object sectionName, Object keyName) {
+		return getSectionValueAsString(sectionName, keyName, false);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string but does not
+	 * expand any variables.
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return String value
+	 */
+	public String getSectionValueAsString(Object sectionName, Object keyName) {
+		return getSectionValueAsString(sectionName, keyName, false);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string.
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param flag whether to expand variables or not.
+	 * @return String value
+	 */
+	public String getSectionValueAsString(Object sectionName, Object keyName, boolean flag) {
+		boolean indexed = keyName instanceof Integer;
+		if (indexed == false && keyName instanceof String == false)
+			return null;
+		
+		Section<?> s = indexed ? idxSections.get(sectionName) : sections.get(sectionName);
+		String value = (s != null) ? s.get(keyName) : null;
+		
+		if (flag == true)
+			value = expander.expand((String) sectionName, keyName, value, indexed);
+		
+		return value;
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * Same as getSectionValueAsInt()
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return int value
+	 */
+	public int getInt(Object sectionName, Object keyName) {
+		return getSectionValueAsInt(sectionName, keyName);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * Same as getSectionValueAsDouble()
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return double value
+	 */
+	public double getDouble(Object sectionName, Object keyName) {
+		return getSectionValueAsDouble(sectionName, keyName);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return int value, -1 if the section does not exist, 0 if the key does not exist or is not a number.
+	 */
+	public int getSectionValueAsInt(Object sectionName, Object keyName) {
+		return TypedValue.asInt(typedValue(sectionName, keyName));
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return int value
+	 */
+	public int getSectionValueAsInt(Object sectionName, Object keyName, int def) {
+		return TypedValue.asInt(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as a long
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return long value
+	 */
+	public long getSectionValueAsLong(Object sectionName, Object keyName, long def) {
+		return TypedValue.asLong(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return double value, -1 if the section does not exist, 0 if the key does not exist or is not a number.
+	 */
+	public double getSectionValueAsDouble(Object sectionName, Object keyName) {
+		return TypedValue.asDouble(typedValue(sectionName, keyName));
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return double value
+	 */
+	public double getSectionValueAsDouble(Object sectionName, Object keyName, double def) {
+		return TypedValue.asDouble(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * Same as getSectionValueAsBoolean().
+	 * @param sectionName
+	 * @param keyName
+	 * @return false if section or key/value does not exist.
+	 */
+	public boolean getBoolean(Object sectionName, Object keyName) {
+		return getSectionValueAsBoolean(sectionName, keyName);
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * @param sectionName
+	 * @param keyName
+	 * @return false if section or key/value does not exist.
+	 */
+	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName) {
+		return TypedValue.asBoolean(typedValue(sectionName, keyName));
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * @param sectionName
+	 * @param keyName
+	 * @param def value returned if the section or key does not exist or is not true or false.
+	 * @return boolean value
+	 */
+	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName, boolean def) {
+		return TypedValue.asBoolean(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Gets a duration in milliseconds, see IniFile.getSectionValueAsMillis().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a duration.
+	 * @return duration in milliseconds
+	 */
+	public long getSectionValueAsMillis(Object sectionName, Object keyName, long def) {
+		return TypedValue.asMillis(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Gets a size in bytes, see IniFile.getSectionValueAsBytes().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a size.
+	 * @return size in bytes
+	 */
+	public long getSectionValueAsBytes(Object sectionName, Object keyName, long def) {
+		return TypedValue.asBytes(typedValue(sectionName, keyName), def);
+	}
+	
+	// The parsed forms of a value, TypedValue.EMPTY if the key does not exist, null if the section does not exist.
+	private TypedValue typedValue(Object sectionName, Object keyName) {
+		if (keyName instanceof String) {
+			Section<String> s = sections.get(sectionName);
+			return (s != null) ? s.typed((String) keyName) : null;
+		} else if (keyName instanceof Integer) {
+			Section<Integer> s = idxSections.get(sectionName);
+			return (s != null) ? s.typed((Integer) keyName) : null;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Returns a copy of a section, changes to the copy are not seen by this file.
+	 * @param sectionName
+	 * @return ValuePairMap or null if the section does not exist.
+	 */
+	public ValuePairMap getSectionValues(Object sectionName) {
+		Section<String> s = sections.get(sectionName);
+		if (s == null)
+			return null;
+		
+		ValuePairMap vpm = new ValuePairMap();
+		ReentrantLock l = lock((String) sectionName);
+		try {
+			vpm.values.putAll(s.copy());
+		} finally {
+			l.unlock();
+		}
+		return vpm;
+	}
+	
+	/**
+	 * Returns a copy of an indexed section, changes to the copy are not seen by this file.
+	 * @param sectionName
+	 * @return IndexedValuePair or null if the section does not exist.
+	 */
+	public IndexedValuePair getIndexedSectionValues(Object sectionName) {
+		Section<Integer> s = idxSections.get(sectionName);
+		if (s == null)
+			return null;
+		
+		IndexedValuePair ivp = new IndexedValuePair();
+		ReentrantLock l = lock((String) sectionName);
+		try {
+			for (Map.Entry<Integer, String> e : s.copy().entrySet())
+				ivp.add(e.getKey(), e.getValue());
+		} finally {
+			l.unlock();
+		}
+		return ivp;
+	}
+	
+	/**
+	 * Get an array of all section names.
+	 * @return an array of section names as an array of Objects.
+	 */
+	public Object[] getSectionNames() {
+		return sections.keySet().toArray();
+	}
+	
+	/**
+	 * Get an array of all indexed section names.
+	 * @return an array of section names as an array of Objects.
+	 */
+	public Object[] getIndexedSectionNames() {
+		return idxSections.keySet().toArray();
+	}
+	
+	/**
+	 * Returns an array of key names in the section.
+	 * @param sectionName
+	 * @return Object[]
+	 */
+	public Object[] getSectionKeys(Object sectionName) {
+		Section<String> s = sections.get(sectionName);
+		return (s != null) ? keys((String) sectionName, s) : null;
+	}
+	
+	/**
+	 * Returns an array of indexes in the indexed section.
+	 * @param sectionName
+	 * @return Object[]
+	 */
+	public Object[] getIndexedSectionKeys(Object sectionName) {
+		Section<Integer> s = idxSections.get(sectionName);
+		return (s != null) ? keys((String) sectionName, s) : null;
+	}
+	
+	// The keys of s in order, taken under the section lock so each key is seen once.
+	private Object[] keys(String sec, Section<?> s) {
+		ReentrantLock l = lock(sec);
+		try {
+			return s.keys().toArray();
+		} finally {
+			l.unlock();
+		}
+	}
+	
+	/**
+	 * Checks if section exists.
+	 * @param sectionName
+	 * @return true if section exists.
+	 */
+	public boolean sectionExists(Object sectionName) {
+		return sections.containsKey(sectionName);
+	}
+	
+	/**
+	 * Checks if indexed section exists.
+	 * @param sectionName
+	 * @return true if section exists.
+	 */
+	public boolean indexedSectionExists(Object sectionName) {
+		return idxSections.containsKey(sectionName);
+	}
+	
+	/**
+	 * Checks if a key exists in given section.
+	 * @param sectionName
+	 * @param key
+	 * @return true if key exists.
+	 */
+	public boolean keyExists(Object sectionName, Object key) {
+		Section<String> s = sections.get(sectionName);
+		return s != null && s.containsKey(key);
+	}
+	
+	/**
+	 * Checks if a index exists in given indexed section.
+	 * @param sectionName
+	 * @param key
+	 * @return true if key exists.
+	 */
+	public boolean indexedKeyExists(Object sectionName, Object key) {
+		Section<Integer> s = idxSections.get(sectionName);
+		return s != null && s.containsKey(key);
+	}
+	
+	/**
+	 * Makes writeFile() write a temp file next to the file and rename it over the file, see
+	 * IniFile.setAtomicWrite().
+	 * @param durability how far to force the new file to the disk, null to write the file in place.
+	 */
+	public void setAtomicWrite(Durability durability) {
+		atomicWrite = durability;
+	}
+	
+	/**
+	 * Returns how writeFile() replaces the file.
+	 * @return Durability, null if the file is written in place.
+	 */
+	public Durability getAtomicWrite() {
+		return atomicWrite;
+	}
+	
+	public boolean writeFile() {
+		return writeFile(null, false);
+	}
+	
+	public boolean writeFile(boolean forceWrite) {
+		return writeFile(null, forceWrite);
+	}
+	
+	public boolean writeFile(String topSection) {
+		return writeFile(topSection, false);
+	}
+	
+	/**
+	 * Writes a consistent copy of all sections to the file, readers and writers are not
+	 * held up while the file is written.
+	 * @param topSection not used.
+	 * @param forceWrite write even if nothing changed.
+	 * @return false if successful or nothing to write.
+	 */
+	public boolean writeFile(String topSection, boolean forceWrite) {
+		String fileName = iniFileName;
+		if (fileName == null || noWrite == true)
+			return true;
+		
+		fileLock.lock();
+		try {
+			if (forceWrite == false && changed == false)
+				return true;
+			
+			final Copy c = copy(true);
+			
+			AtomicFile.Contents contents = new AtomicFile.Contents() {
+				public void write(FileChannel ch) throws IOException {
+					IniWriter.ChannelSink sink = new IniWriter.ChannelSink(ch, Charset.defaultCharset());
+					c.write(sink);
+					sink.finish();
+				}
+			};
+			
+			Durability d = atomicWrite;
+			if (d != null) {
+				AtomicFile.write(Paths.get(fileName), d, contents);
+			} else {
+				FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					contents.write(ch);
+				} finally {
+					ch.close();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			changed = true;
+			return true;
+		} finally {
+			fileLock.unlock();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Creates a string of a consistent copy of all sections.
+	 * Does not write to file, only creates string.
+	 * @param topSection not used.
+	 * @return String
+	 */
+	public String stringFile(String topSection) {
+		if (iniFileName == null)
+			return null;
+		
+		StringBuilder sb = new StringBuilder();
+		try {
+			copy(false).write(sb);
+		} catch (IOException e) {
+			// a StringBuilder does not throw.
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Makes a read only copy of a consistent view of all sections, with variables expanded.
+	 * @return IniSnapshot
+	 */
+	public IniSnapshot freeze() {
+		return copy(false).freeze(iniFileName);
+	}
+	
+	/**
+	 * Prints all of the sections.
+	 */
+	@Override
+	public String toString() {
+		if (iniFileName == null)
+			return null;
+		
+		Copy c = copy(false);
+		StringBuilder sb = new StringBuilder(iniFileName);
+		for (int i = 0; i < c.secNames.length; i++) {
+			for (Map.Entry<String, String> e : c.secValues[i].entrySet())
+				sb.append('\n').append(c.secNames[i]).append("->").append(e.getKey()).append(" = ").append(e.getValue());
+		}
+		for (int i = 0; i < c.idxNames.length; i++) {
+			for (Map.Entry<Integer, String> e : c.idxValues[i].entrySet())
+				sb.append('\n').append(c.idxNames[i]).append("->").append(e.getKey()).append(" = ").append(e.getValue());
+		}
+		return sb.toString();
+	}
+	
+	// Takes every lock just long enough to copy the key/value pairs.
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Copy copy(boolean clearChanged) {
+		Copy c = new Copy();
+		lockAll();
+		try {
+			Map<String, Section<String>> secs = sections;
+			Map<String, Section<Integer>> idx = idxSections;
+			c.topComments = topComments;
+			c.secNames = secs.keySet().toArray(new String[secs.size()]);
+			c.secValues = new Map[c.secNames.length];
+			for (int i = 0; i < c.secNames.length; i++)
+				c.secValues[i] = secs.get(c.secNames[i]).copy();
+			c.idxNames = idx.keySet().toArray(new String[idx.size()]);
+			c.idxValues = new Map[c.idxNames.length];
+			for (int i = 0; i < c.idxNames.length; i++)
+				c.idxValues[i] = idx.get(c.idxNames[i]).copy();
+			if (clearChanged == true)
+				changed = false;
+		} finally {
+			unlockAll();
+		}
+		return c;
+	}
+	
+	// Must hold the lock of the section, the value of key changed.  added is true if key was
+	// added or removed, which can change the section owning it.  Other sections are not held up.
+	private void changed(Object key, boolean added) {
+		if (added == true)
+			ownersChanged();
+		expander.valueChanged(key);
+		changed = true;
+	}
+	
+	// Must hold the lock of the section, all of its keys were added, removed or moved.
+	private void changed(Collection<?> keys) {
+		ownersChanged();
+		for (Object key : keys)
+			expander.valueChanged(key);
+		changed = true;
+	}
+	
+	// All sections were replaced.
+	private void changedAll() {
+		ownersChanged();
+		expander.clear();
+		changed = true;
+	}
+	
+	// Counted before the owners are dropped, so owners() never keeps owners built before the change.
+	private void ownersChanged() {
+		ownerChanges.incrementAndGet();
+		owners.set(null);
+	}
+	
+	// The owners of the keys of the current sections.  Owners built while a key was added or
+	// removed are used once but not kept.
+	private Owners owners() {
+		Owners o = owners.get();
+		if (o != null)
+			return o;
+		
+		long start = ownerChanges.get();
+		o = new Owners(sections, idxSections);
+		if (owners.compareAndSet(null, o) == true && ownerChanges.get() != start)
+			owners.compareAndSet(o, null);
+		return o;
+	}
+	
+	// Must hold the lock of sec.
+	private void putSection(String sec, Section<String> s) {
+		dirLock.lock();
+		try {
+			Map<String, Section<String>> m = new LinkedHashMap<String, Section<String>>(sections);
+			m.put(sec, s);
+			sections = m;
+		} finally {
+			dirLock.unlock();
+		}
+	}
+	
+	// Must hold the lock of sec.
+	private void putIndexedSection(String sec, Section<Integer> s) {
+		dirLock.lock();
+		try {
+			Map<String, Section<Integer>> m = new LinkedHashMap<String, Section<Integer>>(idxSections);
+			m.put(sec, s);
+			idxSections = m;
+		} finally {
+			dirLock.unlock();
+		}
+	}
+	
+	private static int stripe(String sec) {
+		int h = (sec == null) ? 0 : sec.hashCode();
+		h ^= (h >>> 16);
+		return h & (STRIPES - 1);
+	}
+	
+	private ReentrantLock lock(String sec) {
+		ReentrantLock l = locks[stripe(sec)];
+		l.lock();
+		return l;
+	}
+	
+	// Locks two sections in stripe order so two renames can not wait on each other.
+	private ReentrantLock[] lock(String a, String b) {
+		int i = stripe(a);
+		int j = stripe(b);
+		if (i == j) {
+			locks[i].lock();
+			return new ReentrantLock[] { locks[i] };
+		}
+		ReentrantLock first = locks[Math.min(i, j)];
+		ReentrantLock second = locks[Math.max(i, j)];
+		first.lock();
+		second.lock();
+		return new ReentrantLock[] { second, first };
+	}
+	
+	private static void unlock(ReentrantLock[] held) {
+		for (ReentrantLock l : held)
+			l.unlock();
+	}
+	
+	// Section locks are always taken before dirLock.
+	private void lockAll() {
+		for (int i = 0; i < STRIPES; i++)
+			locks[i].lock();
+		dirLock.lock();
+	}
+	
+	private void unlockAll() {
+		dirLock.unlock();
+		for (int i = STRIPES - 1; i >= 0; i--)
+			locks[i].unlock();
+	}
+	
+	/**
+	 * The key/value pairs of one section.
+	 * Readers look up a key in entries without a lock.  Writers hold the section lock and change
+	 * one entry and its place in order, so a put(), remove() or move() is O(log n) whatever the
+	 * size of the section.  keys() and copy() walk order, so they also need the section lock.
+	 */
+	private static final class Section<K> {
+		// key to its value, read without a lock.
+		private final ConcurrentHashMap<K, Entry> entries;
+		// place of each key to the key, in file order.
+		private final TreeMap<Long, K> order;
+		// place of the first and last key, a key added or moved to an end gets the next place past it.
+		private long first = 0;
+		private long last = 0;
+		// next index of an indexed section.
+		int next;
+		
+		Section(int next) {
+			entries = new ConcurrentHashMap<K, Entry>();
+			order = new TreeMap<Long, K>();
+			this.next = next;
+		}
+		
+		Section(Map<K, String> values, int next) {
+			this(next);
+			for (Map.Entry<K, String> e : values.entrySet()) {
+				if (e.getKey() != null)
+					put(e.getKey(), e.getValue());
+			}
+		}
+		
+		// Must hold the section lock, or all of the locks for a batch().  The tree is copied in
+		// O(n) and the entries keep their places.
+		Section(Section<K> s) {
+			entries = new ConcurrentHashMap<K, Entry>(Math.max(16, s.entries.size() * 4 / 3 + 1));
+			for (Map.Entry<K, Entry> e : s.entries.entrySet())
+				entries.put(e.getKey(), new Entry(e.getValue().value, e.getValue().place));
+			order = new TreeMap<Long, K>(s.order);
+			first = s.first;
+			last = s.last;
+			next = s.next;
+		}
+		
+		String get(Object key) {
+			Entry e = (key != null) ? entries.get(key) : null;
+			return (e != null) ? e.value : null;
+		}
+		
+		boolean containsKey(Object key) {
+			return key != null && entries.containsKey(key);
+		}
+		
+		int size() {
+			return entries.size();
+		}
+		
+		// Must hold the section lock, key must not be null.  Returns true if key was added.
+		boolean put(K key, String value) {
+			if (key instanceof Integer && (Integer) key >= next)
+				next = (Integer) key + 1;
+			
+			Entry e = entries.get(key);
+			if (e != null) {
+				e.value = value;
+				return false;
+			}
+			e = new Entry(value, ++last);
+			order.put(e.place, key);
+			entries.put(key, e);
+			return true;
+		}
+		
+		// Must hold the section lock.
+		boolean remove(Object key) {
+			Entry e = (key != null) ? entries.remove(key) : null;
+			if (e == null)
+				return false;
+			order.remove(e.place);
+			return true;
+		}
+		
+		// Must hold the section lock.  Moves key by places, the key stops at the top or bottom.
+		void move(K key, int places) {
+			Entry e = entries.get(key);
+			if (places == Integer.MIN_VALUE || places == Integer.MAX_VALUE) {
+				order.remove(e.place);
+				e.place = (places == Integer.MIN_VALUE) ? --first : ++last;
+				order.put(e.place, key);
+				return;
+			}
+			
+			// swap places with the key above or below, one place at a time.
+			for (; places != 0; places -= Integer.signum(places)) {
+				Map.Entry<Long, K> n = (places < 0) ? order.lowerEntry(e.place) : order.higherEntry(e.place);
+				if (n == null)
+					break;
+				Entry o = entries.get(n.getValue());
+				order.put(e.place, n.getValue());
+				order.put(n.getKey(), key);
+				o.place = e.place;
+				e.place = n.getKey();
+			}
+		}
+		
+		// Must hold the section lock.
+		List<K> keys() {
+			return new ArrayList<K>(order.values());
+		}
+		
+		// Must hold the section lock, the key/value pairs in file order.
+		Map<K, String> copy() {
+			Map<K, String> m = new LinkedHashMap<K, String>();
+			for (K k : order.values())
+				m.put(k, entries.get(k).value);
+			return m;
+		}
+		
+		// The keys in no order, used to find the owners of keys.
+		Collection<K> keySet() {
+			return entries.keySet();
+		}
+		
+		TypedValue typed(Object key) {
+			Entry e = (key != null) ? entries.get(key) : null;
+			String v = (e != null) ? e.value : null;
+			if (v == null)
+				return TypedValue.EMPTY;
+			
+			TypedValue t = e.typed;
+			if (t == null || t.source != v) {
+				t = TypedValue.parse(v);
+				e.typed = t;
+			}
+			return t;
+		}
+	}
+	
+	// One value of a section, changed in place by writers.
+	private static final class Entry {
+		volatile String value;
+		// parsed form of value, used only while its source is the current value.
+		volatile TypedValue typed;
+		// key of the entry in Section.order, only used while holding the section lock.
+		long place;
+		
+		Entry(String value, long place) {
+			this.value = value;
+			this.place = place;
+		}
+	}
+	
+	/**
+	 * The first section holding each key, the same as IniFile.
+	 */
+	private static final class Owners {
+		private final Map<Object, String> keys = new HashMap<Object, String>();
+		private final Map<Object, String> indexes = new HashMap<Object, String>();
+		
+		Owners(Map<String, Section<String>> sections, Map<String, Section<Integer>> idxSections) {
+			for (Map.Entry<String, Section<String>> e : sections.entrySet())
+				add(e.getKey(), e.getValue().keySet(), false);
+			for (Map.Entry<String, Section<Integer>> e : idxSections.entrySet())
+				add(e.getKey(), e.getValue().keySet(), true);
+		}
+		
+		Owners() {
+			
+		}
+		
+		// Adds the keys of the next section in file order.
+		void add(String sec, Collection<?> sectionKeys, boolean indexed) {
+			Map<Object, String> m = indexed ? indexes : keys;
+			for (Object k : sectionKeys) {
+				if (m.containsKey(k) == false)
+					m.put(k, sec);
+			}
+		}
+		
+		String owner(Object key, boolean indexed) {
+			return indexed ? indexes.get(key) : keys.get(key);
+		}
+	}
+	
+	/**
+	 * The key/value pairs copied under all of the locks, used to write a consistent file.
+	 */
+	private static final class Copy {
+		List<String> topComments;
+		String[] secNames;
+		Map<String, String>[] secValues;
+		String[] idxNames;
+		Map<Integer, String>[] idxValues;
+		
+		// Same format as IniFile.writeFile().
+		void write(Appendable out) throws IOException {
+			IniWriter w = new IniWriter(out);
+			for (String s : topComments)
+				w.comment(s);
+			
+			for (int i = 0; i < secNames.length; i++) {
+				if (secNames[i] == null || secNames[i].endsWith("-NoWrite") == true)
+					continue;
+				w.section(secNames[i], false);
+				for (Map.Entry<String, String> e : secValues[i].entrySet())
+					w.value(e.getKey(), e.getValue());
+			}
+			
+			for (int i = 0; i < idxNames.length; i++) {
+				if (idxNames[i] == null || idxNames[i].endsWith("-NoWrite") == true)
+					continue;
+				w.section(idxNames[i], true);
+				for (Map.Entry<Integer, String> e : idxValues[i].entrySet())
+					w.value(e.getKey(), e.getValue());
+			}
+		}
+		
+		IniSnapshot freeze(String fileName) {
+			final Owners owners = new Owners();
+			final Map<String, Map<String, String>> secs = new HashMap<String, Map<String, String>>();
+			int count = 0;
+			for (int i = 0; i < secNames.length; i++) {
+				owners.add(secNames[i], secValues[i].keySet(), false);
+				secs.put(secNames[i], secValues[i]);
+				count += secValues[i].size();
+			}
+			final Map<String, Map<Integer, String>> idx = new HashMap<String, Map<Integer, String>>();
+			int idxCount = 0;
+			for (int i = 0; i < idxNames.length; i++) {
+				owners.add(idxNames[i], idxValues[i].keySet(), true);
+				idx.put(idxNames[i], idxValues[i]);
+				idxCount += idxValues[i].size();
+			}
+			VariableExpander ex = new VariableExpander("ConcurrentIniFile", new VariableExpander.Source() {
+				public String value(String sec, Object key, boolean indexed) {
+					Map<?, String> m = indexed ? idx.get(sec) : secs.get(sec);
+					return (m != null) ? m.get(key) : null;
+				}
+				
+				public String owner(Object key, boolean indexed) {
+					return owners.owner(key, indexed);
+				}
+				
+				public boolean changed(String sec, Object key, boolean indexed, String source) {
+					return false;
+				}
+			});
+			
+			int[] secStart = new int[secNames.length + 1];
+			String[] keys = new String[count];
+			String[] values = new String[count];
+			String[] expanded = new String[count];
+			int n = 0;
+			for (int i = 0; i < secNames.length; i++) {
+				secStart[i] = n;
+				for (Map.Entry<String, String> e : secValues[i].entrySet()) {
+					keys[n] = e.getKey();
+					values[n] = e.getValue();
+					expanded[n] = ex.expand(secNames[i], e.getKey(), e.getValue(), false);
+					n++;
+				}
+			}
+			secStart[secNames.length] = n;
+			
+			int[] idxStart = new int[idxNames.length + 1];
+			int[] idxKeys = new int[idxCount];
+			String[] idxVals = new String[idxCount];
+			String[] idxExpanded = new String[idxCount];
+			n = 0;
+			for (int i = 0; i < idxNames.length; i++) {
+				idxStart[i] = n;
+				for (Map.Entry<Integer, String> e : idxValues[i].entrySet()) {
+					idxKeys[n] = e.getKey();
+					idxVals[n] = e.getValue();
+					idxExpanded[n] = ex.expand(idxNames[i], e.getKey(), e.getValue(), true);
+					n++;
+				}
+			}
+			idxStart[idxNames.length] = n;
+			
+			return new IniSnapshot(fileName, Arrays.copyOf(secNames, secNames.length), secStart, keys, values, expanded,
+					Arrays.copyOf(idxNames, idxNames.length), idxStart, idxKeys, idxVals, idxExpanded);
+		}
+	}
+}
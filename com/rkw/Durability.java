@@ -0,0 +1,28 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+/**
+ * How far an atomic writeFile() goes to make sure the new file survives a crash,
+ * see IniFile.setAtomicWrite().  In every case the file is written to a temp file next to
+ * it and then renamed over it, so a reader sees either the old file or the new one.
+ */
+public enum Durability {
+	/**
+	 * Rename only, the new contents may still be in the page cache after a power failure and the
+	 * file can come back empty or old.  A crash of the process alone can not lose it.
+	 */
+	NONE,
+	
+	/**
+	 * Force the contents of the temp file to the disk before the rename.
+	 */
+	DATA,
+	
+	/**
+	 * Force the contents and metadata of the temp file before the rename and force the directory
+	 * after it, so the rename itself is on the disk when writeFile() returns.
+	 */
+	METADATA
+}
@@ -1,12 +1,39 @@
 package com.rkw;
 
-import java.util.LinkedHashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 public class IndexedValuePair {
-	// Holds the name/value pairs in a LinkedHashMap which retains Order-of-Insertion.
-	public Map<Integer, String> values = new LinkedHashMap<Integer, String>();
+	// Indexes and values in order of insertion, held in int and String arrays so an entry is not boxed.
+	// A removed entry is marked with REMOVED and dropped when the arrays are compacted.
+	private static final String REMOVED = new String("");
+	private int[] keys = new int[8];
+	private String[] vals = new String[8];
+	private int used = 0;
+	private int live = 0;
+	// set while entry i holds index base + i, an index is then found without a hash table.
+	private boolean dense = true;
+	private int base = 0;
+	// open addressing table of entry + 1 when the indexes are not dense, a slot can hold a removed entry.
+	private int[] table = null;
+	private int modCount = 0;
 	private int idx = 0;
+	// Parsed forms of the values read by the typed getters by entry, created on first use.
+	private TypedValue[] typed = null;
+	// set by IniFile.getIndexedSectionValues() once the values can be changed outside of the IniFile.
+	boolean handedOut = false;
+	
+	// The values as a Map in order of insertion, reads and writes go to the arrays.
+	private final Values view = new Values();
+	// values can still be replaced with another map as before, the methods then use that map.
+	public Map<Integer, String> values = view;
 	
 	public IndexedValuePair() {
 		
@@ -14,26 +41,344 @@ public class IndexedValuePair {
 	
 	// add a name/value pair to the list
 	public void add(String v) {
-		values.put(idx++, v);
+		put(idx++, v);
 	}
 	
-	// add a name/value pair to the list
+	// add a name/value pair to the list, the next index is kept past the largest index used.
 	public void add(Integer k, String v) {
-		values.put(k, v);
+		add(k.intValue(), v);
+	}
+	
+	// add a name/value pair to the list, the next index is kept past the largest index used.
+	public void add(int k, String v) {
+		put(k, v);
+		if (k >= idx)
+			idx = k + 1;
+	}
+	
+	// Adds values at the next indexes.
+	public void addAll(Collection<String> v) {
+		grow(used + v.size());
+		for (String s : v)
+			put(idx++, s);
 	}
 	
 	// add a name/value pair to the list
 	public void remove(Integer n) {
-		values.remove(n);
+		remove(n.intValue());
+	}
+	
+	public void remove(int n) {
+		if (values != view) {
+			values.remove(n);
+			return;
+		}
+		int e = find(n);
+		if (e != -1)
+			removeEntry(e);
+	}
+	
+	// Parsed forms of a value, parsed again if the value was changed through the values map.
+	TypedValue typed(Integer k) {
+		if (values != view) {
+			String v = values.get(k);
+			return (v != null) ? TypedValue.parse(v) : null;
+		}
+		
+		int e = find(k.intValue());
+		if (e == -1 || vals[e] == null)
+			return null;
+		
+		if (typed == null)
+			typed = new TypedValue[keys.length];
+		TypedValue t = typed[e];
+		if (t == null || t.source != vals[e]) {
+			t = TypedValue.parse(vals[e]);
+			typed[e] = t;
+		}
+		return t;
 	}
 	
 	// Retrieve value by key.
 	public String get(Integer n) {
-		return values.get(n);
+		return (n != null) ? get(n.intValue()) : null;
 	}
-
+	
+	// Retrieve value by key.
+	public String get(int n) {
+		if (values != view)
+			return values.get(n);
+		int e = find(n);
+		return (e != -1) ? vals[e] : null;
+	}
+	
+	/**
+	 * Returns the values of the indexes from to to - 1, null for an index that does not exist.
+	 * @param from first index.
+	 * @param to one past the last index.
+	 * @return String[]
+	 */
+	public String[] getRange(int from, int to) {
+		String[] r = new String[Math.max(0, to - from)];
+		if (dense == true && values == view) {
+			// one array copy of the entries that exist.
+			int lo = Math.max(from, base);
+			int hi = Math.min(to, base + used);
+			if (lo < hi)
+				System.arraycopy(vals, lo - base, r, lo - from, hi - lo);
+			for (int i = 0; i < r.length; i++) {
+				if (r[i] == REMOVED)
+					r[i] = null;
+			}
+		} else {
+			for (int i = 0; i < r.length; i++)
+				r[i] = get(from + i);
+		}
+		return r;
+	}
+	
 	// Retrieve value by key.
 	public Integer getNextIndex() {
 		return idx;
 	}
+	
+	// Entry of index n, -1 if not found.
+	private int find(int n) {
+		if (dense == true) {
+			int e = n - base;
+			return (e >= 0 && e < used && vals[e] != REMOVED) ? e : -1;
+		}
+		
+		int mask = table.length - 1;
+		int slot = mix(n) & mask;
+		int e;
+		while ((e = table[slot]) != 0) {
+			e--;
+			if (keys[e] == n && vals[e] != REMOVED)
+				return e;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	// Sets the value of an index, an index that exists keeps its place.
+	private String put(int n, String v) {
+		if (values != view)
+			return values.put(n, v);
+		int e = find(n);
+		if (e != -1) {
+			String old = vals[e];
+			vals[e] = v;
+			return old;
+		}
+		
+		if (dense == true && used > 0 && n != base + used)
+			dense = false;
+		if (used == keys.length)
+			grow(used + 1);
+		if (used == 0)
+			base = n;
+		keys[used] = n;
+		vals[used] = v;
+		if (typed != null)
+			typed[used] = null;
+		used++;
+		live++;
+		modCount++;
+		if (dense == false)
+			index(used - 1);
+		return null;
+	}
+	
+	private void removeEntry(int e) {
+		vals[e] = REMOVED;
+		if (typed != null)
+			typed[e] = null;
+		live--;
+		modCount++;
+		if (live == 0)
+			clear();
+		else if (live < used / 2)
+			compact();
+	}
+	
+	private void clear() {
+		Arrays.fill(vals, 0, used, null);
+		typed = null;
+		table = null;
+		used = 0;
+		live = 0;
+		dense = true;
+		base = 0;
+		modCount++;
+	}
+	
+	private void grow(int n) {
+		if (n <= keys.length)
+			return;
+		int size = Math.max(n, keys.length * 2);
+		keys = Arrays.copyOf(keys, size);
+		vals = Arrays.copyOf(vals, size);
+		if (typed != null)
+			typed = Arrays.copyOf(typed, size);
+	}
+	
+	// Drops the removed entries and builds the hash table again.
+	private void compact() {
+		int n = 0;
+		for (int e = 0; e < used; e++) {
+			if (vals[e] == REMOVED)
+				continue;
+			keys[n] = keys[e];
+			vals[n] = vals[e];
+			if (typed != null)
+				typed[n] = typed[e];
+			n++;
+		}
+		Arrays.fill(vals, n, used, null);
+		if (typed != null)
+			Arrays.fill(typed, n, used, null);
+		used = n;
+		
+		dense = true;
+		base = keys[0];
+		for (int e = 1; e < used && dense == true; e++)
+			dense = keys[e] == base + e;
+		table = null;
+		if (dense == false)
+			rehash(used);
+	}
+	
+	// Adds entry e to the hash table, the table is kept at most half full.
+	private void index(int e) {
+		if (table == null || used * 2 > table.length) {
+			rehash(used);
+			return;
+		}
+		insert(e);
+	}
+	
+	private void rehash(int n) {
+		int size = 16;
+		while (size < n * 2)
+			size <<= 1;
+		table = new int[size];
+		for (int e = 0; e < used; e++) {
+			if (vals[e] != REMOVED)
+				insert(e);
+		}
+	}
+	
+	private void insert(int e) {
+		int mask = table.length - 1;
+		int slot = mix(keys[e]) & mask;
+		while (table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = e + 1;
+	}
+	
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	// Map view of the arrays, boxes only the keys that pass through it.
+	private final class Values extends AbstractMap<Integer, String> {
+		@Override
+		public int size() {
+			return live;
+		}
+		
+		@Override
+		public boolean containsKey(Object k) {
+			return k instanceof Integer && find((Integer) k) != -1;
+		}
+		
+		@Override
+		public String get(Object k) {
+			return (k instanceof Integer) ? IndexedValuePair.this.get(((Integer) k).intValue()) : null;
+		}
+		
+		@Override
+		public String put(Integer k, String v) {
+			return IndexedValuePair.this.put(k, v);
+		}
+		
+		@Override
+		public String remove(Object k) {
+			if (k instanceof Integer == false)
+				return null;
+			int e = find((Integer) k);
+			if (e == -1)
+				return null;
+			String old = vals[e];
+			removeEntry(e);
+			return old;
+		}
+		
+		@Override
+		public void clear() {
+			IndexedValuePair.this.clear();
+		}
+		
+		@Override
+		public Set<Map.Entry<Integer, String>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, String>>() {
+				public int size() {
+					return live;
+				}
+				
+				public Iterator<Map.Entry<Integer, String>> iterator() {
+					return new Entries();
+				}
+			};
+		}
+	}
+	
+	// Iterates the entries in order of insertion.
+	private final class Entries implements Iterator<Map.Entry<Integer, String>> {
+		private int next = 0;
+		private int last = -1;
+		private int expected = modCount;
+		
+		public boolean hasNext() {
+			while (next < used && vals[next] == REMOVED)
+				next++;
+			return next < used;
+		}
+		
+		public Map.Entry<Integer, String> next() {
+			if (expected != modCount)
+				throw new ConcurrentModificationException();
+			if (hasNext() == false)
+				throw new NoSuchElementException();
+			last = next++;
+			final int e = last;
+			return new AbstractMap.SimpleEntry<Integer, String>(keys[e], vals[e]) {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				public String setValue(String v) {
+					vals[e] = v;
+					return super.setValue(v);
+				}
+			};
+		}
+		
+		public void remove() {
+			if (last == -1)
+				throw new IllegalStateException();
+			if (expected != modCount)
+				throw new ConcurrentModificationException();
+			// removed in place, compacting would move the entries still to be visited.
+			vals[last] = REMOVED;
+			if (typed != null)
+				typed[last] = null;
+			live--;
+			last = -1;
+			if (live == 0)
+				clear();
+			expected = modCount;
+		}
+	}
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes of one IniFile.batch() or ConcurrentIniFile.batch() call.  The changes are only
+ * recorded here, the file is not changed until work returns and every change has been found
+ * to apply.
+ *
+ * ini.batch(b -> {
+ * 	b.put("db", "host", "db2");
+ * 	b.remove("db", "port");
+ * 	b.removeSection("old");
+ * });
+ *
+ * A put or remove to a section that does not exist, and was not added earlier in the batch,
+ * fails the whole batch, as does a section of a LoadMode.LAZY file that can not be read.  Removing a key or a section that does not exist and adding a section
+ * that exists change nothing.
+ */
+public final class IniBatch {
+	/**
+	 * Makes the changes of a batch, see IniFile.batch().
+	 */
+	public interface Work {
+		void apply(IniBatch b);
+	}
+	
+	// one change, op is an IniJournal record type.
+	static final class Op {
+		final int op;
+		final String sec;
+		final String a;
+		final String b;
+		
+		Op(int op, String sec, String a, String b) {
+			this.op = op;
+			this.sec = sec;
+			this.a = a;
+			this.b = b;
+		}
+	}
+	
+	final List<Op> ops = new ArrayList<Op>();
+	
+	IniBatch() {
+		
+	}
+	
+	/**
+	 * Sets the value of a key, the key is added if it does not exist.
+	 * @param sec section name.
+	 * @param key key within section.
+	 * @param value value of the key.
+	 * @return this batch.
+	 */
+	public IniBatch put(String sec, String key, String value) {
+		return add(IniJournal.PUT, sec, key, value);
+	}
+	
+	/**
+	 * Removes a key.
+	 * @param sec section name.
+	 * @param key key within section.
+	 * @return this batch.
+	 */
+	public IniBatch remove(String sec, String key) {
+		return add(IniJournal.REMOVE, sec, key, null);
+	}
+	
+	/**
+	 * Adds a section with no key/value pairs if it does not exist.
+	 * @param sec section name.
+	 * @return this batch.
+	 */
+	public IniBatch addSection(String sec) {
+		return add(IniJournal.SECTION, sec, null, null);
+	}
+	
+	/**
+	 * Removes a section and all of its key/value pairs.
+	 * @param sec section name.
+	 * @return this batch.
+	 */
+	public IniBatch removeSection(String sec) {
+		return add(IniJournal.DROP, sec, null, null);
+	}
+	
+	/**
+	 * Sets the value of an index in an indexed section.
+	 * @param sec section name.
+	 * @param idx index within section.
+	 * @param value value of the index.
+	 * @return this batch.
+	 */
+	public IniBatch putIndexed(String sec, int idx, String value) {
+		return add(IniJournal.IPUT, sec, Integer.toString(idx), value);
+	}
+	
+	/**
+	 * Removes an index from an indexed section.
+	 * @param sec section name.
+	 * @param idx index within section.
+	 * @return this batch.
+	 */
+	public IniBatch removeIndexed(String sec, int idx) {
+		return add(IniJournal.IREMOVE, sec, Integer.toString(idx), null);
+	}
+	
+	/**
+	 * Adds an indexed section with no values if it does not exist.
+	 * @param sec section name.
+	 * @return this batch.
+	 */
+	public IniBatch addIndexedSection(String sec) {
+		return add(IniJournal.ISECTION, sec, null, null);
+	}
+	
+	/**
+	 * Removes an indexed section and all of its values.
+	 * @param sec section name.
+	 * @return this batch.
+	 */
+	public IniBatch removeIndexedSection(String sec) {
+		return add(IniJournal.IDROP, sec, null, null);
+	}
+	
+	/**
+	 * Returns the number of changes recorded.
+	 * @return int
+	 */
+	public int size() {
+		return ops.size();
+	}
+	
+	private IniBatch add(int op, String sec, String a, String b) {
+		if (sec == null || (a == null && (op == IniJournal.PUT || op == IniJournal.REMOVE)))
+			throw new NullPointerException("null section or key");
+		ops.add(new Op(op, sec, a, b));
+		return this;
+	}
+	
+	// Walks the changes over the current sections, returns the first change that can not be made.
+	Op check(Map<String, ?> sections, Map<String, ?> idxSections) {
+		// sections added or removed by the batch so far, true if the section exists.
+		Map<String, Boolean> secs = new HashMap<String, Boolean>();
+		Map<String, Boolean> idx = new HashMap<String, Boolean>();
+		for (Op o : ops) {
+			switch (o.op) {
+			case IniJournal.PUT:
+			case IniJournal.REMOVE:
+				if (exists(secs, o.sec, sections) == false)
+					return o;
+				break;
+			case IniJournal.IPUT:
+			case IniJournal.IREMOVE:
+				if (exists(idx, o.sec, idxSections) == false)
+					return o;
+				break;
+			case IniJournal.SECTION:
+				secs.put(o.sec, true);
+				break;
+			case IniJournal.DROP:
+				secs.put(o.sec, false);
+				break;
+			case IniJournal.ISECTION:
+				idx.put(o.sec, true);
+				break;
+			case IniJournal.IDROP:
+				idx.put(o.sec, false);
+				break;
+			}
+		}
+		return null;
+	}
+	
+	// The sections that exist before the batch and are changed before the batch removes them,
+	// indexed true for the indexed sections.  These are read before the batch changes anything.
+	Set<String> used(Map<String, ?> current, boolean indexed) {
+		Set<String> used = new LinkedHashSet<String>();
+		Set<String> dropped = new HashSet<String>();
+		for (Op o : ops) {
+			if (o.op == (indexed ? IniJournal.IDROP : IniJournal.DROP))
+				dropped.add(o.sec);
+			else if ((indexed ? (o.op == IniJournal.IPUT || o.op == IniJournal.IREMOVE) :
+					(o.op == IniJournal.PUT || o.op == IniJournal.REMOVE)) && dropped.contains(o.sec) == false &&
+					current.containsKey(o.sec) == true)
+				used.add(o.sec);
+		}
+		return used;
+	}
+	
+	private static boolean exists(Map<String, Boolean> m, String sec, Map<String, ?> current) {
+		Boolean b = m.get(sec);
+		if (b != null)
+			return b;
+		return current.containsKey(sec);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+/**
+ * One change to a key/value pair or a section of an IniFile, delivered to an IniListener.
+ * A change with a null key is a change to the whole section, ex. the section was added, removed,
+ * renamed, or reread from a LoadMode.LAZY file while its key/values were not in memory.  The
+ * key/values of a whole section change are not listed one by one.
+ */
+public final class IniChange {
+	public enum Type {
+		/**
+		 * The key or section did not exist before.
+		 */
+		ADDED,
+		
+		/**
+		 * The key or section no longer exists.
+		 */
+		REMOVED,
+		
+		/**
+		 * The value changed, or the keys of a section are not known.
+		 */
+		MODIFIED,
+		
+		/**
+		 * The key moved within its section, the value is the same.
+		 */
+		MOVED
+	}
+	
+	private final String section;
+	private final boolean indexed;
+	private final Object key;
+	private final String oldValue;
+	private final String newValue;
+	private final Type type;
+	
+	IniChange(String section, boolean indexed, Object key, String oldValue, String newValue, Type type) {
+		this.section = section;
+		this.indexed = indexed;
+		this.key = key;
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+		this.type = type;
+	}
+	
+	public String getSection() {
+		return section;
+	}
+	
+	/**
+	 * Returns true if the section is an indexed section.
+	 * @return boolean
+	 */
+	public boolean isIndexed() {
+		return indexed;
+	}
+	
+	/**
+	 * Returns the key name, an Integer for an indexed section, null for a change to the whole section.
+	 * @return Object
+	 */
+	public Object getKey() {
+		return key;
+	}
+	
+	/**
+	 * Returns the value before the change, null if the key was added.
+	 * @return String
+	 */
+	public String getOldValue() {
+		return oldValue;
+	}
+	
+	/**
+	 * Returns the value after the change, null if the key was removed.
+	 * @return String
+	 */
+	public String getNewValue() {
+		return newValue;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(type).append(' ').append(indexed ? '{' : '[').append(section).append(indexed ? '}' : ']');
+		if (key != null)
+			sb.append(' ').append(key).append(' ').append(oldValue).append(" -> ").append(newValue);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes found by IniFile.reloadIncremental().
+ * Sections are listed as added, removed or modified, the keys of modified sections are listed as
+ * added, removed or modified too.  Only key/values are compared, a change to a comment or to the
+ * spacing of a line is not listed.
+ *
+ * The keys of a section of a LoadMode.LAZY file that was not in memory are not known, such a
+ * section is listed as modified, with empty key lists, if its bytes changed or if it is not
+ * known whether it changed.
+ */
+public final class IniDiff {
+	private final boolean full;
+	private final List<String> addedSections = new ArrayList<String>();
+	private final List<String> removedSections = new ArrayList<String>();
+	private final Map<String, Keys> modifiedSections = new LinkedHashMap<String, Keys>();
+	private final List<String> addedIndexedSections = new ArrayList<String>();
+	private final List<String> removedIndexedSections = new ArrayList<String>();
+	private final Map<String, Keys> modifiedIndexedSections = new LinkedHashMap<String, Keys>();
+	
+	// added, removed and modified keys of one section.
+	private static final class Keys {
+		final List<Object> added = new ArrayList<Object>();
+		final List<Object> removed = new ArrayList<Object>();
+		final List<Object> modified = new ArrayList<Object>();
+	}
+	
+	IniDiff(boolean full) {
+		this.full = full;
+	}
+	
+	void added(String sec, boolean indexed) {
+		(indexed ? addedIndexedSections : addedSections).add(sec);
+	}
+	
+	void removed(String sec, boolean indexed) {
+		(indexed ? removedIndexedSections : removedSections).add(sec);
+	}
+	
+	// Compares the key/values of a section, a null map means the keys are not known.
+	<K> void compare(String sec, boolean indexed, Map<K, String> from, Map<K, String> to) {
+		Map<String, Keys> m = indexed ? modifiedIndexedSections : modifiedSections;
+		if (from == null || to == null) {
+			m.put(sec, new Keys());
+			return;
+		}
+		
+		Keys k = new Keys();
+		for (Map.Entry<K, String> e : to.entrySet()) {
+			String v = from.get(e.getKey());
+			if (v == null && from.containsKey(e.getKey()) == false)
+				k.added.add(e.getKey());
+			else if (v == null ? e.getValue() != null : v.equals(e.getValue()) == false)
+				k.modified.add(e.getKey());
+		}
+		for (K key : from.keySet()) {
+			if (to.containsKey(key) == false)
+				k.removed.add(key);
+		}
+		
+		if (k.added.size() + k.removed.size() + k.modified.size() > 0)
+			m.put(sec, k);
+	}
+	
+	/**
+	 * Returns true if the whole file was read again because there were no fingerprints to compare,
+	 * ex. the file was not opened with LoadMode.MAPPED or LAZY, or had unsaved changes.
+	 * The lists are still filled in by comparing the sections before and after.
+	 * @return boolean
+	 */
+	public boolean isFullReload() {
+		return full;
+	}
+	
+	/**
+	 * Returns true if no section or key/value changed.
+	 * @return boolean
+	 */
+	public boolean isEmpty() {
+		return addedSections.isEmpty() && removedSections.isEmpty() && modifiedSections.isEmpty() &&
+			addedIndexedSections.isEmpty() && removedIndexedSections.isEmpty() && modifiedIndexedSections.isEmpty();
+	}
+	
+	public List<String> getAddedSections() {
+		return Collections.unmodifiableList(addedSections);
+	}
+	
+	public List<String> getRemovedSections() {
+		return Collections.unmodifiableList(removedSections);
+	}
+	
+	public List<String> getModifiedSections() {
+		return Collections.unmodifiableList(new ArrayList<String>(modifiedSections.keySet()));
+	}
+	
+	public List<String> getAddedIndexedSections() {
+		return Collections.unmodifiableList(addedIndexedSections);
+	}
+	
+	public List<String> getRemovedIndexedSections() {
+		return Collections.unmodifiableList(removedIndexedSections);
+	}
+	
+	public List<String> getModifiedIndexedSections() {
+		return Collections.unmodifiableList(new ArrayList<String>(modifiedIndexedSections.keySet()));
+	}
+	
+	/**
+	 * Keys added to a modified section.
+	 * @param sec section name
+	 * @return list of key names, empty if the section was not modified.
+	 */
+	public List<Object> getAddedKeys(String sec) {
+		return keys(modifiedSections, sec, 0);
+	}
+	
+	public List<Object> getRemovedKeys(String sec) {
+		return keys(modifiedSections, sec, 1);
+	}
+	
+	public List<Object> getModifiedKeys(String sec) {
+		return keys(modifiedSections, sec, 2);
+	}
+	
+	/**
+	 * Indexes added to a modified indexed section.
+	 * @param sec section name
+	 * @return list of Integer indexes, empty if the section was not modified.
+	 */
+	public List<Object> getAddedIndexes(String sec) {
+		return keys(modifiedIndexedSections, sec, 0);
+	}
+	
+	public List<Object> getRemovedIndexes(String sec) {
+		return keys(modifiedIndexedSections, sec, 1);
+	}
+	
+	public List<Object> getModifiedIndexes(String sec) {
+		return keys(modifiedIndexedSections, sec, 2);
+	}
+	
+	private static List<Object> keys(Map<String, Keys> m, String sec, int which) {
+		Keys k = m.get(sec);
+		if (k == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(which == 0 ? k.added : which == 1 ? k.removed : k.modified);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(full ? "full" : "incremental");
+		sb.append(" added ").append(addedSections).append(addedIndexedSections);
+		sb.append(" removed ").append(removedSections).append(removedIndexedSections);
+		sb.append(" modified {");
+		String sep = "";
+		for (int i = 0; i < 2; i++) {
+			for (Map.Entry<String, Keys> e : (i == 0 ? modifiedSections : modifiedIndexedSections).entrySet()) {
+				Keys k = e.getValue();
+				sb.append(sep).append(e.getKey()).append(" +").append(k.added).append(" -").append(k.removed).append(" ~").append(k.modified);
+				sep = ", ";
+			}
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The subscriptions of an IniFile and the changes of the update in progress.
+ * Changes are collected per section and key until the change is complete, or the outermost
+ * update ends, and then sent by fire().  Each listener gets one list with only the changes its
+ * subscriptions match.
+ */
+final class IniEvents {
+	// one subscribe() call, key is null for a section prefix subscription.
+	private static final class Subscription {
+		final String section;
+		final Object key;
+		final IniListener listener;
+		
+		Subscription(String section, Object key, IniListener listener) {
+			this.section = section;
+			this.key = key;
+			this.listener = listener;
+		}
+		
+		boolean matches(Pending p) {
+			if (key == null)
+				return p.section.startsWith(section);
+			return p.section.equals(section) && (p.key == null || key.equals(p.key));
+		}
+	}
+	
+	// the change to one key, or to a whole section when key is null.
+	private static final class Pending {
+		final String section;
+		final boolean indexed;
+		final Object key;
+		final String oldValue;
+		String newValue;
+		IniChange.Type first;
+		IniChange.Type last;
+		boolean moved;
+		
+		Pending(String section, boolean indexed, Object key, String oldValue) {
+			this.section = section;
+			this.indexed = indexed;
+			this.key = key;
+			this.oldValue = oldValue;
+		}
+		
+		// the net change, null if there is none.
+		IniChange change() {
+			IniChange.Type t;
+			if (key == null) {
+				if (first == IniChange.Type.ADDED && last == IniChange.Type.REMOVED)
+					return null;
+				t = (first == IniChange.Type.ADDED) ? IniChange.Type.ADDED : (last == IniChange.Type.REMOVED) ? IniChange.Type.REMOVED : IniChange.Type.MODIFIED;
+			} else if (oldValue == null && newValue == null) {
+				return null;
+			} else if (oldValue == null) {
+				t = IniChange.Type.ADDED;
+			} else if (newValue == null) {
+				t = IniChange.Type.REMOVED;
+			} else if (oldValue.equals(newValue) == false) {
+				t = IniChange.Type.MODIFIED;
+			} else if (moved == true) {
+				t = IniChange.Type.MOVED;
+			} else {
+				return null;
+			}
+			return new IniChange(section, indexed, key, oldValue, newValue, t);
+		}
+	}
+	
+	private final List<Subscription> subs = new CopyOnWriteArrayList<Subscription>();
+	// section name and key to the change, section and key changes are kept apart.
+	private final Map<List<Object>, Pending> pending = new LinkedHashMap<List<Object>, Pending>();
+	private int depth = 0;
+	
+	void subscribe(String section, Object key, IniListener l) {
+		subs.add(new Subscription(section, key, l));
+	}
+	
+	boolean unsubscribe(IniListener l) {
+		boolean found = false;
+		for (Subscription s : subs) {
+			if (s.listener == l)
+				found |= subs.remove(s);
+		}
+		return found;
+	}
+	
+	// false when there is no one to tell, the callers skip building changes.
+	boolean active() {
+		return subs.isEmpty() == false;
+	}
+	
+	void begin() {
+		depth++;
+	}
+	
+	void end() {
+		if (depth > 0)
+			depth--;
+	}
+	
+	boolean updating() {
+		return depth > 0;
+	}
+	
+	// Called by each change once it is complete, sends the changes unless an update is in progress.
+	void fire() {
+		if (depth == 0 && pending.isEmpty() == false)
+			flush();
+	}
+	
+	// A key/value changed, a null value is a key that does not exist.
+	void value(String sec, boolean indexed, Object key, String oldValue, String newValue) {
+		if (subs.isEmpty() == true)
+			return;
+		Pending p = pending(sec, indexed, key, oldValue);
+		p.newValue = newValue;
+	}
+	
+	void moved(String sec, Object key, String value) {
+		if (subs.isEmpty() == true)
+			return;
+		Pending p = pending(sec, false, key, value);
+		p.newValue = value;
+		p.moved = true;
+	}
+	
+	// A whole section was added, removed or changed in a way where the keys are not known.
+	void section(String sec, boolean indexed, IniChange.Type type) {
+		if (subs.isEmpty() == true)
+			return;
+		Pending p = pending(sec, indexed, null, null);
+		if (p.first == null)
+			p.first = type;
+		p.last = type;
+	}
+	
+	// Every key that differs between two versions of a section, a null map means the keys are not known.
+	<K> void compare(String sec, boolean indexed, Map<K, String> from, Map<K, String> to) {
+		if (subs.isEmpty() == true)
+			return;
+		if (from == null || to == null) {
+			section(sec, indexed, IniChange.Type.MODIFIED);
+			return;
+		}
+		for (Map.Entry<K, String> e : to.entrySet()) {
+			String v = from.get(e.getKey());
+			if (from.containsKey(e.getKey()) == false || Objects.equals(v, e.getValue()) == false)
+				value(sec, indexed, e.getKey(), v, e.getValue());
+		}
+		for (Map.Entry<K, String> e : from.entrySet()) {
+			if (to.containsKey(e.getKey()) == false)
+				value(sec, indexed, e.getKey(), e.getValue(), null);
+		}
+	}
+	
+	private Pending pending(String sec, boolean indexed, Object key, String oldValue) {
+		List<Object> k = new ArrayList<Object>(3);
+		k.add(sec);
+		k.add(indexed);
+		k.add(key);
+		Pending p = pending.get(k);
+		if (p == null) {
+			p = new Pending(sec, indexed, key, oldValue);
+			pending.put(k, p);
+		}
+		return p;
+	}
+	
+	// Sends the net changes, a listener that changes the IniFile starts a new update.
+	private void flush() {
+		List<Pending> all = new ArrayList<Pending>(pending.values());
+		pending.clear();
+		
+		Map<IniListener, List<IniChange>> out = new IdentityHashMap<IniListener, List<IniChange>>();
+		for (Pending p : all) {
+			IniChange c = null;
+			for (Subscription s : subs) {
+				if (s.matches(p) == false)
+					continue;
+				if (c == null && (c = p.change()) == null)
+					break;
+				List<IniChange> l = out.get(s.listener);
+				if (l == null) {
+					l = new ArrayList<IniChange>();
+					out.put(s.listener, l);
+				}
+				if (l.isEmpty() == true || l.get(l.size() - 1) != c)
+					l.add(c);
+			}
+		}
+		
+		// in the order the listeners subscribed.
+		for (Subscription s : subs) {
+			List<IniChange> l = out.remove(s.listener);
+			if (l == null)
+				continue;
+			try {
+				s.listener.changed(l);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -58,22 +58,42 @@
  */
 package com.rkw;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Used to read and parse an .ti file.
@@ -85,13 +105,77 @@ public class IniFile {
 	// Holds the .ti file in a LinkedHashMap which retains Order-of-Insertion.
 	private Map<String, ValuePairMap> sections = new LinkedHashMap<String, ValuePairMap>();
 	private Map<String, IndexedValuePair> idxSections = new LinkedHashMap<String, IndexedValuePair>();
-	private Map<String, String> secComments = new LinkedHashMap<String, String>();
-	private Map<String, String> kvComments = new LinkedHashMap<String, String>();
+	private Map<String, String> secComments = new CompactValueMap();
+	private Map<String, String> kvComments = new CompactValueMap();
 	private List<String> topComments = new ArrayList<String>();
 	private String iniFileName = null;
 	private boolean changed = false;
 	private boolean noWrite = false;
 	private String header = null;
+	// key name to the name of the first section holding it, used by expandVariables().
+	// Built on first use and then kept up to date, null when it needs to be built again.
+	private Map<String, String> keyOwners = null;
+	private Map<Integer, String> indexOwners = null;
+	// fully expanded values of section/key pairs that hold variables.
+	private final VariableExpander expander = new VariableExpander("IniFile", new VariableExpander.Source() {
+		public String value(String sec, Object key, boolean indexed) {
+			if (indexed == false) {
+				ValuePairMap vpm = section(sec);
+				return (vpm != null) ? vpm.values.get(key) : null;
+			}
+			IndexedValuePair ivp = indexedSection(sec);
+			return (ivp != null) ? ivp.values.get(key) : null;
+		}
+		
+		public String owner(Object key, boolean indexed) {
+			if (keyOwners == null)
+				buildKeyIndex();
+			String owner = ownerOf(key, indexed);
+			if (indexed == false && owner != null && holds(owner, (String) key) == false) {
+				// removed straight from the values map of the section, find the next owner.
+				findOwner(owners(false), key, false);
+				owner = keyOwners.get(key);
+			}
+			return owner;
+		}
+		
+		// only the sections handed out by getSectionValues() can change without valueChanged().
+		public boolean changed(String sec, Object key, boolean indexed, String source) {
+			if (indexed == false) {
+				ValuePairMap vpm = sections.get(sec);
+				return vpm != null && vpm.handedOut == true && vpm.values.get(key) != source;
+			}
+			IndexedValuePair ivp = idxSections.get(sec);
+			return ivp != null && ivp.handedOut == true && ivp.values.get(key) != source;
+		}
+	});
+	// smallest chunk of a LoadMode.PARALLEL file parsed on its own.
+	private static final long MIN_CHUNK = 1L << 20;
+	// most files read at once by loadAll(), the reads wait on the disk more than the CPU.
+	private static final int LOAD_THREADS = 16;
+	// set when the file was opened with LoadMode.LAZY, sections not parsed yet hold null.
+	private LazySections lazy = null;
+	private int sectionCacheSize = 0;
+	// how the file was opened by open(Path, LoadMode), used by reread().
+	private Path loadPath = null;
+	private LoadMode loadMode = null;
+	private Charset loadCharset = null;
+	// set when the file was opened with openCompiled(), used by reread().
+	private Path compiledPath = null;
+	// section fingerprints of a MAPPED or LAZY file as it was read, used by reloadIncremental().
+	private SectionPrints prints = null;
+	// listeners and the changes of the update in progress.
+	private final IniEvents events = new IniEvents();
+	// set to write the file with a temp file and a rename.
+	private Durability atomicWrite = null;
+	// set by enableJournal(), every change is appended to it.
+	private IniJournal journal = null;
+	// cleared by setCompactMaps(), new sections keep their values in a LinkedHashMap then.
+	private boolean compactMaps = true;
+	// shares the Strings of repeated keys and values of the files read, null to not share them.
+	private SymbolTable symbols = new SymbolTable();
+	// false once setSymbolTable() is called, a table the IniFile made is emptied after each load.
+	private boolean ownSymbols = true;
 	
 	/**
 	 * Set to true if file was found.
@@ -121,219 +205,36 @@ public class IniFile {
 			open(fileName);
 	}
 	
+	/**
+	 * Constructor for the IniFile Class.
+	 * @param file path of .ti type file to create or read.
+	 * @param mode how the file is read, see LoadMode.
+	 */
+	public IniFile(Path file, LoadMode mode) {
+		iniFileName = file.toString();
+		this.noWrite = false;
+		open(file, mode);
+	}
+	
 	/**
 	 * Takes a string that has a .ini format and parses it.
 	 * You can pass a null to the constructor and use this method to fill the list.
 	 * @param iniData - ini formated string
 	 */
 	public void inputString(String fileName, String iniData) {
-		String str;
-		String[] arr = iniData.split("\n");
-        ValuePairMap vpm = null;
-        IndexedValuePair ivp = null;
-        char endChar = '\0';
-        boolean isIndexed = false;
-        iniFileName = fileName;
-        boolean isTop = true;
-        
-        // read each line from string.
-        for (int i = 0; i < arr.length; i++) {
-        	str = arr[i];
-        	
-        	str = str.trim();
-        	
-        	if (str == null || str.length() == 0)
-        		continue;
-        	
-        	if (str.charAt(0) == '#' && isTop == true) {
-        		topComments.add(str);
-        		continue;
-        	}
-        	
-        	isTop = false;
-        	
-        	int x = str.lastIndexOf(";");		// remove trailing comment from line.
-        	if (x != -1)
-        		str = str.substring(0, x);
-        	
-        	str = str.trim();					// remove whitespace from start and end
-        	
-        	if (str == null || str.length() == 0)
-        		continue;
-        	
-        	if (str.charAt(0) == ';' || str.charAt(0) == '#') {
-        		topComments.add(str);
-        		continue;						// skip comments
-        	}
-        	
-//        	System.out.println(str);
-        	
-        	if (str.charAt(0) == '[') {			// section found
-        		isIndexed = false;
-        		int e = str.indexOf(']');
-        		
-        		String key = str.substring(1, e);
-//        		System.out.println("key " + key);
-        		key = key.trim();
-        		vpm = sections.get(key);
-        		if( vpm == null) {
-        			sections.put(key, new ValuePairMap());
-        			vpm = sections.get(key);
-        		}
-        		
-        		int j = str.indexOf(';');
-        		if (j > 0) {
-        			secComments.put(key, str.substring(j));
-        		}
-        	} else if (str.charAt(0) == '{') {			// indexed section found
-        		isIndexed = true;
-        		int e = str.indexOf('}');
-        		String key = str.substring(1, (e - 1));
-        		key = key.trim();
-        		ivp = idxSections.get(key);
-        		if( ivp == null) {
-        			idxSections.put(key, new IndexedValuePair());
-        			ivp = idxSections.get(key);
-        		}
-        		
-        		int j = str.indexOf(';');
-        		if (j > 0) {
-        			secComments.put(key, str.substring(j));
-        		}
-        	} else {
-        		x = str.indexOf('=');
-        		
-        		int j = str.indexOf(';');
-        		
-        		if (x != -1) {
-        			String k = str.substring(0, x).trim();
-        			if (j > 0) {
-            			kvComments.put(k, str.substring(j));
-            			str = str.substring(0, j).trim();		// remove comment.
-            		}
-        			
-        			if (isIndexed == false) {
-	        			String s = vpm.get(k);
-	        			String v = str.substring((x + 1)).trim();
-	        			
-	        			if (v == null || v.length() <= 0) {
-	        				vpm.add(k,  "");
-	        				continue;
-	        			}
-	        			
-	        			// if value starts with a quote then get rest of string value.
-	        			if (v.charAt(0) == '"') {
-	        				endChar = v.charAt(0);
-	        				
-	        				boolean endQuote = false;
-	        				for (int z = 1; z < v.length(); z++) {
-	        					if (v.charAt(z) == endChar) {
-	        						endQuote = true;
-	        						break;
-	        					}
-	        				}
-	        				
-	        				if (endQuote == false) {
-	        					for (int kw = ++i; kw < arr.length; kw++) {
-		        					str = arr[kw];
-		        					
-		        					for (int z = 0; z < str.length(); z++) {
-		        						v += str.charAt(z);
-		        						if (str.charAt(z) == endChar) {
-		        							endQuote = true;
-		        						}
-		        					}
-		        					if (endQuote == true)
-		        						break;
-	        					}
-	        				}
-	        			} else if (v.charAt(v.length() - 1) == '\\') {	// trailing backslash
-	        				i++;
-	        				for (; i < arr.length; i++) {
-	        					str = arr[i];
-	        		        	int x2 = str.lastIndexOf(";");		// remove trailing comment from line.
-	        		        	if (x2 != -1)
-	        		        		str = str.substring(0, x2);
-	        		        	
-	        		        	str = str.trim();					// remove whitespace from start and end
-	        		        	
-	        		        	if (str == null || str.length() == 0)
-	        		        		continue;
-	        		        	
-	        		        	if (str.charAt(0) == ';')
-	        		        		continue;						// skip comments
-	        		        	
-	        		        	if (str.charAt(str.length() - 1) != '\\') {
-	        		        		v += " " + str;
-	        		        		break;
-	        		        	} else {
-	        		        		v += " " + str.substring(0, str.length() - 1);
-	        		        	}
-	        				}
-	        			}
-	        			
-	        			if (s == null) {
-		        			// add name/value pair to hashed link list
-		        			vpm.add(k, v);
-	        			} else {
-	        				// If key already exists then append value to existing value.
-	        				// if you want a newline then place \n at end of 'desc =' value.
-	        				s += v;
-	        				vpm.add(k, s);
-	        			}
-//	        			System.out.println(str.substring(0, x).trim() + " " + str.substring((x + 1)).trim());
-        			} else {
-        				Integer idx = Integer.parseInt(k);
-        				String s = ivp.get(idx);
-	        			String v = str.substring((x + 1)).trim();
-	        			
-	        			if (v == null || v.length() <= 0) {
-	        				ivp.add(idx,  "");
-	        				continue;
-	        			}
-	        			
-	        			// if value starts with a quote then get rest of string value.
-	        			if (v.charAt(0) == '"') {
-	        				endChar = v.charAt(0);
-	        				
-	        				boolean endQuote = false;
-	        				for (int z = 1; z < v.length(); z++) {
-	        					if (v.charAt(z) == endChar) {
-	        						endQuote = true;
-	        						break;
-	        					}
-	        				}
-	        				
-	        				if (endQuote == false) {
-	        					for (int kw = ++i; kw < arr.length; kw++) {
-		        					str = arr[kw];
-		        					
-		        					for (int z = 0; z < str.length(); z++) {
-		        						v += str.charAt(z);
-		        						if (str.charAt(z) == endChar) {
-		        							endQuote = true;
-		        						}
-		        					}
-		        					if (endQuote == true)
-		        						break;
-	        					}
-	        				}
-	        			}
-	        			
-	        			if (s == null) {
-		        			// add name/value pair to hashed link list
-		        			ivp.add(v);
-	        			} else {
-	        				// If key already exists then append value to existing value.
-	        				// if you want a newline then place \n at end of 'desc =' value.
-	        				s += v;
-	        				ivp.add(idx, s);
-	        			}
-//	        			System.out.println(str.substring(0, x).trim() + " " + str.substring((x + 1)).trim());
-        			}
-        		}
-        	}
-        }
+		inputString(fileName, (CharSequence) iniData);
+	}
+	
+	/**
+	 * Takes a character sequence that has a .ini format and parses it.
+	 * You can pass a null to the constructor and use this method to fill the list.
+	 * @param fileName name used when the list is written.
+	 * @param iniData - ini formated characters
+	 */
+	public void inputString(String fileName, CharSequence iniData) {
+		iniFileName = fileName;
+		prints = null;
+		IniParser.parse(iniData, new Loader());
 	}
 	
 	/**
@@ -365,29 +266,418 @@ public class IniFile {
 	 * @param changed
 	 */
 	public void setChangedFlag(boolean changed) {
+		if (this.changed == true && changed == false)
+			prints = null;		// the sections no longer match the fingerprints.
 		this.changed = changed;
 	}
 	
+	/**
+	 * Calls listener after each update that changes key in section, or adds, removes or
+	 * renames the whole section.  Use an Integer key for an indexed section.
+	 * The changes of an update are delivered in one call, see beginUpdate().
+	 * @param sec section name
+	 * @param key key within section
+	 * @param listener called with the changes.
+	 */
+	public void subscribe(String sec, Object key, IniListener listener) {
+		events.subscribe(sec, key, listener);
+	}
+	
+	/**
+	 * Calls listener after each update that changes a section whose name starts with prefix.
+	 * @param prefix start of the section names, "" for all sections.
+	 * @param listener called with the changes.
+	 */
+	public void subscribe(String prefix, IniListener listener) {
+		events.subscribe(prefix, null, listener);
+	}
+	
+	/**
+	 * Removes all the subscriptions of listener.
+	 * @param listener the listener.
+	 * @return true if listener was not subscribed.
+	 */
+	public boolean unsubscribe(IniListener listener) {
+		return events.unsubscribe(listener) == false;
+	}
+	
+	/**
+	 * Starts a bulk update, listeners are not called until the matching endUpdate().
+	 * A key changed more than once is delivered once with its first old value and last new value,
+	 * a key added and then removed is not delivered at all.  Updates can be nested, the changes
+	 * are delivered when the outermost one ends.  reread() and reloadIncremental() are one
+	 * update each.
+	 */
+	public void beginUpdate() {
+		events.begin();
+	}
+	
+	/**
+	 * Ends a bulk update started by beginUpdate() and delivers its changes.
+	 */
+	public void endUpdate() {
+		events.end();
+		done();
+	}
+	
+	/**
+	 * Makes the changes work records in an IniBatch as one update, all of them or none of them.
+	 * Nothing is changed until work returns, so nothing is changed if work throws or a change can
+	 * not be made, see IniBatch.  The sections of a LoadMode.LAZY file that are changed are read
+	 * before any change is made.  Listeners are called once, the key and expansion caches are
+	 * dropped once instead of per key, and the journal is written once with the changes grouped
+	 * so a crash replays all or none of them.
+	 * @param work records the changes.
+	 * @return true if work threw or a change can not be made, else false.
+	 */
+	public boolean batch(IniBatch.Work work) {
+		IniBatch b = new IniBatch();
+		try {
+			work.apply(b);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return true;
+		}
+		
+		IniBatch.Op bad = b.check(sections, idxSections);
+		if (bad != null) {
+			System.err.println("IniFile: section " + bad.sec + " does not exist, batch not applied.");
+			return true;
+		}
+		if (b.ops.isEmpty() == true)
+			return false;
+		
+		// read and pin the LAZY sections changed first, so every change below finds its section.
+		for (String sec : b.used(sections, false)) {
+			if (sectionForUpdate(sec) == null) {
+				System.err.println("IniFile: section " + sec + " could not be read, batch not applied.");
+				return true;
+			}
+		}
+		for (String sec : b.used(idxSections, true)) {
+			if (indexedSectionForUpdate(sec) == null) {
+				System.err.println("IniFile: section " + sec + " could not be read, batch not applied.");
+				return true;
+			}
+		}
+		
+		keyOwners = null;		// rebuilt when next needed.
+		indexOwners = null;
+		expander.clear();
+		int start = (journal != null) ? journal.batch() : 0;
+		events.begin();
+		try {
+			for (IniBatch.Op o : b.ops)
+				replay(o.op, o.sec, o.a, o.b, null);
+		} finally {
+			events.end();
+		}
+		if (journal != null)
+			journal.endBatch(start);
+		done();
+		
+		return false;
+	}
+	
+	// Comment lines found before the first section, used by ConcurrentIniFile.
+	List<String> getTopComments() {
+		return topComments;
+	}
+	
 	/**
 	 * Rereads the file, discarding all changes.
 	 */
 	public void reread() {
+		Map<String, ValuePairMap> oldSecs = null;
+		Map<String, IndexedValuePair> oldIdx = null;
+		if (events.active() == true) {
+			oldSecs = new LinkedHashMap<String, ValuePairMap>(sections);
+			oldIdx = new LinkedHashMap<String, IndexedValuePair>(idxSections);
+		}
+		
+		prints = null;
 		sections.clear();
-		open(iniFileName);
+		idxSections.clear();
+		secComments.clear();
+		kvComments.clear();
+		topComments.clear();
+		header = null;
+		lazy = null;
+		keyOwners = null;
+		indexOwners = null;
+		expander.clear();
+		if (compiledPath != null)
+			loadCompiled(compiledPath);
+		else if (loadPath != null)
+			open(loadPath, loadMode, loadCharset);
+		else
+			open(iniFileName);
 		changed = false;
+		
+		if (oldSecs != null) {
+			reloaded(oldSecs, oldIdx);
+			done();
+		}
+	}
+	
+	// Records the changes between the sections before and after a reread().
+	private void reloaded(Map<String, ValuePairMap> oldSecs, Map<String, IndexedValuePair> oldIdx) {
+		for (String name : oldSecs.keySet()) {
+			if (sections.containsKey(name) == false)
+				events.section(name, false, IniChange.Type.REMOVED);
+		}
+		for (Map.Entry<String, ValuePairMap> e : sections.entrySet()) {
+			ValuePairMap o = oldSecs.get(e.getKey());
+			if (oldSecs.containsKey(e.getKey()) == false)
+				events.section(e.getKey(), false, IniChange.Type.ADDED);
+			else
+				events.compare(e.getKey(), false, (o != null) ? o.values : null, (e.getValue() != null) ? e.getValue().values : null);
+		}
+		
+		for (String name : oldIdx.keySet()) {
+			if (idxSections.containsKey(name) == false)
+				events.section(name, true, IniChange.Type.REMOVED);
+		}
+		for (Map.Entry<String, IndexedValuePair> e : idxSections.entrySet()) {
+			IndexedValuePair o = oldIdx.get(e.getKey());
+			if (oldIdx.containsKey(e.getKey()) == false)
+				events.section(e.getKey(), true, IniChange.Type.ADDED);
+			else
+				events.compare(e.getKey(), true, (o != null) ? o.values : null, (e.getValue() != null) ? e.getValue().values : null);
+		}
+	}
+	
+	/**
+	 * Rereads only the sections whose bytes changed since the file was read, discarding all changes.
+	 * Each section of a file opened with LoadMode.MAPPED or LAZY has a fingerprint of its bytes,
+	 * the file is scanned for section boundaries and only the sections with a new fingerprint are
+	 * parsed.  Sections that did not change keep their ValuePairMap or IndexedValuePair, sections
+	 * that changed are refilled in place.
+	 * A file opened any other way, or with unsaved changes, is read again with reread().
+	 * @return the sections and key/values that were added, removed or modified.
+	 */
+	public IniDiff reloadIncremental() {
+		if (prints == null || loadPath == null || changed == true || Files.exists(loadPath) == false)
+			return fullReload();
+		
+		SectionPrints np;
+		IniDiff diff = new IniDiff(false);
+		Set<Object> keys = new HashSet<Object>();
+		boolean unknown = false;
+		Map<String, ValuePairMap> secs = new LinkedHashMap<String, ValuePairMap>();
+		Map<String, IndexedValuePair> idx = new LinkedHashMap<String, IndexedValuePair>();
+		
+		try {
+			np = SectionPrints.scan(loadPath, loadCharset);
+			FileChannel ch = FileChannel.open(loadPath, StandardOpenOption.READ);
+			try {
+				if (np.topCrc != prints.topCrc) {
+					topComments.clear();
+					header = null;
+					IniParser.parse(ch, 0, (np.topEnd == -1) ? ch.size() : np.topEnd, loadCharset, new Loader());
+				}
+				
+				for (Map.Entry<String, long[]> e : np.ranges.entrySet()) {
+					String name = e.getKey();
+					ValuePairMap old = sections.get(name);		// raw get, null if a LAZY section is not in memory.
+					boolean existed = prints.ranges.containsKey(name);
+					if (existed == true && np.crcs.get(name).equals(prints.crcs.get(name))) {
+						secs.put(name, old);
+					} else if (existed == true && old == null) {
+						secs.put(name, null);		// read when it is next used.
+						diff.compare(name, false, null, null);
+						events.section(name, false, IniChange.Type.MODIFIED);
+						unknown = true;
+					} else {
+						ValuePairMap vpm = parseRanges(ch, e.getValue()).sections.get(name);
+						keys.addAll(vpm.values.keySet());
+						if (existed == false) {
+							diff.added(name, false);
+							events.section(name, false, IniChange.Type.ADDED);
+							secs.put(name, vpm);
+						} else {
+							keys.addAll(old.values.keySet());
+							diff.compare(name, false, old.values, vpm.values);
+							events.compare(name, false, old.values, vpm.values);
+							old.values.clear();
+							old.values.putAll(vpm.values);
+							secs.put(name, old);
+						}
+					}
+				}
+				
+				for (Map.Entry<String, long[]> e : np.idxRanges.entrySet()) {
+					String name = e.getKey();
+					IndexedValuePair old = idxSections.get(name);		// raw get
+					boolean existed = prints.idxRanges.containsKey(name);
+					if (existed == true && np.idxCrcs.get(name).equals(prints.idxCrcs.get(name))) {
+						idx.put(name, old);
+					} else if (existed == true && old == null) {
+						idx.put(name, null);
+						diff.compare(name, true, null, null);
+						events.section(name, true, IniChange.Type.MODIFIED);
+						unknown = true;
+					} else {
+						IndexedValuePair ivp = parseRanges(ch, e.getValue()).idxSections.get(name);
+						keys.addAll(ivp.values.keySet());
+						if (existed == false) {
+							diff.added(name, true);
+							events.section(name, true, IniChange.Type.ADDED);
+							idx.put(name, ivp);
+						} else {
+							keys.addAll(old.values.keySet());
+							diff.compare(name, true, old.values, ivp.values);
+							events.compare(name, true, old.values, ivp.values);
+							old.values.clear();
+							for (Map.Entry<Integer, String> v : ivp.values.entrySet())
+								old.add(v.getKey(), v.getValue());
+							idx.put(name, old);
+						}
+					}
+				}
+			} finally {
+				ch.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return fullReload();
+		}
+		
+		for (String name : sections.keySet()) {
+			if (secs.containsKey(name) == false) {
+				diff.removed(name, false);
+				events.section(name, false, IniChange.Type.REMOVED);
+				ValuePairMap old = sections.get(name);
+				if (old != null)
+					keys.addAll(old.values.keySet());
+				else
+					unknown = true;
+				secComments.remove(name);
+				if (lazy != null)
+					lazy.forget(name, false);
+			}
+		}
+		for (String name : idxSections.keySet()) {
+			if (idx.containsKey(name) == false) {
+				diff.removed(name, true);
+				events.section(name, true, IniChange.Type.REMOVED);
+				IndexedValuePair old = idxSections.get(name);
+				if (old != null)
+					keys.addAll(old.values.keySet());
+				else
+					unknown = true;
+				secComments.remove(name);
+				if (lazy != null)
+					lazy.forget(name, true);
+			}
+		}
+		
+		// the first section holding a key wins, so a change in section order can change any expansion.
+		if (new ArrayList<String>(sections.keySet()).equals(new ArrayList<String>(secs.keySet())) == false ||
+				new ArrayList<String>(idxSections.keySet()).equals(new ArrayList<String>(idx.keySet())) == false)
+			unknown = true;
+		
+		sections.clear();
+		sections.putAll(secs);
+		idxSections.clear();
+		idxSections.putAll(idx);
+		
+		if (lazy != null) {
+			lazy.ranges.clear();
+			lazy.ranges.putAll(np.ranges);
+			lazy.idxRanges.clear();
+			lazy.idxRanges.putAll(np.idxRanges);
+			for (String name : diff.getAddedSections())
+				lazy.loaded(name, false);
+			for (String name : diff.getAddedIndexedSections())
+				lazy.loaded(name, true);
+		}
+		
+		keyOwners = null;
+		indexOwners = null;
+		if (unknown == true) {
+			expander.clear();
+		} else {
+			for (Object k : keys)
+				expander.valueChanged(k);
+		}
+		
+		prints = np;
+		changed = false;
+		done();
+		
+		return diff;
+	}
+	
+	// Parses the byte ranges of one section into a new IniFile, keeping the comments here.
+	private IniFile parseRanges(FileChannel ch, long[] r) throws IOException {
+		IniFile tmp = new IniFile((String) null);
+		tmp.compactMaps = compactMaps;
+		tmp.symbols = symbols;
+		tmp.ownSymbols = ownSymbols;
+		Loader loader = tmp.new Loader();
+		for (int i = 0; i < r.length; i += 2)
+			IniParser.parse(ch, r[i], r[i + 1], loadCharset, loader);
+		secComments.putAll(tmp.secComments);
+		kvComments.putAll(tmp.kvComments);
+		return tmp;
+	}
+	
+	// reread() and compares the sections before and after.
+	private IniDiff fullReload() {
+		Map<String, ValuePairMap> oldSecs = new LinkedHashMap<String, ValuePairMap>(sections);
+		Map<String, IndexedValuePair> oldIdx = new LinkedHashMap<String, IndexedValuePair>(idxSections);
+		reread();
+		
+		IniDiff diff = new IniDiff(true);
+		for (Map.Entry<String, ValuePairMap> e : sections.entrySet()) {
+			if (oldSecs.containsKey(e.getKey()) == false) {
+				diff.added(e.getKey(), false);
+			} else {
+				ValuePairMap o = oldSecs.get(e.getKey());
+				diff.compare(e.getKey(), false, (o != null) ? o.values : null, (e.getValue() != null) ? e.getValue().values : null);
+			}
+		}
+		for (String name : oldSecs.keySet()) {
+			if (sections.containsKey(name) == false)
+				diff.removed(name, false);
+		}
+		
+		for (Map.Entry<String, IndexedValuePair> e : idxSections.entrySet()) {
+			if (oldIdx.containsKey(e.getKey()) == false) {
+				diff.added(e.getKey(), true);
+			} else {
+				IndexedValuePair o = oldIdx.get(e.getKey());
+				diff.compare(e.getKey(), true, (o != null) ? o.values : null, (e.getValue() != null) ? e.getValue().values : null);
+			}
+		}
+		for (String name : oldIdx.keySet()) {
+			if (idxSections.containsKey(name) == false)
+				diff.removed(name, true);
+		}
+		
+		return diff;
 	}
 	
 	/**
 	 * Clears all sections and key/value pairs.
 	 */
 	public void clearAll() {
+		if (events.active() == true) {
+			for (String name : sections.keySet())
+				events.section(name, false, IniChange.Type.REMOVED);
+			for (String name : idxSections.keySet())
+				events.section(name, true, IniChange.Type.REMOVED);
+		}
+		
 		Iterator<String> it1 = sections.keySet().iterator();
         
     	while (it1.hasNext()) {
     		String sectionName = it1.next();
 			ValuePairMap vpm = sections.get(sectionName);
 			
-			vpm.values.clear();
+			if (vpm != null)
+				vpm.values.clear();
     	}
     	
     	sections.clear();
@@ -398,10 +688,18 @@ public class IniFile {
     		String sectionName = it2.next();
 			IndexedValuePair ivp = idxSections.get(sectionName);
 			
-			ivp.values.clear();
+			if (ivp != null)
+				ivp.values.clear();
     	}
     	
     	idxSections.clear();
+    	lazy = null;
+    	prints = null;
+    	keyOwners = null;
+    	indexOwners = null;
+    	expander.clear();
+    	log(IniJournal.CLEAR, null, null, null);
+    	done();
 	}
 	
 	/**
@@ -412,12 +710,11 @@ public class IniFile {
 	 */
 	
 	public boolean open(String fileName) {
-		BufferedReader in = null;
-		IndexedValuePair ivp = null;
-        boolean isIndexed = false;
-        boolean isTop = true;
+		Reader in = null;
 		
 		fileFound = false;
+		prints = null;
+		compiledPath = null;
 		
 		try {
 			// Checks to see if it is in a jar file first.
@@ -427,172 +724,25 @@ public class IniFile {
 				// if not in a jar file than look in directory.
 				File f = new File(fileName);
 				if (f.exists() == true) {
-					in = new BufferedReader(new FileReader(fileName));
+					in = new FileReader(fileName);
 					fileFound = true;
 				} else {
 					return true;
 				}
 			} else {
 				// was found in a jar file, create a stream to it.
-				InputStreamReader rd = new InputStreamReader(ins);
-				in = new BufferedReader(rd);
+				in = new InputStreamReader(ins);
 				fileFound = true;
 			}
 			
-	        String str;
-	        char endChar = '\0';
-	        ValuePairMap vpm = null;
-	        boolean headerFlag = true;
-	        
-	        // read each line from file.
-	        while ((str = in.readLine()) != null) {
-	        	str = str.trim();
-	        	
-	        	if (str == null || str.length() == 0)
-	        		continue;
-	        	
-	        	if (str.charAt(0) == '#' && isTop == true) {
-	        		topComments.add(str);
-	        		continue;
-	        	}
-	        	
-	        	isTop = false;
-	        	
-	        	int x = str.lastIndexOf(";");		// remove trailing comment from line.
-	        	if (x != -1)
-	        		str = str.substring(0, x);
-	        	
-	        	str = str.trim();					// remove whitespace from start and end
-	        	
-	        	if (str == null || str.length() == 0)
-	        		continue;
-	        	
-	        	if (str.charAt(0) == ';') {
-	        		if (headerFlag) {
-		        		if (header == null)
-		        			header = str + "\n";
-		        		else
-		        			header += str + "\n";
-	        		}
-	        		continue;						// skip comments
-	        	}
-	        	
-//	        	System.out.println(str);
-	        	
-	        	if (str.charAt(0) == '[') {			// section found
-	        		headerFlag = false;
-	        		String key = str.substring(1, (str.length() - 1));
-	        		vpm = sections.get(key);
-	        		if( vpm == null) {
-	        			sections.put(key, new ValuePairMap());
-	        			vpm = sections.get(key);
-	        		}
-	        	} else if (str.charAt(0) == '{') {			// indexed section found
-	        		headerFlag = false;
-	        		isIndexed = true;
-	        		String key = str.substring(1, (str.length() - 1));
-	        		ivp = idxSections.get(key);
-	        		if( ivp == null) {
-	        			idxSections.put(key, new IndexedValuePair());
-	        			ivp = idxSections.get(key);
-	        		}
-	        	} else {
-	        		headerFlag = false;
-	        		x = str.indexOf('=');
-	        		
-	        		if (x != -1) {
-	        			String k = str.substring(0, x).trim();
-	        			if (k == null || k.length() <= 0)
-	        				continue;
-	        			
-	        			if (isIndexed == false) {
-		        			String s = vpm.get(k);
-		        			String v = str.substring((x + 1)).trim();
-		        			
-		        			if (v == null || v.length() <= 0) {
-		        				vpm.add(k,  "");
-		        				continue;
-		        			}
-		        			
-		        			// if value starts with a quote then get rest of string value.
-		        			if (v.charAt(0) == '"') {
-		        				endChar = v.charAt(0);
-		        				
-		        				boolean endQuote = false;
-		        				for (int z = 1; z < v.length(); z++) {
-		        					if (v.charAt(z) == endChar) {
-		        						endQuote = true;
-		        						break;
-		        					}
-		        				}
-		        				
-		        				if (endQuote == false) {
-			        				int ch;
-			        				while ((ch = in.read()) != -1) {
-			        					v += ch;
-			        					if (ch == endChar)
-			        						break;
-			        				}
-		        				}
-		        			}
-		        			
-		        			if (s == null) {
-			        			// add name/value pair to hashed link list
-			        			vpm.add(k, v);
-		        			} else {
-		        				// If key already exists then append value to existing value.
-		        				// if you want a newline then place \n at end of 'desc =' value.
-		        				s += v;
-		        				vpm.add(k, s);
-		        			}
-//		        			System.out.println(str.substring(0, x).trim() + " " + str.substring((x + 1)).trim());
-	        			} else {
-	        				Integer idx = Integer.parseInt(k);
-	        				String s = ivp.get(idx);
-		        			String v = str.substring((x + 1)).trim();
-		        			
-		        			if (v == null || v.length() <= 0) {
-		        				ivp.add(idx,  "");
-		        				continue;
-		        			}
-		        			
-		        			// if value starts with a quote then get rest of string value.
-		        			if (v.charAt(0) == '"') {
-		        				endChar = v.charAt(0);
-		        				
-		        				boolean endQuote = false;
-		        				for (int z = 1; z < v.length(); z++) {
-		        					if (v.charAt(z) == endChar) {
-		        						endQuote = true;
-		        						break;
-		        					}
-		        				}
-		        				
-		        				if (endQuote == false) {
-			        				int ch;
-			        				while ((ch = in.read()) != -1) {
-			        					v += ch;
-			        					if (ch == endChar)
-			        						break;
-			        				}
-		        				}
-		        			}
-		        			
-		        			if (s == null) {
-			        			// add name/value pair to hashed link list
-			        			ivp.add(v);
-		        			} else {
-		        				// If key already exists then append value to existing value.
-		        				// if you want a newline then place \n at end of 'desc =' value.
-		        				s += v;
-		        				ivp.add(idx, s);
-		        			}
-//		        			System.out.println(str.substring(0, x).trim() + " " + str.substring((x + 1)).trim());
-	        			}
-	        		}
-	        	}
-	        }
-	        in.close();
+			try {
+				IniParser.parse(in, new Loader());
+			} finally {
+				in.close();
+			}
+			
+			if (ins == null)
+				replayJournal(Paths.get(fileName));
 	    } catch (IOException e) {
 	    	e.printStackTrace();
 	    	return true;
@@ -601,6 +751,723 @@ public class IniFile {
 	    return false;
 	}
 	
+	/**
+	 * Open the file and parse contents.
+	 * The file is only looked for in the file system, not in jar files.
+	 * @param file path to the file.
+	 * @param mode LoadMode.STREAM to read the file or LoadMode.MAPPED to map it into memory.
+	 * @return false if successful.
+	 */
+	public boolean open(Path file, LoadMode mode) {
+		return open(file, mode, Charset.defaultCharset());
+	}
+	
+	/**
+	 * Open the file and parse contents.
+	 * The file is only looked for in the file system, not in jar files.
+	 * @param file path to the file.
+	 * @param mode LoadMode.STREAM to read the file or LoadMode.MAPPED to map it into memory.
+	 * @param cs character set of the file.
+	 * @return false if successful.
+	 */
+	public boolean open(Path file, LoadMode mode, Charset cs) {
+		// lines and sections are found in the mapped bytes, which needs '\n' and '[' to be single bytes.
+		if (IniParser.asciiCompatible(cs) == false)
+			mode = LoadMode.STREAM;
+		
+		fileFound = false;
+		prints = null;
+		compiledPath = null;
+		loadPath = file;
+		loadMode = mode;
+		loadCharset = cs;
+		
+		if (Files.exists(file) == false)
+			return true;
+		
+		fileFound = true;
+		
+		try {
+			if (mode == LoadMode.LAZY) {
+				indexSections(file, cs);
+			} else if (mode == LoadMode.MAPPED || mode == LoadMode.PARALLEL) {
+				FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+				try {
+					if (mode == LoadMode.MAPPED || loadParallel(ch, cs) == true) {
+						SectionPrints sp = new SectionPrints(new Loader(), false);
+						sp.run(ch, cs);
+						prints = sp;
+					}
+				} finally {
+					ch.close();
+				}
+			} else {
+				Reader in = new InputStreamReader(Files.newInputStream(file), cs);
+				try {
+					IniParser.parse(in, new Loader());
+				} finally {
+					in.close();
+				}
+			}
+			replayJournal(file);
+		} catch (IOException e) {
+	    	e.printStackTrace();
+	    	return true;
+		}
+		
+		return false;
+	}
+	
+	// LoadMode.PARALLEL, the file is cut at the first section line after every chunk bytes.  The
+	// first chunk is parsed here while the others are parsed on the common pool, returns true if
+	// the file is too small to split and should be read as MAPPED.
+	private boolean loadParallel(final FileChannel ch, final Charset cs) throws IOException {
+		long size = ch.size();
+		int tasks = ForkJoinPool.getCommonPoolParallelism() + 1;
+		long chunk = Math.max(MIN_CHUNK, size / (tasks * 4L));
+		if (size < chunk * 2)
+			return true;
+		
+		List<Long> cuts = new ArrayList<Long>();
+		long pos = 0;
+		do {
+			cuts.add(pos);
+			pos = IniParser.nextSection(ch, pos + chunk, size);
+		} while (pos < size);
+		cuts.add(size);
+		
+		List<ForkJoinTask<IniFile>> parts = new ArrayList<ForkJoinTask<IniFile>>();
+		try {
+			for (int i = 1; i < cuts.size() - 1; i++) {
+				final long from = cuts.get(i);
+				final long to = cuts.get(i + 1);
+				parts.add(ForkJoinPool.commonPool().submit(new Callable<IniFile>() {
+					public IniFile call() throws IOException {
+						return parseChunk(ch, from, to, cs);
+					}
+				}));
+			}
+			
+			IniParser.parse(ch, 0, cuts.get(1), cs, new Loader());
+			for (ForkJoinTask<IniFile> t : parts)
+				merge(t.get());
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			// the channel is closed by the caller, no chunk may still be reading it.
+			for (ForkJoinTask<IniFile> t : parts)
+				t.quietlyJoin();
+		}
+		
+		return false;
+	}
+	
+	// Parses one chunk of a PARALLEL file into a new IniFile, with a SymbolTable of its own.
+	private IniFile parseChunk(FileChannel ch, long from, long to, Charset cs) throws IOException {
+		IniFile tmp = new IniFile((String) null);
+		tmp.compactMaps = compactMaps;
+		tmp.symbols = (symbols != null) ? symbols.sibling() : null;
+		IniParser.parse(ch, from, to, cs, tmp.new Loader());
+		return tmp;
+	}
+	
+	// Adds the sections of the next chunk, a section already read gets the keys appended the
+	// same way the Loader does for a section that is in the file more than once.
+	private void merge(IniFile tmp) {
+		for (Map.Entry<String, ValuePairMap> e : tmp.sections.entrySet()) {
+			ValuePairMap vpm = sections.get(e.getKey());
+			if (vpm == null) {
+				sections.put(e.getKey(), e.getValue());
+				continue;
+			}
+			for (Map.Entry<String, String> kv : e.getValue().values.entrySet()) {
+				String s = vpm.get(kv.getKey());
+				vpm.add(kv.getKey(), (s == null) ? kv.getValue() : s + kv.getValue());
+			}
+		}
+		for (Map.Entry<String, IndexedValuePair> e : tmp.idxSections.entrySet()) {
+			IndexedValuePair ivp = idxSections.get(e.getKey());
+			if (ivp == null) {
+				idxSections.put(e.getKey(), e.getValue());
+				continue;
+			}
+			for (Map.Entry<Integer, String> kv : e.getValue().values.entrySet()) {
+				String s = ivp.get(kv.getKey());
+				ivp.add(kv.getKey(), (s == null) ? kv.getValue() : s + kv.getValue());
+			}
+		}
+		secComments.putAll(tmp.secComments);
+		kvComments.putAll(tmp.kvComments);
+		if (symbols != null && tmp.symbols != null)
+			symbols.count(tmp.symbols);
+	}
+	
+	/**
+	 * Sets how many sections of a file opened with LoadMode.LAZY are kept parsed in memory.
+	 * When more are parsed the least recently used ones are dropped and parsed again
+	 * from the file the next time they are used.  Sections that have been changed or
+	 * returned by getSectionValues() are always kept.
+	 * @param max number of sections to keep, 0 keeps all of them.
+	 */
+	public void setSectionCacheSize(int max) {
+		sectionCacheSize = max;
+		if (lazy != null)
+			lazy.setMaxResident(max);
+	}
+	
+	// First pass of LoadMode.LAZY, records the byte range of each section and parses only
+	// the lines before the first section.
+	private void indexSections(Path file, Charset cs) throws IOException {
+		final FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+		final LazySections lz = new LazySections(file, cs, sections, idxSections);
+		final Loader loader = new Loader();
+		
+		try {
+			SectionPrints sp = new SectionPrints(new IniHandler() {
+				public int onSection(String n, String comment) {
+					if (sections.containsKey(n) == false)
+						sections.put(n, null);
+					return SKIP_SECTION;
+				}
+				
+				public int onIndexedSection(String n, String comment) {
+					if (idxSections.containsKey(n) == false)
+						idxSections.put(n, null);
+					return SKIP_SECTION;
+				}
+				
+				public int onKeyValue(String key, String value, String comment) {
+					return CONTINUE;		// before the first section, not kept.
+				}
+				
+				public int onComment(String comment) {
+					return loader.onComment(comment);
+				}
+				
+				public void onEnd() {
+				}
+			}, true);
+			sp.run(ch, cs);
+			lz.ranges.putAll(sp.ranges);
+			lz.idxRanges.putAll(sp.idxRanges);
+			prints = sp;
+		} finally {
+			ch.close();
+		}
+		
+		lz.setMaxResident(sectionCacheSize);
+		lazy = lz;
+	}
+	
+	// Returns a section, parsing it first if the file was opened with LoadMode.LAZY.
+	private ValuePairMap section(Object sec) {
+		ValuePairMap vpm = sections.get(sec);
+		if (lazy != null && sec instanceof String) {
+			if (vpm != null) {
+				lazy.touch((String) sec, false);
+			} else if (sections.containsKey(sec) == true) {
+				loadLazy((String) sec, false);
+				vpm = sections.get(sec);
+			}
+		}
+		return vpm;
+	}
+	
+	// Returns an indexed section, parsing it first if the file was opened with LoadMode.LAZY.
+	private IndexedValuePair indexedSection(Object sec) {
+		IndexedValuePair ivp = idxSections.get(sec);
+		if (lazy != null && sec instanceof String) {
+			if (ivp != null) {
+				lazy.touch((String) sec, true);
+			} else if (idxSections.containsKey(sec) == true) {
+				loadLazy((String) sec, true);
+				ivp = idxSections.get(sec);
+			}
+		}
+		return ivp;
+	}
+	
+	// Same as section() but the section is kept in memory from now on because it is being changed.
+	private ValuePairMap sectionForUpdate(Object sec) {
+		ValuePairMap vpm = section(sec);
+		if (vpm != null && lazy != null)
+			lazy.pin((String) sec, false);
+		return vpm;
+	}
+	
+	// Same as indexedSection() but the section is kept in memory from now on because it is being changed.
+	private IndexedValuePair indexedSectionForUpdate(Object sec) {
+		IndexedValuePair ivp = indexedSection(sec);
+		if (ivp != null && lazy != null)
+			lazy.pin((String) sec, true);
+		return ivp;
+	}
+	
+	private void pin(String sec) {
+		if (lazy != null) {
+			lazy.pin(sec, false);
+			lazy.pin(sec, true);
+		}
+	}
+	
+	private void forget(String sec) {
+		if (lazy != null) {
+			lazy.forget(sec, false);
+			lazy.forget(sec, true);
+		}
+	}
+	
+	// Parses the byte ranges of one section of a LoadMode.LAZY file, or reads it from the compiled file.
+	// Returns true if the section could not be read, its placeholder is kept so it is tried again.
+	private boolean loadLazy(String sec, boolean indexed) {
+		long[] r = (indexed ? lazy.idxRanges : lazy.ranges).get(sec);
+		
+		if (lazy.compiled != null) {
+			int s = lazy.compiled.section(sec, indexed);
+			if (s != -1 && indexed == false) {
+				ValuePairMap vpm = new ValuePairMap(compactMaps);
+				lazy.compiled.load(s, vpm, kvComments);
+				sections.put(sec, vpm);
+			} else if (s != -1) {
+				IndexedValuePair ivp = new IndexedValuePair();
+				lazy.compiled.load(s, ivp, kvComments);
+				idxSections.put(sec, ivp);
+			}
+		} else if (r != null) {
+			try {
+				FileChannel ch = FileChannel.open(lazy.file, StandardOpenOption.READ);
+				try {
+					Loader loader = new Loader(false);
+					for (int i = 0; i < r.length; i += 2)
+						IniParser.parse(ch, r[i], r[i + 1], lazy.cs, loader);
+				} finally {
+					ch.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if ((indexed == false && sections.get(sec) == null) || (indexed == true && idxSections.get(sec) == null)) {
+			System.err.println("Section " + sec + " could not be read from " + lazy.file);
+			return true;
+		}
+		
+		lazy.loaded(sec, indexed);
+		return false;
+	}
+	
+	// true if writing file replaces the file the sections of a LoadMode.LAZY open are read from.
+	private boolean readsFrom(Path file) {
+		return lazy != null && lazy.compiled == null &&
+				lazy.file.toAbsolutePath().normalize().equals(file.toAbsolutePath().normalize());
+	}
+	
+	// The file of a LoadMode.LAZY open was replaced with the sections, the ones not parsed yet
+	// are read from their new offsets.
+	private void reindex() {
+		if (readsFrom(Paths.get(iniFileName)) == false)
+			return;
+		
+		Charset cs = Charset.defaultCharset();		// the charset writeTo() writes.
+		try {
+			SectionPrints sp = SectionPrints.scan(lazy.file, cs);
+			lazy.reindexed(sp.ranges, sp.idxRanges, cs);
+		} catch (IOException e) {
+			e.printStackTrace();
+			// the old offsets are wrong, fail the reads instead of parsing the wrong bytes.
+			lazy.reindexed(new HashMap<String, long[]>(), new HashMap<String, long[]>(), cs);
+		}
+	}
+	
+	// The -NoWrite sections are not written to the file, so they are read in before a
+	// LoadMode.LAZY file is replaced.
+	private void readUnwritten() throws IOException {
+		for (String s : sections.keySet()) {
+			if (s.endsWith("-NoWrite") == true && sectionForUpdate(s) == null)
+				throw new IOException("Section " + s + " could not be read from " + lazy.file);
+		}
+		for (String s : idxSections.keySet()) {
+			if (s.endsWith("-NoWrite") == true && indexedSectionForUpdate(s) == null)
+				throw new IOException("Section " + s + " could not be read from " + lazy.file);
+		}
+	}
+	
+	/**
+	 * Parses the contents of a reader, the reader is not closed.
+	 * @param in reader positioned at the start of .ti formated data.
+	 * @return false if successful.
+	 */
+	public boolean open(Reader in) {
+		prints = null;
+		try {
+			IniParser.parse(in, new Loader());
+		} catch (IOException e) {
+	    	e.printStackTrace();
+	    	return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Parses the contents of a stream, the stream is not closed.
+	 * @param ins stream positioned at the start of .ti formated data.
+	 * @param cs character set of the stream.
+	 * @return false if successful.
+	 */
+	public boolean open(InputStream ins, Charset cs) {
+		return open(new InputStreamReader(ins, cs));
+	}
+	
+	/**
+	 * Compiles a .ti file into a binary file that openCompiled() maps into memory without parsing.
+	 * The compiled file holds a string table, a section directory, hashed key slots and the size,
+	 * modified time and CRC32C of the .ti file, it is replaced with a rename so a process opening
+	 * it never sees half a file.
+	 * @param ti the .ti file.
+	 * @param tib the compiled file to write, ex. app.tib next to app.ti.
+	 * @return false if successful.
+	 */
+	public static boolean compile(Path ti, Path tib) {
+		try {
+			BasicFileAttributes a = Files.readAttributes(ti, BasicFileAttributes.class);
+			byte[] b = Files.readAllBytes(ti);
+			IniFile ini = new IniFile((String) null);
+			if (ini.open(new ByteArrayInputStream(b), Charset.defaultCharset()) == true)
+				return true;
+			
+			long[] stamp = { a.size(), a.lastModifiedTime().toMillis(), IniJournal.crc(b) };
+			CompiledIni.write(tib, ti.toAbsolutePath(), stamp, ini.header, ini.topComments,
+					ini.sections, ini.idxSections, ini.secComments, ini.kvComments);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Opens a file made by compile().  Nothing is parsed, the compiled file is mapped into memory
+	 * and a section is read from it the first time it is used, a key read with getString() is
+	 * found through the key slots without reading its section.
+	 * If the .ti file was changed since it was compiled, or the compiled file is missing or was
+	 * made by another version, the .ti file is compiled again first.  If it can not be written the
+	 * .ti file is read with LoadMode.MAPPED instead.  The compiled file is kept open by the mapping
+	 * and must not be written in place while it is used, compile() replaces it with a rename.
+	 * writeFile() writes the .ti file.
+	 * @param tib the compiled file, a missing app.tib is compiled from app.ti.
+	 * @return IniFile, fileFound is false if neither file could be read.
+	 */
+	public static IniFile openCompiled(Path tib) {
+		IniFile ini = new IniFile((String) null);
+		ini.loadCompiled(tib);
+		return ini;
+	}
+	
+	/**
+	 * Reads the files of a directory whose names match glob with LoadMode.MAPPED, see
+	 * loadAll(Path, String, LoadMode, Collection).
+	 * @param dir directory to read.
+	 * @param glob file names to read, ex. "*.ti".
+	 * @return file to IniFile in file name order, null if dir can not be listed.
+	 */
+	public static Map<Path, IniFile> loadAll(Path dir, String glob) {
+		return loadAll(dir, glob, LoadMode.MAPPED, null);
+	}
+	
+	/**
+	 * Reads the files of a directory whose names match glob at the same time, up to 16 at once,
+	 * so the time taken is not the sum of the time of each file.  Each file gets an
+	 * IniFile and a SymbolTable of its own.  A file that can not be read is reported on
+	 * System.err, added to failed and left out, the other files are still read.
+	 *
+	 * Map<Path, IniFile> conf = IniFile.loadAll(Paths.get("conf.d"), "*.ti");
+	 *
+	 * @param dir directory to read.
+	 * @param glob file names to read, see FileSystem.getPathMatcher() for the syntax.
+	 * @param mode how each file is read.
+	 * @param failed gets the files that could not be read, may be null.
+	 * @return file to IniFile in file name order, null if dir can not be listed.
+	 */
+	public static Map<Path, IniFile> loadAll(Path dir, String glob, final LoadMode mode, Collection<Path> failed) {
+		List<Path> files = new ArrayList<Path>();
+		try {
+			DirectoryStream<Path> ds = Files.newDirectoryStream(dir, glob);
+			try {
+				for (Path p : ds) {
+					if (Files.isRegularFile(p) == true)
+						files.add(p);
+				}
+			} finally {
+				ds.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		Collections.sort(files);
+		
+		Map<Path, IniFile> all = new LinkedHashMap<Path, IniFile>();
+		if (files.isEmpty() == true)
+			return all;
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(files.size(), LOAD_THREADS), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IniFile loadAll");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<IniFile>> loads = new ArrayList<Future<IniFile>>(files.size());
+			for (final Path p : files) {
+				loads.add(pool.submit(new Callable<IniFile>() {
+					public IniFile call() {
+						IniFile ini = new IniFile((String) null);
+						ini.setFileName(p.toString());
+						return (ini.open(p, mode) == false) ? ini : null;
+					}
+				}));
+			}
+			
+			for (int i = 0; i < files.size(); i++) {
+				IniFile ini = null;
+				try {
+					ini = loads.get(i).get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (ini != null) {
+					all.put(files.get(i), ini);
+				} else {
+					System.err.println("IniFile: " + files.get(i) + " could not be read.");
+					if (failed != null)
+						failed.add(files.get(i));
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		return all;
+	}
+	
+	private boolean loadCompiled(Path tib) {
+		fileFound = false;
+		prints = null;
+		
+		CompiledIni c = compiled(tib);
+		Path src = (c != null) ? c.source : sourceOf(tib);
+		if (src != null && Files.exists(src) == true && (c == null || c.isStale() == true)) {
+			c = (compile(src, tib) == false) ? compiled(tib) : null;
+			if (c == null) {
+				// the compiled file could not be written, read the .ti file.
+				iniFileName = src.toString();
+				boolean failed = open(src, LoadMode.MAPPED);
+				compiledPath = tib;
+				return failed;
+			}
+		}
+		if (c == null)
+			return true;
+		
+		iniFileName = c.source.toString();
+		header = c.header;
+		for (int i = 0; i < c.topCommentCount(); i++)
+			topComments.add(c.topComment(i));
+		for (int s = 0; s < c.sectionCount() + c.indexedSectionCount(); s++) {
+			String name = c.name(s);
+			if (s < c.sectionCount())
+				sections.put(name, null);
+			else
+				idxSections.put(name, null);
+			if (c.comment(s) != null)
+				secComments.put(name, c.comment(s));
+		}
+		lazy = new LazySections(c, sections, idxSections);
+		lazy.setMaxResident(sectionCacheSize);
+		keyOwners = null;
+		indexOwners = null;
+		expander.clear();
+		loadPath = null;
+		compiledPath = tib;
+		fileFound = true;
+		
+		if (Files.exists(c.source) == true)
+			replayJournal(c.source);
+		
+		return false;
+	}
+	
+	// Maps a compiled file, null if it is missing, damaged, of another version or can not be read.
+	private static CompiledIni compiled(Path tib) {
+		try {
+			return CompiledIni.open(tib);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	// app.ti for app.tib, null for any other name.
+	private static Path sourceOf(Path tib) {
+		String name = tib.getFileName().toString();
+		if (name.endsWith(".tib") == false)
+			return null;
+		return tib.resolveSibling(name.substring(0, name.length() - 1));
+	}
+	
+	// Fills the section maps from the parser.
+	private class Loader implements IniHandler {
+		private ValuePairMap vpm = null;
+		private IndexedValuePair ivp = null;
+		private boolean isIndexed = false;
+		private boolean isTop = true;
+		private boolean headerFlag = true;
+		
+		Loader() {
+			this(true);
+		}
+		
+		// reset is false when a section of a LoadMode.LAZY file is read, its keys were in the
+		// file all along so the key index and the expansions still hold.
+		Loader(boolean reset) {
+			if (reset == true) {
+				keyOwners = null;		// new keys are about to be added.
+				indexOwners = null;
+				expander.clear();
+			}
+		}
+		
+		public int onComment(String str) {
+			if (str.charAt(0) == '#' && isTop == true) {
+				topComments.add(str);
+				return CONTINUE;
+			}
+			
+			isTop = false;
+			
+			if (str.charAt(0) == ';' && headerFlag == true) {
+				if (header == null)
+					header = str + "\n";
+				else
+					header += str + "\n";
+			}
+			
+			return CONTINUE;
+		}
+		
+		public int onSection(String key, String comment) {
+			isTop = false;
+			headerFlag = false;
+			isIndexed = false;
+			vpm = sections.get(key);		// raw get, a LAZY section is filled in here.
+			if (vpm == null) {
+				vpm = new ValuePairMap(compactMaps);
+				sections.put(key, vpm);
+			}
+			if (comment != null)
+				secComments.put(key, comment);
+			
+			return CONTINUE;
+		}
+		
+		public int onIndexedSection(String key, String comment) {
+			isTop = false;
+			headerFlag = false;
+			isIndexed = true;
+			ivp = idxSections.get(key);		// raw get, a LAZY section is filled in here.
+			if (ivp == null) {
+				ivp = new IndexedValuePair();
+				idxSections.put(key, ivp);
+			}
+			if (comment != null)
+				secComments.put(key, comment);
+			
+			return CONTINUE;
+		}
+		
+		public int onKeyValue(String k, String v, String comment) {
+			isTop = false;
+			headerFlag = false;
+			
+			if (comment != null)
+				kvComments.put(k, comment);
+			
+			if (isIndexed == false) {
+				if (vpm == null)
+					return CONTINUE;		// no section yet.
+				
+				String s = vpm.get(k);
+				if (s == null) {
+					// add name/value pair to hashed link list
+					vpm.add(k, v);
+				} else {
+					// If key already exists then append value to existing value.
+					// if you want a newline then place \n at end of 'desc =' value.
+					vpm.add(k, s + v);
+				}
+			} else {
+				Integer idx = parseIndex(k);
+				if (idx == null)
+					return CONTINUE;		// not a number.
+				
+				String s = ivp.get(idx);
+				if (s == null)
+					ivp.add(idx, v);
+				else
+					ivp.add(idx, s + v);
+			}
+			
+			return CONTINUE;
+		}
+		
+		public void onEnd() {
+			// the Strings are only shared within one load, the IniFile does not keep them.
+			if (symbols != null && ownSymbols == true)
+				symbols.release();
+		}
+		
+		public SymbolTable symbols() {
+			return symbols;
+		}
+	}
+	
+	// Integer.parseInt() without the exception, returns null if s is not a number.
+	static Integer parseIndex(String s) {
+		int n = s.length();
+		int i = 0;
+		boolean neg = false;
+		
+		if (n > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+			neg = s.charAt(0) == '-';
+			i++;
+		}
+		if (i == n || (n - i) > 10)
+			return null;
+		
+		long v = 0;
+		for (; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return null;
+			v = v * 10 + (c - '0');
+		}
+		if (neg)
+			v = -v;
+		if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+			return null;
+		
+		return Integer.valueOf((int) v);
+	}
+	
 	/**
 	 * Adds a key/value pair to an existing section or creates the section if it
 	 * does not exist.
@@ -610,15 +1477,22 @@ public class IniFile {
 	 */
 	public void addSection(String sec, String key, String value) {
 		if (sections.containsKey(sec) == true) {
-			ValuePairMap vpm = sections.get(sec);
+			ValuePairMap vpm = sectionForUpdate(sec);
+			events.value(sec, false, key, vpm.get(key), value);
 			vpm.add(key, value);
 		} else {
-			ValuePairMap vpm = new ValuePairMap();
+			ValuePairMap vpm = new ValuePairMap(compactMaps);
 			vpm.add(key, value);
 			sections.put(sec, vpm);
+			pin(sec);
+			events.section(sec, false, IniChange.Type.ADDED);
+			log(IniJournal.SECTION, sec, null, null);
 		}
+		log(IniJournal.PUT, sec, key, value);
+		keyAdded(sec, key, false);
 		
 		changed = true;
+		done();
 	}
 	
 	/**
@@ -628,16 +1502,24 @@ public class IniFile {
 	 * @param value value of the index
 	 */
 	public void addIndexedSection(String sec, String value) {
+		IndexedValuePair ivp;
 		if (idxSections.containsKey(sec) == true) {
-			IndexedValuePair ivp = idxSections.get(sec);
-			ivp.add(value);
+			ivp = indexedSectionForUpdate(sec);
 		} else {
-			IndexedValuePair ivp = new IndexedValuePair();
-			ivp.add(value);
+			ivp = new IndexedValuePair();
 			idxSections.put(sec, ivp);
+			pin(sec);
+			events.section(sec, true, IniChange.Type.ADDED);
+			log(IniJournal.ISECTION, sec, null, null);
 		}
+		Integer idx = ivp.getNextIndex();
+		ivp.add(value);
+		keyAdded(sec, idx, true);
+		events.value(sec, true, idx, null, value);
+		log(IniJournal.IPUT, sec, idx, value);
 		
 		changed = true;
+		done();
 	}
 	
 	/**
@@ -647,8 +1529,12 @@ public class IniFile {
 	 */
 	public boolean addSection(String sec) {
 		if (sections.containsKey(sec) == false) {
-			sections.put(sec, new ValuePairMap());
+			sections.put(sec, new ValuePairMap(compactMaps));
+			pin(sec);
 			changed = true;
+			events.section(sec, false, IniChange.Type.ADDED);
+			log(IniJournal.SECTION, sec, null, null);
+			done();
 		} else {
 			return true;
 		}
@@ -664,7 +1550,11 @@ public class IniFile {
 	public boolean addIndexedSection(String sec) {
 		if (idxSections.containsKey(sec) == false) {
 			idxSections.put(sec, new IndexedValuePair());
+			pin(sec);
 			changed = true;
+			events.section(sec, true, IniChange.Type.ADDED);
+			log(IniJournal.ISECTION, sec, null, null);
+			done();
 		} else {
 			return true;
 		}
@@ -683,10 +1573,17 @@ public class IniFile {
 			return true;		// section already exists.
 		
 		if (sections.containsKey(from) == true) {
-			ValuePairMap vpm = sections.get(from);
+			ValuePairMap vpm = sectionForUpdate(from);
 			sections.put(to, vpm);
 			sections.remove(from);
+			forget(from);
+			pin(to);
+			sectionMoved(from, vpm.values.keySet(), false);
 			changed = true;
+			events.section(from, false, IniChange.Type.REMOVED);
+			events.section(to, false, IniChange.Type.ADDED);
+			log(IniJournal.RENAME, from, to, null);
+			done();
 		}
 		
 		return false;
@@ -703,10 +1600,17 @@ public class IniFile {
 			return true;		// section already exists.
 		
 		if (idxSections.containsKey(from) == true) {
-			IndexedValuePair ivp = idxSections.get(from);
+			IndexedValuePair ivp = indexedSectionForUpdate(from);
 			idxSections.put(to, ivp);
 			idxSections.remove(from);
+			forget(from);
+			pin(to);
+			sectionMoved(from, ivp.values.keySet(), true);
 			changed = true;
+			events.section(from, true, IniChange.Type.REMOVED);
+			events.section(to, true, IniChange.Type.ADDED);
+			log(IniJournal.IRENAME, from, to, null);
+			done();
 		}
 		
 		return false;
@@ -731,40 +1635,11 @@ public class IniFile {
 	}
 	
 	private void moveToValuePair(String sec, String key, boolean top) {
-		java.util.List<String> a = new LinkedList<String>();
-		
-		ValuePairMap vpm = sections.get(sec);
+		ValuePairMap vpm = sectionForUpdate(sec);
 		if (vpm != null) {
-			Iterator<String> it = vpm.values.keySet().iterator();
-	    	while (it.hasNext()) {
-		        String key2 = it.next();
-		        if (key2.equals(key) == false) {
-		        	a.add(key2);
-		        }
-	    	}
-	    	
-	    	if (top == true) {
-		    	a.add(0, key);
-	    	} else {
-		    	a.add(key);
-	    	}
-	    	ValuePairMap vpm2 = new ValuePairMap();
-	    	for (int x = 0; x < a.size(); x++) {
-	    		vpm2.add(a.get(x), vpm.values.get(a.get(x)));
-	    	}
-	    	
-	    	sections.remove(sec);
-	    	
-	    	vpm = new ValuePairMap();
-	    	sections.put(sec, vpm);
-	    	
-	    	it = vpm2.values.keySet().iterator();
-	    	while (it.hasNext()) {
-	    		String value = vpm2.values.get(key);
-				vpm.add(it.next(), value);
-	    	}
-	    	
-			changed = true;
+			boolean failed = (top == true) ? vpm.moveToTop(key) : vpm.moveToBottom(key);
+			if (failed == false)
+				moved(sec, vpm, key);
 		}
 	}
 	
@@ -787,53 +1662,60 @@ public class IniFile {
 	}
 	
 	private void moveValuePair(String sec, String key, boolean down) {
-		java.util.List<String> a = new LinkedList<String>();
-		
-		ValuePairMap vpm = sections.get(sec);
+		ValuePairMap vpm = sectionForUpdate(sec);
 		if (vpm != null) {
-//			String value = vpm.values.get(key);
-			
-			int idx = 0;
-			int i = 0;
-			Iterator<String> it = vpm.values.keySet().iterator();
-	    	while (it.hasNext()) {
-		        String key2 = it.next();
-		        if (key2.equals(key) == true) {
-		        	idx = i;
-		        } else {
-		        	i++;
-		        	a.add(key2);
-		        }
-	    	}
-	    	
-	    	if (down == true) {
-		    	idx++;
-		    	if (idx < vpm.values.size())
-		    		a.add(idx, key);
-		    	else
-		    		a.add(key);
-	    	} else {
-	    		idx--;
-		    	a.add(idx, key);
-	    	}
-	    	ValuePairMap vpm2 = new ValuePairMap();
-	    	for (int x = 0; x < a.size(); x++) {
-	    		vpm2.add(a.get(x), vpm.values.get(a.get(x)));
-	    	}
-	    	
-	    	sections.remove(sec);
-	    	
-	    	vpm = new ValuePairMap();
-	    	sections.put(sec, vpm);
-	    	
-	    	it = vpm2.values.keySet().iterator();
-	    	while (it.hasNext()) {
-	    		String value = vpm2.values.get(key);
-				vpm.add(it.next(), value);
-	    	}
-	    	
-			changed = true;
+			boolean failed = (down == true) ? vpm.moveDown(key) : vpm.moveUp(key);
+			if (failed == false)
+				moved(sec, vpm, key);
+		}
+	}
+	
+	/**
+	 * Moves the key/value pair to just after another key.
+	 * @param sec section name.
+	 * @param key key name.
+	 * @param after key to follow, null for the top.
+	 * @return true if the section or either key does not exist, else false.
+	 */
+	public boolean moveValuePairAfter(String sec, String key, String after) {
+		ValuePairMap vpm = sectionForUpdate(sec);
+		if (vpm == null || vpm.moveAfter(key, after) == true)
+			return true;
+		moved(sec, vpm, key);
+		return false;
+	}
+	
+	/**
+	 * Puts the keys of a section in the order given in one pass, the keys not given keep their
+	 * order after them.  Keys that do not exist are skipped.
+	 * @param sec section name.
+	 * @param keys keys in their new order.
+	 * @return true if the section does not exist, else false.
+	 */
+	public boolean reorderSection(String sec, List<String> keys) {
+		ValuePairMap vpm = sectionForUpdate(sec);
+		if (vpm == null)
+			return true;
+		
+		vpm.reorder(keys);
+		changed = true;
+		for (String k : keys) {
+			if (vpm.values.containsKey(k) == true)
+				events.moved(sec, k, vpm.get(k));
 		}
+		if (journal != null)
+			journal.order(sec, keys);
+		done();
+		return false;
+	}
+	
+	// A key was moved, the journal keeps the key it now follows.
+	private void moved(String sec, ValuePairMap vpm, String key) {
+		changed = true;
+		events.moved(sec, key, vpm.get(key));
+		if (journal != null)
+			log(IniJournal.MOVE, sec, key, vpm.previousKey(key));
+		done();
 	}
 	
 	/**
@@ -846,10 +1728,17 @@ public class IniFile {
 	 */
 	public boolean addValuePair(String sec, String key, String value) {
 //		System.out.println(sec + ", " + key + ", " + value);
-		ValuePairMap vpm = sections.get(sec);
+		ValuePairMap vpm = sectionForUpdate(sec);
 		if (vpm != null) {
+			if (vpm.values.containsKey(key) == true)
+				expander.valueChanged(key);
+			else
+				keyAdded(sec, key, false);
+			events.value(sec, false, key, vpm.get(key), value);
 			vpm.add(key, value);
 			changed = true;
+			log(IniJournal.PUT, sec, key, value);
+			done();
 			
 			return false;
 		} else {
@@ -866,10 +1755,15 @@ public class IniFile {
 	 */
 	public boolean addIndexedValue(String sec, String value) {
 //		System.out.println(sec + ", " + key + ", " + value);
-		IndexedValuePair ivp = idxSections.get(sec);
+		IndexedValuePair ivp = indexedSectionForUpdate(sec);
 		if (ivp != null) {
+			Integer idx = ivp.getNextIndex();
 			ivp.add(value);
+			keyAdded(sec, idx, true);
 			changed = true;
+			events.value(sec, true, idx, null, value);
+			log(IniJournal.IPUT, sec, idx, value);
+			done();
 			
 			return false;
 		} else {
@@ -886,19 +1780,25 @@ public class IniFile {
 	 * @return true if section does not exist, else false.
 	 */
 	public boolean appendValuePair(String sec, String key, String value) {
-		ValuePairMap vpm = sections.get(sec);
+		ValuePairMap vpm = sectionForUpdate(sec);
 		if (vpm == null)
 			return true;
 		String s = vpm.get(key);
 		
 		if (s == null) {
 			vpm.add(key, value);
+			keyAdded(sec, key, false);
+			events.value(sec, false, key, null, value);
 		} else {
+			events.value(sec, false, key, s, s + " " + value);
 			s += " " + value;
 			vpm.add(key, s);
+			expander.valueChanged(key);
 		}
+		log(IniJournal.PUT, sec, key, vpm.get(key));
 		
 		changed = true;
+		done();
 		
 		return false;
 	}
@@ -912,19 +1812,25 @@ public class IniFile {
 	 * @return true if section does not exist, else false.
 	 */
 	public boolean appendIndexedValue(String sec, Integer key, String value) {
-		IndexedValuePair ivp = idxSections.get(sec);
+		IndexedValuePair ivp = indexedSectionForUpdate(sec);
 		if (ivp == null)
 			return true;
 		String s = ivp.get(key);
 		
 		if (s == null) {
 			ivp.add(key, value);
+			keyAdded(sec, key, true);
+			events.value(sec, true, key, null, value);
 		} else {
+			events.value(sec, true, key, s, s + " " + value);
 			s += " " + value;
 			ivp.add(key, s);
+			expander.valueChanged(key);
 		}
+		log(IniJournal.IPUT, sec, key, ivp.get(key));
 		
 		changed = true;
+		done();
 		
 		return false;
 	}
@@ -935,9 +1841,17 @@ public class IniFile {
 	 * @return true if section does not exist.
 	 */
 	public boolean removeSection(String sec) {
-		if (sections.remove(sec) == null)
+		if (sections.containsKey(sec) == false)
 			return true;
+		ValuePairMap vpm = (keyOwners != null || expander.isEmpty() == false) ? section(sec) : null;
+		sections.remove(sec);
+		forget(sec);
+		if (vpm != null)
+			sectionMoved(sec, vpm.values.keySet(), false);
 		changed = true;
+		events.section(sec, false, IniChange.Type.REMOVED);
+		log(IniJournal.DROP, sec, null, null);
+		done();
 		
 		return false;
 	}
@@ -948,9 +1862,17 @@ public class IniFile {
 	 * @return true if section does not exist.
 	 */
 	public boolean removeIndexedSection(String sec) {
-		if (idxSections.remove(sec) == null)
+		if (idxSections.containsKey(sec) == false)
 			return true;
+		IndexedValuePair ivp = (indexOwners != null || expander.isEmpty() == false) ? indexedSection(sec) : null;
+		idxSections.remove(sec);
+		forget(sec);
+		if (ivp != null)
+			sectionMoved(sec, ivp.values.keySet(), true);
 		changed = true;
+		events.section(sec, true, IniChange.Type.REMOVED);
+		log(IniJournal.IDROP, sec, null, null);
+		done();
 		
 		return false;
 	}
@@ -962,11 +1884,16 @@ public class IniFile {
 	 * @return true if section does not exist or key removal fails.
 	 */
 	public boolean removeValuePair(String sec, String key) {
-		ValuePairMap vpm = sections.get(sec);
+		ValuePairMap vpm = sectionForUpdate(sec);
 		if (vpm != null) {
-			if (vpm.values.remove(key) == null)
+			String old = vpm.values.remove(key);
+			if (old == null)
 				return true;
+			keyRemoved(sec, key, false);
 			changed = true;
+			events.value(sec, false, key, old, null);
+			log(IniJournal.REMOVE, sec, key, null);
+			done();
 			
 			return false;
 		} else {
@@ -981,11 +1908,16 @@ public class IniFile {
 	 * @return true if section does not exist or key removal fails.
 	 */
 	public boolean removeIndexedValue(String sec, Integer key) {
-		IndexedValuePair ivp = idxSections.get(sec);
+		IndexedValuePair ivp = indexedSectionForUpdate(sec);
 		if (ivp != null) {
-			if (ivp.values.remove(key) == null)
+			String old = ivp.values.remove(key);
+			if (old == null)
 				return true;
+			keyRemoved(sec, key, true);
 			changed = true;
+			events.value(sec, true, key, old, null);
+			log(IniJournal.IREMOVE, sec, key, null);
+			done();
 			
 			return false;
 		} else {
@@ -1001,8 +1933,8 @@ public class IniFile {
 	 * @return true if section does not exist.
 	 */
 	public boolean renameValuePair(String sec, String from, String to) {
-		ValuePairMap vpm = sections.get(sec);
-		if (vpm.get(from) == null)
+		ValuePairMap vpm = sectionForUpdate(sec);
+		if (vpm == null || vpm.get(from) == null)
 			return true;
 		String value = vpm.get(from);
 		if (value == null)
@@ -1013,8 +1945,20 @@ public class IniFile {
 			newValue = a[0] + "," + a[1] + "," + from;
 		else
 			newValue = value;
+		events.value(sec, false, from, value, null);
+		events.value(sec, false, to, vpm.get(to), newValue);
 		vpm.add(to, newValue);
 		vpm.remove(from);
+		keyRemoved(sec, from, false);
+		keyAdded(sec, to, false);
+		if (journal != null) {
+			// replayed as one change, a torn write must not leave both keys.
+			int start = journal.batch();
+			log(IniJournal.PUT, sec, to, newValue);
+			log(IniJournal.REMOVE, sec, from, null);
+			journal.endBatch(start);
+		}
+		done();
 		
 		return false;
 	}
@@ -1047,7 +1991,7 @@ public class IniFile {
 	        String key = it.next();
 	        
 	        if (key != null)
-	        	count += getSectionValueCount(key);
+	        	count += getIndexedSectionValueCount(key);
 	    }
 	    
 	    return count;
@@ -1062,7 +2006,7 @@ public class IniFile {
 		int count = 0;
 		
 		if (sections.containsKey(sectionName)) {
-			ValuePairMap vmp = sections.get(sectionName);
+			ValuePairMap vmp = section(sectionName);
 			count = vmp.values.size();
 		}
 		
@@ -1078,7 +2022,7 @@ public class IniFile {
 		int count = 0;
 		
 		if (idxSections.containsKey(sectionName)) {
-			IndexedValuePair ivp = idxSections.get(sectionName);
+			IndexedValuePair ivp = indexedSection(sectionName);
 			count = ivp.values.size();
 		}
 		
@@ -1130,21 +2074,23 @@ public class IniFile {
 		String value = null;
 		
 		if (keyName instanceof String) {
+			if (flag == false && isCompiled(sectionName) == true)
+				return lazy.compiled.get(sectionName, (String) keyName);
 			if (sections.containsKey(sectionName)) {
-				ValuePairMap vpm = sections.get(sectionName);
+				ValuePairMap vpm = section(sectionName);
 				if (vpm != null) {
 					value = vpm.values.get(keyName);
 					if (flag == true)
-						value = expandVariables(value);
+						value = expander.expand((String) sectionName, keyName, value, false);
 				}
 			}
 		} else if (keyName instanceof Integer) {
 			if (idxSections.containsKey(sectionName)) {
-				IndexedValuePair ivp = idxSections.get(sectionName);
+				IndexedValuePair ivp = indexedSection(sectionName);
 				if (ivp != null) {
 					value = ivp.values.get(keyName);
 					if (flag == true)
-						value = expandVariables(value);
+						value = expander.expand((String) sectionName, keyName, value, true);
 				}
 			}
 		}
@@ -1178,72 +2124,53 @@ public class IniFile {
 	 * Returns a value of a key/value pairs as an integer
 	 * @param sectionName section name
 	 * @param keyName key name within section
-	 * @return int value
+	 * @return int value, -1 if the section does not exist, 0 if the key does not exist or is not a number.
 	 */
 	public int getSectionValueAsInt(Object sectionName, Object keyName) {
-		int value = -1;
-		
-		if (keyName instanceof String) {
-			if (sections.containsKey(sectionName)) {
-				ValuePairMap vpm = sections.get(sectionName);
-				if (vpm != null) {
-					try {
-						value = Integer.parseInt(vpm.values.get(keyName));
-					} catch (NumberFormatException nfe) {
-						value = 0;
-					}
-				}
-			}
-		} else if (keyName instanceof Integer) {
-			if (idxSections.containsKey(sectionName)) {
-				IndexedValuePair ivp = idxSections.get(sectionName);
-				if (ivp != null) {
-					try {
-						value = Integer.parseInt(ivp.values.get(keyName));
-					} catch (NumberFormatException nfe) {
-						value = 0;
-					}
-				}
-			}
-		}
-		
-		return value;
+		return TypedValue.asInt(typedValue(sectionName, keyName));
 	}
 	
 	/**
 	 * Returns a value of a key/value pairs as an integer
 	 * @param sectionName section name
 	 * @param keyName key name within section
-	 * @return double value
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return int value
+	 */
+	public int getSectionValueAsInt(Object sectionName, Object keyName, int def) {
+		return TypedValue.asInt(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as a long
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return long value
+	 */
+	public long getSectionValueAsLong(Object sectionName, Object keyName, long def) {
+		return TypedValue.asLong(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return double value, -1 if the section does not exist, 0 if the key does not exist or is not a number.
 	 */
 	public double getSectionValueAsDouble(Object sectionName, Object keyName) {
-		double value = -1;
-		
-		if (keyName instanceof String) {
-			if (sections.containsKey(sectionName)) {
-				ValuePairMap vpm = sections.get(sectionName);
-				if (vpm != null) {
-					try {
-						value = Double.parseDouble(vpm.values.get(keyName));
-					} catch (NumberFormatException nfe) {
-						value = 0;
-					}
-				}
-			}
-		} else if (keyName instanceof Double) {
-			if (idxSections.containsKey(sectionName)) {
-				IndexedValuePair ivp = idxSections.get(sectionName);
-				if (ivp != null) {
-					try {
-						value = Double.parseDouble(ivp.values.get(keyName));
-					} catch (NumberFormatException nfe) {
-						value = 0;
-					}
-				}
-			}
-		}
-		
-		return value;
+		return TypedValue.asDouble(typedValue(sectionName, keyName));
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return double value
+	 */
+	public double getSectionValueAsDouble(Object sectionName, Object keyName, double def) {
+		return TypedValue.asDouble(typedValue(sectionName, keyName), def);
 	}
 	
 	/**
@@ -1254,53 +2181,100 @@ public class IniFile {
 	 * @return false if section or key/value does not exist.
 	 */
 	public boolean getBoolean(Object sectionName, Object keyName) {
-		boolean value = false;
-		
-		if (sections.containsKey(sectionName)) {
-			ValuePairMap vpm = sections.get(sectionName);
-			if (vpm != null) {
-				value = Boolean.parseBoolean(vpm.values.get(keyName));
-			}
-		}
-		
-		return value;
+		return getSectionValueAsBoolean(sectionName, keyName);
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * @param sectionName
+	 * @param keyName
+	 * @return false if section or key/value does not exist.
+	 */
+	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName) {
+		return TypedValue.asBoolean(typedValue(sectionName, keyName));
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * @param sectionName
+	 * @param keyName
+	 * @param def value returned if the section or key does not exist or is not true or false.
+	 * @return boolean value
+	 */
+	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName, boolean def) {
+		return TypedValue.asBoolean(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Gets a duration in milliseconds, the value can have a unit of
+	 * ns, us, ms, s, m, h or d, ex. 250ms, 1.5s, 10m.  No unit means milliseconds.
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a duration.
+	 * @return duration in milliseconds
+	 */
+	public long getSectionValueAsMillis(Object sectionName, Object keyName, long def) {
+		return TypedValue.asMillis(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Gets a size in bytes, the value can have a unit of
+	 * B, K, KB, M, MB, G, GB, T or TB, ex. 64KB, 10M.  Units are powers of 1024, no unit means bytes.
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a size.
+	 * @return size in bytes
+	 */
+	public long getSectionValueAsBytes(Object sectionName, Object keyName, long def) {
+		return TypedValue.asBytes(typedValue(sectionName, keyName), def);
 	}
 	
-	/**
-	 * Gets value as a boolean value.
-	 * @param sectionName
-	 * @param keyName
-	 * @return false if section or key/value does not exist.
-	 */
-	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName) {
-		boolean value = false;
+	// The parsed forms of a value, TypedValue.EMPTY if the key does not exist, null if the section does not exist.
+	private TypedValue typedValue(Object sectionName, Object keyName) {
+		TypedValue t = null;
 		
 		if (keyName instanceof String) {
 			if (sections.containsKey(sectionName)) {
-				ValuePairMap vpm = sections.get(sectionName);
+				ValuePairMap vpm = section(sectionName);
 				if (vpm != null) {
-					value = Boolean.parseBoolean(vpm.values.get(keyName));
+					t = vpm.typed((String) keyName);
+					if (t == null)
+						t = TypedValue.EMPTY;
 				}
 			}
 		} else if (keyName instanceof Integer) {
 			if (idxSections.containsKey(sectionName)) {
-				IndexedValuePair ivp = idxSections.get(sectionName);
+				IndexedValuePair ivp = indexedSection(sectionName);
 				if (ivp != null) {
-					value = Boolean.parseBoolean(ivp.values.get(keyName));
+					t = ivp.typed((Integer) keyName);
+					if (t == null)
+						t = TypedValue.EMPTY;
 				}
 			}
 		}
 		
-		return value;
+		return t;
+	}
+	
+	// true if a section of a compiled file is not in memory, its keys are looked up in the compiled file.
+	private boolean isCompiled(Object sectionName) {
+		return lazy != null && lazy.compiled != null && sections.get(sectionName) == null && sections.containsKey(sectionName) == true;
 	}
 	
 	/**
 	 * Return the linked list of a section.
+	 * Values changed or removed through it are seen by the expanded getters, keys that (var)
+	 * variables should find must be added with addValuePair().
 	 * @param sectionName
 	 * @return ValuePairMap
 	 */
 	public ValuePairMap getSectionValues(Object sectionName) {
-		return sections.get(sectionName);
+		ValuePairMap vpm = sectionForUpdate(sectionName);
+		if (vpm != null) {
+			vpm.handedOut = true;
+			expander.sourcesShared();
+		}
+		return vpm;
 	}
 	
 	/**
@@ -1309,7 +2283,12 @@ public class IniFile {
 	 * @return IndexedValuePair
 	 */
 	public IndexedValuePair getIndexedSectionValues(Object sectionName) {
-		return idxSections.get(sectionName);
+		IndexedValuePair ivp = indexedSectionForUpdate(sectionName);
+		if (ivp != null) {
+			ivp.handedOut = true;
+			expander.sourcesShared();
+		}
+		return ivp;
 	}
 	
 	/**
@@ -1356,7 +2335,7 @@ public class IniFile {
 	public Object[] getSectionKeys(Object sectionName) {
 		ArrayList<String> keys = new ArrayList<String>();
 		
-		ValuePairMap vpm = sections.get(sectionName);
+		ValuePairMap vpm = section(sectionName);
 		
 		if (vpm == null)
 			return null;
@@ -1379,7 +2358,7 @@ public class IniFile {
 	public Object[] getIndexedSectionKeys(Object sectionName) {
 		ArrayList<Integer> keys = new ArrayList<Integer>();
 		
-		IndexedValuePair ivp = idxSections.get(sectionName);
+		IndexedValuePair ivp = indexedSection(sectionName);
 		
 		if (ivp == null)
 			return null;
@@ -1422,7 +2401,7 @@ public class IniFile {
 		boolean flag = false;
 		
 		if (sections.containsKey(sectionName)) {
-			ValuePairMap vpm = sections.get(sectionName);
+			ValuePairMap vpm = section(sectionName);
 			if (vpm.values.containsKey(key))
 				flag = true;
 		}
@@ -1439,13 +2418,375 @@ public class IniFile {
 		boolean flag = false;
 		
 		if (idxSections.containsKey(sectionName)) {
-			IndexedValuePair ivp = idxSections.get(sectionName);
+			IndexedValuePair ivp = indexedSection(sectionName);
 			if (ivp.values.containsKey(key))
 				flag = true;
 		}
 		return flag;
 	}
 	
+	/**
+	 * Makes a read only copy of the sections and key/value pairs, with all variables expanded.
+	 * The snapshot does not change when this IniFile changes and can be shared by threads
+	 * without locking.  Comments are not copied.
+	 * @return IniSnapshot
+	 */
+	public IniSnapshot freeze() {
+		List<String> names = new ArrayList<String>(sections.size());
+		List<ValuePairMap> maps = new ArrayList<ValuePairMap>(sections.size());
+		int count = 0;
+		for (String name : sections.keySet()) {
+			ValuePairMap vpm = section(name);
+			if (name != null && vpm != null) {
+				names.add(name);
+				maps.add(vpm);
+				count += vpm.values.size();
+			}
+		}
+		
+		String[] secNames = names.toArray(new String[names.size()]);
+		int[] secStart = new int[secNames.length + 1];
+		String[] keys = new String[count];
+		String[] values = new String[count];
+		String[] expandedValues = new String[count];
+		int n = 0;
+		for (int s = 0; s < secNames.length; s++) {
+			secStart[s] = n;
+			for (Map.Entry<String, String> e : maps.get(s).values.entrySet()) {
+				keys[n] = e.getKey();
+				values[n] = e.getValue();
+				expandedValues[n] = expander.expand(secNames[s], e.getKey(), e.getValue(), false);
+				n++;
+			}
+		}
+		secStart[secNames.length] = n;
+		
+		List<String> idxNames = new ArrayList<String>(idxSections.size());
+		List<IndexedValuePair> ivps = new ArrayList<IndexedValuePair>(idxSections.size());
+		count = 0;
+		for (String name : idxSections.keySet()) {
+			IndexedValuePair ivp = indexedSection(name);
+			if (name != null && ivp != null) {
+				idxNames.add(name);
+				ivps.add(ivp);
+				count += ivp.values.size();
+			}
+		}
+		
+		String[] idxSecNames = idxNames.toArray(new String[idxNames.size()]);
+		int[] idxStart = new int[idxSecNames.length + 1];
+		int[] idxKeys = new int[count];
+		String[] idxValues = new String[count];
+		String[] idxExpandedValues = new String[count];
+		n = 0;
+		for (int s = 0; s < idxSecNames.length; s++) {
+			idxStart[s] = n;
+			for (Map.Entry<Integer, String> e : ivps.get(s).values.entrySet()) {
+				idxKeys[n] = e.getKey();
+				idxValues[n] = e.getValue();
+				idxExpandedValues[n] = expander.expand(idxSecNames[s], e.getKey(), e.getValue(), true);
+				n++;
+			}
+		}
+		idxStart[idxSecNames.length] = n;
+		
+		return new IniSnapshot(iniFileName, secNames, secStart, keys, values, expandedValues,
+				idxSecNames, idxStart, idxKeys, idxValues, idxExpandedValues);
+	}
+	
+	/**
+	 * Keeps the key/values of each section and the comments in a CompactValueMap, two arrays and
+	 * an int hash table, instead of a LinkedHashMap with one node per entry.  On by default.
+	 * The order of the keys is the same.  Sections already read are converted, a ValuePairMap.values
+	 * map taken before the call is no longer the map of its section.  The move functions take the
+	 * same time for any key of a CompactValueMap, in a LinkedHashMap they take time for each key
+	 * after the new place.
+	 * @param compact true for CompactValueMap, false for LinkedHashMap.
+	 */
+	public void setCompactMaps(boolean compact) {
+		compactMaps = compact;
+		for (ValuePairMap vpm : sections.values()) {
+			if (vpm != null)
+				vpm.values = convert(vpm.values);
+		}
+		secComments = convert(secComments);
+		kvComments = convert(kvComments);
+	}
+	
+	/**
+	 * Sets the table that shares one String between the repeated keys and short values of the
+	 * files read from now on.  Each IniFile has its own table to start with, which is emptied when
+	 * each load is done so its Strings are not kept for the life of the IniFile.  A table given
+	 * here keeps its Strings until SymbolTable.clear(), it can be given to IniFiles that are read
+	 * one after another so they share their Strings too.
+	 * @param table the table, null to make a new String for every key and value.
+	 */
+	public void setSymbolTable(SymbolTable table) {
+		symbols = table;
+		ownSymbols = false;
+	}
+	
+	/**
+	 * Returns the table sharing the Strings of the keys and values read, with its hit and miss counts.
+	 * The size of the IniFile's own table is 0 once a load is done, see setSymbolTable().
+	 * @return SymbolTable or null.
+	 */
+	public SymbolTable getSymbolTable() {
+		return symbols;
+	}
+	
+	/**
+	 * Returns true if sections keep their values in a CompactValueMap, see setCompactMaps().
+	 * @return boolean
+	 */
+	public boolean getCompactMaps() {
+		return compactMaps;
+	}
+	
+	private Map<String, String> convert(Map<String, String> m) {
+		if (compactMaps == true && m instanceof CompactValueMap == false)
+			return new CompactValueMap(m);
+		if (compactMaps == false && m instanceof CompactValueMap == true)
+			return new LinkedHashMap<String, String>(m);
+		return m;
+	}
+	
+	/**
+	 * Makes writeFile() write a temp file next to the file and rename it over the file, so a crash,
+	 * a full disk or a reader never sees a half written file.  The file keeps its permissions.
+	 * @param durability how far to force the new file to the disk, null to write the file in place.
+	 */
+	public void setAtomicWrite(Durability durability) {
+		atomicWrite = durability;
+	}
+	
+	/**
+	 * Returns how writeFile() replaces the file.
+	 * @return Durability, null if the file is written in place.
+	 */
+	public Durability getAtomicWrite() {
+		return atomicWrite;
+	}
+	
+	/**
+	 * Saves every change by appending it to a journal, the file name plus .journal, instead of
+	 * writing the whole file.  The file is written once now, then each change is appended when it
+	 * is made, or when the outermost beginUpdate()/endUpdate() ends, and writeFile() only makes
+	 * sure the journal is written.  When the journal grows past compactBytes a background thread
+	 * writes the whole file again and a new journal is started.
+	 * A journal left by a crash, or by not calling disableJournal(), is replayed by open().
+	 * @param durability how far each append is forced to the disk.
+	 * @param compactBytes journal size that starts a compaction.
+	 * @return true if the file could not be written.
+	 */
+	public boolean enableJournal(Durability durability, long compactBytes) {
+		if (iniFileName == null || noWrite == true)
+			return true;
+		
+		disableJournal();
+		IniJournal j = new IniJournal(Paths.get(iniFileName), durability, compactBytes);
+		try {
+			j.open(contents());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true;
+		}
+		reindex();
+		journal = j;
+		prints = null;
+		changed = false;
+		
+		return false;
+	}
+	
+	/**
+	 * Saves every change by appending it to a journal, compacted when it reaches 1 megabyte
+	 * or the size of the file, whichever is larger.
+	 * @param durability how far each append is forced to the disk.
+	 * @return true if the file could not be written.
+	 */
+	public boolean enableJournal(Durability durability) {
+		long size = (iniFileName != null) ? new File(iniFileName).length() : 0;
+		return enableJournal(durability, Math.max(1024L * 1024L, size));
+	}
+	
+	/**
+	 * Writes the whole file, deletes the journal and goes back to writeFile() writing the file.
+	 * @return true if the file could not be written, the journal is kept.
+	 */
+	public boolean disableJournal() {
+		if (journal == null)
+			return false;
+		
+		try {
+			journal.flush();
+			journal.close(contents());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true;
+		} finally {
+			journal = null;
+		}
+		reindex();
+		
+		return false;
+	}
+	
+	/**
+	 * Writes the whole file now and starts a new journal, waits for the file to be written.
+	 * @return true if not journaled or the file could not be written.
+	 */
+	public boolean compactJournal() {
+		if (journal == null)
+			return true;
+		
+		try {
+			journal.compact(contents(), true);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true;
+		}
+		reindex();
+		
+		return false;
+	}
+	
+	/**
+	 * Returns true if changes are saved to a journal, see enableJournal().
+	 * @return boolean
+	 */
+	public boolean isJournaled() {
+		return journal != null;
+	}
+	
+	// Adds a change to the journal, it is written by done().
+	private void log(int op, String sec, Object a, Object b) {
+		if (journal != null)
+			journal.record(op, sec, a, b);
+	}
+	
+	// Called when a change is complete, saves it to the journal and tells the listeners.
+	private void done() {
+		if (journal != null && events.updating() == false)
+			saveJournal();
+		events.fire();
+	}
+	
+	private boolean saveJournal() {
+		try {
+			if (journal.flush() == true) {
+				// a LoadMode.LAZY file is read from, so it is compacted on this thread and read again.
+				boolean lazyFile = readsFrom(Paths.get(iniFileName));
+				journal.compact(contents(), lazyFile);
+				if (lazyFile == true)
+					reindex();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true;
+		}
+		changed = false;
+		prints = null;		// the file is behind the sections.
+		
+		return false;
+	}
+	
+	// The file as writeFile() writes it.
+	private byte[] contents() throws IOException {
+		if (readsFrom(Paths.get(iniFileName)) == true)
+			readUnwritten();
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeTo(Channels.newChannel(out));
+		return out.toByteArray();
+	}
+	
+	// Applies the journal left next to file by enableJournal(), the file is behind it.
+	private void replayJournal(Path file) {
+		if (Files.exists(IniJournal.journalOf(file)) == false && Files.exists(IniJournal.oldOf(file)) == false)
+			return;
+		
+		IniJournal j = journal;
+		journal = null;		// the records are already in the journal.
+		try {
+			boolean failed = IniJournal.replay(file, Files.readAllBytes(file), new IniJournal.Replay() {
+				public void apply(int op, String sec, String a, String b, List<String> keys) {
+					replay(op, sec, a, b, keys);
+				}
+			});
+			if (failed == true) {
+				System.err.println("IniFile: " + IniJournal.journalOf(file) + " was not written for " + file + ", not replayed.");
+			} else {
+				changed = true;
+				prints = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			journal = j;
+		}
+	}
+	
+	private void replay(int op, String sec, String a, String b, List<String> keys) {
+		switch (op) {
+		case IniJournal.PUT:
+			addValuePair(sec, a, b);
+			break;
+		case IniJournal.REMOVE:
+			removeValuePair(sec, a);
+			break;
+		case IniJournal.SECTION:
+			addSection(sec);
+			break;
+		case IniJournal.DROP:
+			removeSection(sec);
+			break;
+		case IniJournal.RENAME:
+			renameSection(sec, a);
+			break;
+		case IniJournal.IPUT:
+			putIndexedValue(sec, Integer.valueOf(a), b);
+			break;
+		case IniJournal.IREMOVE:
+			removeIndexedValue(sec, Integer.valueOf(a));
+			break;
+		case IniJournal.ISECTION:
+			addIndexedSection(sec);
+			break;
+		case IniJournal.IDROP:
+			removeIndexedSection(sec);
+			break;
+		case IniJournal.IRENAME:
+			renameIndexedSection(sec, a);
+			break;
+		case IniJournal.ORDER:
+			reorderSection(sec, keys);
+			break;
+		case IniJournal.MOVE:
+			moveValuePairAfter(sec, a, b);
+			break;
+		case IniJournal.CLEAR:
+			clearAll();
+			break;
+		}
+	}
+	
+	// Sets the value of an index, keeping its place if it exists.
+	private void putIndexedValue(String sec, Integer idx, String value) {
+		IndexedValuePair ivp = indexedSectionForUpdate(sec);
+		if (ivp == null)
+			return;
+		if (ivp.values.containsKey(idx) == true)
+			expander.valueChanged(idx);
+		else
+			keyAdded(sec, idx, true);
+		events.value(sec, true, idx, ivp.get(idx), value);
+		ivp.add(idx, value);
+		changed = true;
+		log(IniJournal.IPUT, sec, idx, value);
+		done();
+	}
+	
 	public boolean writeFile() {
 		if (header != null)
 			return writeFile(header, false);
@@ -1466,6 +2807,8 @@ public class IniFile {
 	
 	/**
 	 * Writes the complete sections to the filename given when you created class.
+	 * The file is written in place unless setAtomicWrite() was called, or not at all when
+	 * enableJournal() was called.
 	 * @param topSection - string comment to place at top of file.
 	 * @param forceWrite - ignore 'changed' flag if true.
 	 * @return true if save failed.
@@ -1474,91 +2817,41 @@ public class IniFile {
 		if (iniFileName == null || noWrite == true)
 			return true;
 		
+		if (journal != null)
+			return saveJournal();		// the changes are already in the journal.
+		
 		if (forceWrite == false && changed == false)
 			return true;
 		
+		if (changed == true)
+			prints = null;		// the sections no longer match the fingerprints.
 		changed = false;
 		
+		Path file = Paths.get(iniFileName);
+		boolean lazyFile = readsFrom(file);
 		try {
-	        BufferedWriter out = new BufferedWriter(new FileWriter(iniFileName));
-	        
-	        if (topComments.size() > 0) {
-	        	for (String s : topComments)
-	        		out.write(s + "\n");
-	        }
-	        
-	        Iterator<String> it1 = sections.keySet().iterator();
-	        
-	    	while (it1.hasNext()) {
-	    		String sectionName = it1.next();
-	    		if (sectionName.endsWith("-NoWrite") == true)
-	    			continue;
-				ValuePairMap vpm = sections.get(sectionName);
-				
-				if (vpm == null)
-					break;
-				
-				out.write("\n[" + sectionName + "]\n");
-			        	
-		    	Iterator<String> it2 = vpm.values.keySet().iterator();
-		    	while (it2.hasNext()) {
-			        String key = it2.next();
-			        String value = vpm.values.get(key);
-			        
-			        if (value == null) {
-//			        	System.out.println("key " + key);
-			        	out.close();
-			        	return false;
-			        }
-			        
-		        	String[] s = value.split(System.getProperty("line.separator"));
-		        	if (s.length > 0) {
-			        	for (int x = 0; x < s.length; x++) {
-			        		out.write("\t" + key + " = " + s[x]);
-			        		if ((x + 1) < s.length)
-			        			out.write("\\n\n");
-			        		else
-			        			out.write("\n");
-			        	}
-		        	} else {
-		        		out.write("\t" + key + " = " + value + "\n");
-		        	}
-		    	}
-	    	}
-	    	
-	    	Iterator<String> it2 = idxSections.keySet().iterator();
-	        
-	    	while (it2.hasNext()) {
-	    		String sectionName = it2.next();
-	    		if (sectionName.endsWith("-NoWrite") == true)
-	    			continue;
-				IndexedValuePair ivp = idxSections.get(sectionName);
-				
-				if (ivp == null)
-					break;
-				
-				out.write("\n{" + sectionName + "}\n");
-			        	
-		    	Iterator<Integer> it3 = ivp.values.keySet().iterator();
-		    	while (it3.hasNext()) {
-			        Integer key = it3.next();
-			        String value = ivp.values.get(key);
-			        
-		        	String[] s = value.split(System.getProperty("line.separator"));
-		        	if (s.length > 0) {
-			        	for (int x = 0; x < s.length; x++) {
-			        		out.write("\t" + key + " = " + s[x]);
-			        		if ((x + 1) < s.length)
-			        			out.write("\\n\n");
-			        		else
-			        			out.write("\n");
-			        	}
-		        	} else {
-		        		out.write("\t" + key + " = " + value + "\n");
-		        	}
-		    	}
-	    	}
-	        out.close();
+			if (lazyFile == true)
+				readUnwritten();
+			
+			// the sections of a LoadMode.LAZY file are read from it while the new one is written,
+			// so it is never truncated in place.
+			if (atomicWrite != null || lazyFile == true) {
+				AtomicFile.write(file, (atomicWrite != null) ? atomicWrite : Durability.NONE, new AtomicFile.Contents() {
+					public void write(FileChannel ch) throws IOException {
+						writeTo(ch);
+					}
+				});
+			} else {
+				FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					writeTo(ch);
+				} finally {
+					ch.close();
+				}
+			}
+			if (lazyFile == true)
+				reindex();
 	        
 	        // Use this code to write file into current Eclipse project workspace.
 	        // This also notifies Eclipse that a file has been added/updated.
@@ -1572,6 +2865,7 @@ public class IniFile {
 //			}
 	    } catch (IOException e) {
 	    	e.printStackTrace();
+	    	changed = true;
 	    	return true;
 	    }
 	    
@@ -1579,90 +2873,87 @@ public class IniFile {
 	}
 	
 	/**
-	 * Creates a string of the file to write.
-	 * Does not write to file, only creates string.
-	 * @param topSection
-	 * @return String
+	 * Writes the sections the way writeFile() writes them, one entry at a time, so the memory
+	 * used does not grow with the size of the file.  The sections of a LoadMode.LAZY file are read
+	 * from it while they are written, so out must not truncate that file.
+	 * @param out where to write, ex. a Writer or a StringBuilder.
+	 * @throws IOException if out throws it or a LoadMode.LAZY section can not be read.
 	 */
-	public String stringFile(String topSection) {
-		String str = "";
-		if (iniFileName == null)
-			return null;
-        
-        if (topComments.size() > 0) {
-        	for (String s : topComments)
-        		str += s + "\n";
-        }
-        
-        Iterator<String> it1 = sections.keySet().iterator();
-        
-    	while (it1.hasNext()) {
-    		String sectionName = it1.next();
-    		if (sectionName.endsWith("-NoWrite") == true)
-    			continue;
-			ValuePairMap vpm = sections.get(sectionName);
+	public void writeTo(Appendable out) throws IOException {
+		IniWriter w = new IniWriter(out);
+		for (String s : topComments)
+			w.comment(s);
+		
+		for (String sectionName : sections.keySet()) {
+			if (sectionName.endsWith("-NoWrite") == true)
+				continue;
+			ValuePairMap vpm = section(sectionName);
 			
+			if (vpm == null && lazy != null)
+				throw new IOException("Section " + sectionName + " could not be read from " + lazy.file);
 			if (vpm == null)
 				break;
 			
-			str += "\n[" + sectionName + "]\n";
-		        	
-	    	Iterator<String> it2 = vpm.values.keySet().iterator();
-	    	while (it2.hasNext()) {
-		        String key = it2.next();
-		        String value = vpm.values.get(key);
-		        if (value == null)
-		        	continue;
-		        
-	        	String[] s = value.split(System.getProperty("line.separator"));
-	        	if (s.length > 0) {
-		        	for (int x = 0; x < s.length; x++) {
-		        		str += "\t" + key + " = " + s[x];
-		        		if ((x + 1) < s.length)
-		        			str += "\\n\n";
-		        		else
-		        			str += "\n";
-		        	}
-	        	} else {
-	        		str += "\t" + key + " = " + value + "\n";
-	        	}
-	    	}
-    	}
-    	
-    	Iterator<String> it2 = sections.keySet().iterator();
-        
-    	while (it2.hasNext()) {
-    		String sectionName = it2.next();
-    		if (sectionName.endsWith("-NoWrite") == true)
-    			continue;
-			IndexedValuePair ivp = idxSections.get(sectionName);
+			w.section(sectionName, false);
+			for (Map.Entry<String, String> e : vpm.values.entrySet())
+				w.value(e.getKey(), e.getValue());
+		}
+		
+		for (String sectionName : idxSections.keySet()) {
+			if (sectionName.endsWith("-NoWrite") == true)
+				continue;
+			IndexedValuePair ivp = indexedSection(sectionName);
 			
+			if (ivp == null && lazy != null)
+				throw new IOException("Section " + sectionName + " could not be read from " + lazy.file);
 			if (ivp == null)
 				break;
 			
-			str += "\n{" + sectionName + "}\n";
-		        	
-	    	Iterator<Integer> it3 = ivp.values.keySet().iterator();
-	    	while (it3.hasNext()) {
-		        Integer key = it3.next();
-		        String value = ivp.values.get(key);
-		        
-	        	String[] s = value.split(System.getProperty("line.separator"));
-	        	if (s.length > 0) {
-		        	for (int x = 0; x < s.length; x++) {
-		        		str += "\t" + key + " = " + s[x];
-		        		if ((x + 1) < s.length)
-		        			str += "\\n\n";
-		        		else
-		        			str += "\n";
-		        	}
-	        	} else {
-	        		str += "\t" + key + " = " + value + "\n";
-	        	}
-	    	}
-    	}
-	    
-	    return str;
+			w.section(sectionName, true);
+			for (Map.Entry<Integer, String> e : ivp.values.entrySet())
+				w.value(e.getKey(), e.getValue());
+		}
+	}
+	
+	/**
+	 * Writes the sections the way writeFile() writes them, encoded through one reusable buffer.
+	 * @param ch where to write, the channel is not closed.
+	 * @param cs character set to encode with.
+	 * @throws IOException if the channel can not be written.
+	 */
+	public void writeTo(WritableByteChannel ch, Charset cs) throws IOException {
+		IniWriter.ChannelSink sink = new IniWriter.ChannelSink(ch, cs);
+		writeTo(sink);
+		sink.finish();
+	}
+	
+	/**
+	 * Writes the sections the way writeFile() writes them in the default character set.
+	 * @param ch where to write, the channel is not closed.
+	 * @throws IOException if the channel can not be written.
+	 */
+	public void writeTo(WritableByteChannel ch) throws IOException {
+		writeTo(ch, Charset.defaultCharset());
+	}
+	
+	/**
+	 * Creates a string of the file to write.
+	 * Does not write to file, only creates string.
+	 * @param topSection
+	 * @return String
+	 */
+	public String stringFile(String topSection) {
+		if (iniFileName == null)
+			return null;
+		
+		StringBuilder sb = new StringBuilder();
+		try {
+			writeTo(sb);
+		} catch (IOException e) {
+			// not thrown by a StringBuilder.
+		}
+		
+		return sb.toString();
 	}
 	
 	/**
@@ -1672,7 +2963,7 @@ public class IniFile {
 	 */
 	public boolean printSection(Object sectionName) {
 		
-		ValuePairMap vpm = sections.get(sectionName);
+		ValuePairMap vpm = section(sectionName);
 		
 		if (vpm == null)
 			return true;
@@ -1694,7 +2985,7 @@ public class IniFile {
 	 */
 	public boolean printIndexedSection(Object sectionName) {
 		
-		IndexedValuePair ivp = idxSections.get(sectionName);
+		IndexedValuePair ivp = indexedSection(sectionName);
 		
 		if (ivp == null)
 			return true;
@@ -1714,111 +3005,174 @@ public class IniFile {
 	 */
 	@Override
 	public String toString() {
-		String s = null;
-		
 		if (iniFileName == null)
-			return s;
+			return null;
 		
-		s = iniFileName;
+		StringBuilder sb = new StringBuilder(iniFileName);
 		
-		Iterator<String> it1 = sections.keySet().iterator();
-    	while (it1.hasNext()) {
-    		String sectionName = it1.next();
-			ValuePairMap vpm = sections.get(sectionName);
+		for (String sectionName : sections.keySet()) {
+			ValuePairMap vpm = section(sectionName);
 			
 			if (vpm == null)
-				return s;
-		        	
-	    	Iterator<String> it2 = vpm.values.keySet().iterator();
-	    	while (it2.hasNext()) {
-		        String key = it2.next();
-		        String value = vpm.values.get(key);
-		        
-		        s += "\n" + sectionName + "->" + key + " = " + value;
-	    	}
-    	}
-    	
-    	Iterator<String> it2 = sections.keySet().iterator();
-    	while (it2.hasNext()) {
-    		String sectionName = it2.next();
-			IndexedValuePair ivp = idxSections.get(sectionName);
+				return sb.toString();
+			
+			for (Map.Entry<String, String> e : vpm.values.entrySet())
+				sb.append('\n').append(sectionName).append("->").append(e.getKey()).append(" = ").append(e.getValue());
+		}
+		
+		for (String sectionName : idxSections.keySet()) {
+			IndexedValuePair ivp = indexedSection(sectionName);
 			
 			if (ivp == null)
-				return s;
-		        	
-	    	Iterator<Integer> it3 = ivp.values.keySet().iterator();
-	    	while (it3.hasNext()) {
-		        Integer key = it3.next();
-		        String value = ivp.values.get(key);
-		        
-		        s += "\n" + sectionName + "->" + key + " = " + value;
-	    	}
-    	}
-    	
-		return s;
+				return sb.toString();
+			
+			for (Map.Entry<Integer, String> e : ivp.values.entrySet())
+				sb.append('\n').append(sectionName).append("->").append(e.getKey()).append(" = ").append(e.getValue());
+		}
+		
+		return sb.toString();
+	}
+	
+	// true if section sec holds key.
+	private boolean holds(String sec, String key) {
+		ValuePairMap vpm = section(sec);
+		return vpm != null && vpm.values.containsKey(key) == true;
 	}
 	
-	// If a string contains a variable like (var) then this method searches
-	// all key/values for a match, if found then value replaces (var).
-	private String expandVariables(String s) {
-		String newString = null;
+	// Fills keyOwners and indexOwners, the first section holding a key owns it.
+	// A LoadMode.LAZY file starts with empty maps and finds owners as they are needed,
+	// so the first expansion does not parse the whole file.
+	private void buildKeyIndex() {
+		Map<String, String> owners = new HashMap<String, String>();
+		Map<Integer, String> idxOwners = new HashMap<Integer, String>();
 		
-		// variables look like (var) with open and close params.
-		String regEx = "\\([A-Za-z_0-9]*\\)";
-		Pattern regPat = Pattern.compile(regEx);	// CASE SENSITIVE
-		Matcher m = regPat.matcher(s);
-		StringBuffer newBuf = new StringBuffer();
+		if (lazy != null) {
+			keyOwners = owners;
+			indexOwners = idxOwners;
+			return;
+		}
 		
-		while (m.find()) {
-			String str = m.group();
-			String var = str.substring(1, str.length() -1);
-			String v = null;
-			boolean found = false;
-			
-			Iterator<String> it = sections.keySet().iterator();
-		    while (it.hasNext()) {
-		        String key = it.next();
-		        
-		        if (key != null) {
-		        	ValuePairMap vpm = sections.get(key);
-		        	if (vpm != null) {
-		        		if (vpm.values.containsKey(var) == true) {
-			        		v = vpm.values.get(var);
-			        		found = true;
-			        		break;
-		        		}
-		        	}
-		        }
-		    }
-		    if (found == false) {
-		    	Iterator<String> it2 = idxSections.keySet().iterator();
-		    	Integer vari = Integer.parseInt(var);
-			    while (it2.hasNext()) {
-			        String key = it2.next();
-			        
-			        if (key != null) {
-			        	IndexedValuePair ivp = idxSections.get(key);
-			        	if (ivp != null) {
-			        		if (ivp.values.containsKey(vari) == true) {
-				        		v = ivp.values.get(vari);
-				        		found = true;
-				        		break;
-			        		}
-			        	}
-			        }
-			    }
-		    }
-//			System.out.println("v: " + v);
-			if (v != null) {
-				m.appendReplacement(newBuf, v);
-			} else {
-				m.appendReplacement(newBuf, "");
+		for (String sec : sections.keySet()) {
+			ValuePairMap vpm = section(sec);
+			if (vpm != null) {
+				for (String key : vpm.values.keySet()) {
+					if (owners.containsKey(key) == false)
+						owners.put(key, sec);
+				}
+			}
+		}
+		for (String sec : idxSections.keySet()) {
+			IndexedValuePair ivp = indexedSection(sec);
+			if (ivp != null) {
+				for (Integer key : ivp.values.keySet()) {
+					if (idxOwners.containsKey(key) == false)
+						idxOwners.put(key, sec);
+				}
 			}
 		}
-		m.appendTail(newBuf);
 		
-		newString = newBuf.toString();
+		keyOwners = owners;
+		indexOwners = idxOwners;
+	}
+	
+	// The section owning key, null if no section holds it.  In LoadMode.LAZY a key that has not
+	// been looked up yet is not in the owners map, the sections are searched in file order and
+	// the result is kept, a null owner too.
+	private String ownerOf(Object key, boolean indexed) {
+		Map<Object, String> owners = owners(indexed);
+		String owner = owners.get(key);
+		if (owner == null && lazy != null && owners.containsKey(key) == false) {
+			findOwner(owners, key, indexed);
+			owner = owners.get(key);
+			if (owner == null)
+				owners.put(key, null);
+		}
+		return owner;
+	}
+	
+	// A key was added to sec, sec owns it if it is the first section holding the key.
+	private void keyAdded(String sec, Object key, boolean indexed) {
+		expander.valueChanged(key);
+		if (keyOwners == null)
+			return;
+		
+		Map<Object, String> owners = owners(indexed);
+		if (lazy != null && owners.containsKey(key) == false)
+			return;		// not looked up yet.
+		String owner = owners.get(key);
+		if (owner == null || (owner.equals(sec) == false && isBefore(sec, owner, indexed) == true))
+			owners.put(key, sec);
+	}
+	
+	// A key was removed from sec, if sec owned it then the next section holding it owns it.
+	private void keyRemoved(String sec, Object key, boolean indexed) {
+		expander.valueChanged(key);
+		if (keyOwners == null)
+			return;
+		
+		Map<Object, String> owners = owners(indexed);
+		if (sec.equals(owners.get(key)) == true)
+			lost(owners, key, indexed);
+	}
+	
+	// Section sec was removed or renamed (which moves it to the end), its keys may have new owners.
+	private void sectionMoved(String sec, Collection<?> keys, boolean indexed) {
+		for (Object key : keys)
+			expander.valueChanged(key);
+		if (keyOwners == null)
+			return;
+		
+		Map<Object, String> owners = owners(indexed);
+		for (Object key : keys) {
+			if (sec.equals(owners.get(key)) == true)
+				lost(owners, key, indexed);
+		}
+	}
+	
+	// The owner of key no longer holds it, in LoadMode.LAZY the next owner is found when it is needed.
+	private void lost(Map<Object, String> owners, Object key, boolean indexed) {
+		if (lazy != null)
+			owners.remove(key);
+		else
+			findOwner(owners, key, indexed);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<Object, String> owners(boolean indexed) {
+		Object m = (indexed ? indexOwners : keyOwners);
+		return (Map<Object, String>) m;
+	}
+	
+	private void findOwner(Map<Object, String> owners, Object key, boolean indexed) {
+		owners.remove(key);
 		
-		return newString;
+		if (indexed == false) {
+			for (String s : sections.keySet()) {
+				ValuePairMap vpm = section(s);
+				if (vpm != null && vpm.values.containsKey(key) == true) {
+					owners.put(key, s);
+					return;
+				}
+			}
+		} else {
+			for (String s : idxSections.keySet()) {
+				IndexedValuePair ivp = indexedSection(s);
+				if (ivp != null && ivp.values.containsKey(key) == true) {
+					owners.put(key, s);
+					return;
+				}
+			}
+		}
+	}
+	
+	// true if section a comes before section b.
+	private boolean isBefore(String a, String b, boolean indexed) {
+		for (String s : (indexed ? idxSections.keySet() : sections.keySet())) {
+			if (s.equals(a) == true)
+				return true;
+			if (s.equals(b) == true)
+				return false;
+		}
+		return false;
 	}
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+/**
+ * Receives the parts of a .ti file from IniParser.parse() in the order they are found.
+ * Nothing is kept by the parser so memory use does not grow with the size of the file.
+ * Each callback returns CONTINUE, SKIP_SECTION or STOP to control the rest of the parse.
+ */
+public interface IniHandler {
+	/**
+	 * Keep parsing.
+	 */
+	int CONTINUE = 0;
+	
+	/**
+	 * Skip the remaining lines of the current section, parsing starts again at the next section.
+	 */
+	int SKIP_SECTION = 1;
+	
+	/**
+	 * Stop parsing, onEnd() is still called.
+	 */
+	int STOP = 2;
+	
+	/**
+	 * Called for a [section] line.
+	 * @param name section name.
+	 * @param comment trailing ; comment or null.
+	 * @return CONTINUE, SKIP_SECTION or STOP.
+	 */
+	int onSection(String name, String comment);
+	
+	/**
+	 * Called for a {section} line.
+	 * @param name indexed section name.
+	 * @param comment trailing ; comment or null.
+	 * @return CONTINUE, SKIP_SECTION or STOP.
+	 */
+	int onIndexedSection(String name, String comment);
+	
+	/**
+	 * Called for a key = value line, continuation lines have already been joined to the value.
+	 * In an indexed section the key is the index.
+	 * @param key key name.
+	 * @param value value, never null.
+	 * @param comment trailing ; comment or null.
+	 * @return CONTINUE, SKIP_SECTION or STOP.
+	 */
+	int onKeyValue(String key, String value, String comment);
+	
+	/**
+	 * Called for a line that only holds a # or ; comment.
+	 * @param comment the comment including the # or ;
+	 * @return CONTINUE, SKIP_SECTION or STOP.
+	 */
+	int onComment(String comment);
+	
+	/**
+	 * Called once at the end of the input or after STOP.
+	 */
+	void onEnd();
+	
+	/**
+	 * Called once before parsing, returns the table that shares the Strings of repeated keys
+	 * and short values, or null for a new String each time.
+	 * @return SymbolTable or null.
+	 */
+	default SymbolTable symbols() {
+		return null;
+	}
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Append only journal of the changes made to an IniFile, see IniFile.enableJournal().
+ *
+ * A journal starts with a header holding the CRC32C of the .ti file it applies to, followed by
+ * one record per change, each with its length and CRC32C so a record torn by a crash is found
+ * and ignored.  Compacting renames the journal to .journal.old, starts a new journal for the
+ * new contents of the .ti file and then writes the .ti file and deletes .journal.old on a
+ * background thread.  After a crash the header tells which of the two journals, or both, still
+ * have to be replayed over the .ti file.
+ */
+final class IniJournal {
+	// record types, an I prefix is the same change to an indexed section.
+	static final int PUT = 1;
+	static final int REMOVE = 2;
+	static final int SECTION = 3;
+	static final int DROP = 4;
+	static final int RENAME = 5;
+	static final int IPUT = 6;
+	static final int IREMOVE = 7;
+	static final int ISECTION = 8;
+	static final int IDROP = 9;
+	static final int IRENAME = 10;
+	static final int ORDER = 11;
+	static final int CLEAR = 12;
+	static final int MOVE = 13;
+	// the next count records are replayed all or none, see batch().
+	static final int BATCH = 14;
+	
+	private static final int MAGIC = 0x54494a31;		// TIJ1
+	private static final int HEADER = 12;
+	
+	// applies the records of a journal.
+	interface Replay {
+		void apply(int op, String sec, String a, String b, List<String> keys);
+	}
+	
+	final Path file;
+	final Path journal;
+	final Path old;
+	final Durability durability;
+	final long compactBytes;
+	
+	private FileChannel ch = null;
+	private long size = 0;
+	private ByteBuffer buf = ByteBuffer.allocate(4096);
+	// records made, and the count when the open batch started.
+	private int records = 0;
+	private int batched = 0;
+	private final CRC32C crc = new CRC32C();
+	private volatile Thread compactor = null;
+	
+	IniJournal(Path file, Durability durability, long compactBytes) {
+		this.file = file.toAbsolutePath();
+		this.journal = journalOf(this.file);
+		this.old = oldOf(this.file);
+		this.durability = durability;
+		this.compactBytes = compactBytes;
+	}
+	
+	static Path journalOf(Path file) {
+		return file.resolveSibling(file.getFileName() + ".journal");
+	}
+	
+	static Path oldOf(Path file) {
+		return file.resolveSibling(file.getFileName() + ".journal.old");
+	}
+	
+	// Writes the .ti file and starts an empty journal for it, any old journals are deleted.
+	void open(byte[] contents) throws IOException {
+		AtomicFile.write(file, forced(), contents);
+		Files.deleteIfExists(old);
+		start(crc(contents));
+	}
+	
+	// A new journal over the .ti file with this CRC32C.
+	private void start(long base) throws IOException {
+		ch = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer h = ByteBuffer.allocate(HEADER);
+		h.putInt(MAGIC).putLong(base).flip();
+		while (h.hasRemaining())
+			ch.write(h);
+		size = HEADER;
+		if (durability != Durability.NONE)
+			ch.force(true);
+		if (durability == Durability.METADATA)
+			AtomicFile.forceDirectory(journal.getParent());
+	}
+	
+	// The .ti file is only replaced when a compaction is forced to the disk, so a power failure
+	// can not leave a deleted .journal.old and an old .ti file.
+	private Durability forced() {
+		return (durability == Durability.NONE) ? Durability.NONE : Durability.METADATA;
+	}
+	
+	void record(int op, String sec, Object a, Object b) {
+		int start = begin(op);
+		putString(sec);
+		putString(a);
+		putString(b);
+		end(start);
+	}
+	
+	void order(String sec, Collection<?> keys) {
+		int start = begin(ORDER);
+		putString(sec);
+		ensure(4);
+		buf.putInt(keys.size());
+		for (Object k : keys)
+			putString(k);
+		end(start);
+	}
+	
+	/**
+	 * Starts a group of records that is replayed all or none, the records are counted by endBatch().
+	 * @return where the group starts.
+	 */
+	int batch() {
+		int start = begin(BATCH);
+		ensure(4);
+		buf.putInt(0);
+		end(start);
+		batched = records;
+		return start;
+	}
+	
+	// Sets the count of the group started at start, the records have not been flushed yet.
+	void endBatch(int start) {
+		buf.putInt(start + 9, records - batched);
+		seal(start, 5);
+	}
+	
+	private int begin(int op) {
+		ensure(9);
+		int start = buf.position();
+		buf.position(start + 8);
+		buf.put((byte) op);
+		return start;
+	}
+	
+	// fills in the length and CRC32C of the record.
+	private void end(int start) {
+		seal(start, buf.position() - start - 8);
+		records++;
+	}
+	
+	private void seal(int start, int len) {
+		crc.reset();
+		ByteBuffer b = buf.duplicate();
+		b.position(start + 8).limit(start + 8 + len);
+		crc.update(b);
+		buf.putInt(start, len);
+		buf.putInt(start + 4, (int) crc.getValue());
+	}
+	
+	// length + 1 then the UTF-8 bytes, 0 is null.
+	private void putString(Object o) {
+		if (o == null) {
+			ensure(4);
+			buf.putInt(0);
+			return;
+		}
+		byte[] b = o.toString().getBytes(StandardCharsets.UTF_8);
+		ensure(4 + b.length);
+		buf.putInt(b.length + 1);
+		buf.put(b);
+	}
+	
+	private void ensure(int n) {
+		if (buf.remaining() < n) {
+			ByteBuffer b = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+			buf.flip();
+			b.put(buf);
+			buf = b;
+		}
+	}
+	
+	/**
+	 * Appends the records made since the last flush.
+	 * @return true if the journal has grown past compactBytes and no compaction is running.
+	 */
+	boolean flush() throws IOException {
+		if (buf.position() > 0) {
+			buf.flip();
+			while (buf.hasRemaining())
+				size += ch.write(buf, size);
+			buf.clear();
+			if (buf.capacity() > 1 << 20)
+				buf = ByteBuffer.allocate(4096);
+			if (durability != Durability.NONE)
+				ch.force(durability == Durability.METADATA);
+		}
+		return size > compactBytes && compactor == null;
+	}
+	
+	/**
+	 * Starts a new journal for contents, the records so far are kept in .journal.old until
+	 * contents have been written to the .ti file.
+	 * @param contents the .ti file as it is now.
+	 * @param wait true to write the .ti file on this thread.
+	 */
+	void compact(final byte[] contents, boolean wait) throws IOException {
+		waitForCompaction();
+		flush();
+		ch.force(true);
+		ch.close();
+		
+		if (Files.exists(old) == true) {
+			// a compaction failed, .journal.old still applies to the .ti file so add these records to it.
+			FileChannel from = FileChannel.open(journal, StandardOpenOption.READ);
+			FileChannel to = FileChannel.open(old, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			try {
+				long pos = HEADER;
+				long end = from.size();
+				while (pos < end)
+					pos += from.transferTo(pos, end - pos, to);
+				to.force(true);
+			} finally {
+				from.close();
+				to.close();
+			}
+		} else {
+			Files.move(journal, old, StandardCopyOption.ATOMIC_MOVE);
+		}
+		start(crc(contents));
+		
+		Runnable r = new Runnable() {
+			public void run() {
+				try {
+					AtomicFile.write(file, forced(), contents);
+					Files.deleteIfExists(old);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					compactor = null;
+				}
+			}
+		};
+		
+		if (wait == true) {
+			r.run();
+		} else {
+			Thread t = new Thread(r, "IniJournal " + file.getFileName());
+			t.setDaemon(true);
+			compactor = t;
+			t.start();
+		}
+	}
+	
+	void waitForCompaction() {
+		Thread t = compactor;
+		while (t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			t = compactor;
+		}
+	}
+	
+	/**
+	 * Writes contents to the .ti file and deletes the journals.
+	 * @param contents the .ti file as it is now.
+	 */
+	void close(byte[] contents) throws IOException {
+		waitForCompaction();
+		ch.close();
+		AtomicFile.write(file, forced(), contents);
+		Files.deleteIfExists(journal);
+		Files.deleteIfExists(old);
+	}
+	
+	long size() {
+		return size + buf.position();
+	}
+	
+	static long crc(byte[] b) {
+		CRC32C c = new CRC32C();
+		c.update(b, 0, b.length);
+		return c.getValue();
+	}
+	
+	/**
+	 * Replays the journals left next to a .ti file by a crash or an IniFile that was not closed.
+	 * @param file the .ti file.
+	 * @param contents bytes of the .ti file.
+	 * @return false if there was nothing to replay or the journals were replayed, true if the
+	 * journals do not belong to the .ti file and were not replayed.
+	 */
+	static boolean replay(Path file, byte[] contents, Replay r) throws IOException {
+		Path j = journalOf(file);
+		Path o = oldOf(file);
+		boolean hasJournal = Files.exists(j);
+		boolean hasOld = Files.exists(o);
+		if (hasJournal == false && hasOld == false)
+			return false;
+		
+		long base = crc(contents);
+		if (hasOld == true && base(o) == base) {
+			// the last compaction did not finish, the .ti file is older than both journals.
+			read(o, r);
+			if (hasJournal == true)
+				read(j, r);
+		} else if (hasJournal == true && base(j) == base) {
+			read(j, r);
+		} else {
+			return true;
+		}
+		return false;
+	}
+	
+	// the CRC32C of the .ti file the journal applies to, -1 if it is not a journal.
+	private static long base(Path journal) throws IOException {
+		FileChannel c = FileChannel.open(journal, StandardOpenOption.READ);
+		try {
+			ByteBuffer h = ByteBuffer.allocate(HEADER);
+			while (h.hasRemaining() && c.read(h) > 0)
+				;
+			h.flip();
+			if (h.remaining() < HEADER || h.getInt() != MAGIC)
+				return -1;
+			return h.getLong();
+		} finally {
+			c.close();
+		}
+	}
+	
+	// Applies the records up to the end of the file or the first torn record.
+	private static void read(Path journal, Replay r) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(journal));
+		b.position(HEADER);
+		CRC32C c = new CRC32C();
+		List<Object[]> held = null;
+		int left = 0;
+		
+		while (b.remaining() >= 9) {
+			int len = b.getInt();
+			int sum = b.getInt();
+			if (len <= 0 || len > b.remaining())
+				break;
+			ByteBuffer rec = b.slice();
+			rec.limit(len);
+			c.reset();
+			c.update(rec.duplicate());
+			if ((int) c.getValue() != sum)
+				break;
+			b.position(b.position() + len);
+			
+			int op = rec.get();
+			if (op == BATCH) {
+				left = rec.getInt();
+				held = new ArrayList<Object[]>(left);
+				continue;
+			}
+			String sec = getString(rec);
+			Object[] o;
+			if (op == ORDER) {
+				int n = rec.getInt();
+				List<String> keys = new ArrayList<String>(n);
+				for (int i = 0; i < n; i++)
+					keys.add(getString(rec));
+				o = new Object[] { op, sec, null, null, keys };
+			} else {
+				String a = getString(rec);
+				o = new Object[] { op, sec, a, getString(rec), null };
+			}
+			
+			if (left == 0) {
+				apply(r, o);
+			} else {
+				// a batch is applied once its last record is read, a torn batch is dropped.
+				held.add(o);
+				if (--left == 0) {
+					for (Object[] h : held)
+						apply(r, h);
+				}
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static void apply(Replay r, Object[] o) {
+		r.apply((Integer) o[0], (String) o[1], (String) o[2], (String) o[3], (List<String>) o[4]);
+	}
+	
+	private static String getString(ByteBuffer b) {
+		int n = b.getInt() - 1;
+		if (n < 0)
+			return null;
+		String s = new String(b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8);
+		b.position(b.position() + n);
+		return s;
+	}
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.util.List;
+
+/**
+ * Receives the changes made to an IniFile, see IniFile.subscribe().
+ * The changes of one update are collected and delivered in one call, a key that changed more
+ * than once is listed once with its first old value and its last new value.
+ */
+public interface IniListener {
+	/**
+	 * Called on the thread that changed the IniFile after the update is complete.
+	 * @param changes the changes that match the subscription, in the order they were made.
+	 */
+	void changed(List<IniChange> changes);
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single pass parser for the .ti file syntax, used by all of the IniFile load methods.
+ * Each line is copied once into a reused char buffer and the section, key, value and
+ * comment boundaries are found by index, Strings are only created for the parts handed
+ * to the IniHandler.
+ * 
+ * Example, counting the keys of a file without loading it:
+ * 
+ * final int[] count = new int[1];
+ * IniParser.parse(Paths.get("big.ti"), new IniHandler() {
+ *    public int onSection(String name, String comment) { return CONTINUE; }
+ *    public int onIndexedSection(String name, String comment) { return SKIP_SECTION; }
+ *    public int onKeyValue(String key, String value, String comment) { count[0]++; return CONTINUE; }
+ *    public int onComment(String comment) { return CONTINUE; }
+ *    public void onEnd() { }
+ * });
+ */
+public final class IniParser {
+
+	private final Source src;
+	private final IniHandler handler;
+	// shares the Strings of repeated keys and values, null if the handler has none.
+	private final SymbolTable symbols;
+	// the current line, without the line terminator.
+	char[] line = new char[256];
+	int len = 0;
+
+	private IniParser(Source src, IniHandler handler) {
+		this.src = src;
+		this.handler = handler;
+		this.symbols = handler.symbols();
+	}
+
+	/**
+	 * Parses all lines read from rd, the reader is not closed.
+	 * @param rd reader positioned at the start of .ti formated data.
+	 * @param handler receives the parts of the file.
+	 */
+	public static void parse(Reader rd, IniHandler handler) throws IOException {
+		new IniParser(new ReaderSource(rd), handler).run();
+	}
+
+	/**
+	 * Parses all lines read from a stream, the stream is not closed.
+	 * @param ins stream positioned at the start of .ti formated data.
+	 * @param cs character set of the stream.
+	 * @param handler receives the parts of the file.
+	 */
+	public static void parse(InputStream ins, Charset cs, IniHandler handler) throws IOException {
+		parse(new InputStreamReader(ins, cs), handler);
+	}
+
+	/**
+	 * Parses a file by mapping it into memory, using the default character set.
+	 * @param file path of the file.
+	 * @param handler receives the parts of the file.
+	 */
+	public static void parse(Path file, IniHandler handler) throws IOException {
+		parse(file, Charset.defaultCharset(), handler);
+	}
+
+	/**
+	 * Parses a file by mapping it into memory.  A file in a charset whose ASCII chars are not
+	 * single bytes, ex. UTF-16, is read through a Reader instead.
+	 * @param file path of the file.
+	 * @param cs character set of the file.
+	 * @param handler receives the parts of the file.
+	 */
+	public static void parse(Path file, Charset cs, IniHandler handler) throws IOException {
+		if (asciiCompatible(cs) == false) {
+			InputStream in = Files.newInputStream(file);
+			try {
+				parse(in, cs, handler);
+			} finally {
+				in.close();
+			}
+			return;
+		}
+
+		FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			parse(ch, 0, ch.size(), cs, handler);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Parses all lines of the character sequence.
+	 * @param cs .ti formated characters.
+	 * @param handler receives the parts of the file.
+	 */
+	public static void parse(CharSequence cs, IniHandler handler) {
+		try {
+			new IniParser(new CharSequenceSource(cs), handler).run();
+		} catch (IOException e) {
+			// not thrown by a CharSequenceSource.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parses the bytes from start to end of a file by mapping them into memory.
+	 * Bytes are only decoded a line at a time into the line buffer.  Lines are found in
+	 * the bytes, cs must be asciiCompatible().
+	 */
+	static void parse(FileChannel ch, long start, long end, Charset cs, IniHandler handler) throws IOException {
+		new IniParser(new MappedSource(ch, start, end, cs), handler).run();
+	}
+
+	/**
+	 * Same as parse(FileChannel, ...) but returns the parser so the handler can ask
+	 * for lineStart() while it runs.  Call run() to parse.
+	 */
+	static IniParser mapped(FileChannel ch, long start, long end, Charset cs, IniHandler handler) {
+		return new IniParser(new MappedSource(ch, start, end, cs), handler);
+	}
+
+	// true if the ASCII chars of cs are single bytes, so a line or section can be found in the bytes.
+	static boolean asciiCompatible(Charset cs) {
+		String n = cs.name();
+		return n.equals("UTF-8") || n.equals("US-ASCII") || n.startsWith("ISO-8859-")
+			|| n.startsWith("windows-125");
+	}
+
+	/**
+	 * Byte offset of the first section line that starts after from, or end if there is none.
+	 * Only the bytes are looked at, cs must be asciiCompatible().
+	 */
+	static long nextSection(FileChannel ch, long from, long end) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+		long pos = from;
+		// in the blanks at the start of a line, the line holding from stays with the previous chunk.
+		boolean start = false;
+
+		while (pos < end) {
+			b.clear();
+			b.limit((int) Math.min(b.capacity(), end - pos));
+			int n = ch.read(b, pos);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				byte c = b.get(i);
+				if (c == '\n') {
+					start = true;
+				} else if (start == true && (c < 0 || c > ' ')) {		// the parser skips chars up to ' '.
+					if (c == '[' || c == '{')
+						return pos + i;
+					start = false;
+				}
+			}
+			pos += n;
+		}
+		return end;
+	}
+
+	/**
+	 * Byte offset in the file of the line being handled, only known for mapped files, else -1.
+	 */
+	long lineStart() {
+		return src.lineStart;
+	}
+
+	// Makes sure the line buffer can hold n chars, keeping the current contents.
+	void ensureCapacity(int n) {
+		if (n > line.length) {
+			char[] a = new char[Math.max(n, line.length * 2)];
+			System.arraycopy(line, 0, a, 0, len);
+			line = a;
+		}
+	}
+
+	void run() throws IOException {
+		boolean skip = false;
+		int r = IniHandler.CONTINUE;
+
+		while (r != IniHandler.STOP && src.nextLine(this)) {
+			int s = 0;
+			int e = len;
+			char[] l = line;
+
+			while (s < e && l[s] <= ' ')
+				s++;
+
+			// only a section line ends a skipped section, nothing else is looked at.
+			if (skip == true && (s == e || (l[s] != '[' && l[s] != '{')))
+				continue;
+			skip = false;
+
+			while (e > s && l[e - 1] <= ' ')
+				e--;
+
+			if (s == e)
+				continue;
+
+			if (l[s] == '#') {
+				r = handler.onComment(new String(l, s, e - s));
+				skip = r == IniHandler.SKIP_SECTION;
+				continue;
+			}
+
+			// remove trailing comment from line.
+			int c = lastIndexOf(l, ';', s, e);
+			int ce = e;
+			if (c != -1) {
+				ce = c;
+				while (ce > s && l[ce - 1] <= ' ')
+					ce--;
+			}
+
+			if (s == ce || l[s] == ';') {
+				r = handler.onComment(new String(l, s, e - s));
+				skip = r == IniHandler.SKIP_SECTION;
+				continue;
+			}
+
+			String comment = (c != -1) ? new String(l, c, e - c) : null;
+
+			if (l[s] == '[' || l[s] == '{') {			// section found
+				char close = (l[s] == '[') ? ']' : '}';
+				int ne = indexOf(l, close, s + 1, ce);
+				if (ne == -1)
+					ne = ce;
+				int ns = s + 1;
+				while (ns < ne && l[ns] <= ' ')
+					ns++;
+				while (ne > ns && l[ne - 1] <= ' ')
+					ne--;
+
+				String name = new String(l, ns, ne - ns);
+				if (close == ']')
+					r = handler.onSection(name, comment);
+				else
+					r = handler.onIndexedSection(name, comment);
+				skip = r == IniHandler.SKIP_SECTION;
+				continue;
+			}
+
+			int x = indexOf(l, '=', s, ce);
+			if (x == -1)
+				continue;
+
+			int ke = x;
+			while (ke > s && l[ke - 1] <= ' ')
+				ke--;
+			if (ke == s)
+				continue;
+
+			int vs = x + 1;
+			while (vs < ce && l[vs] <= ' ')
+				vs++;
+
+			String key = string(l, s, ke - s);
+
+			if (vs == ce) {
+				r = handler.onKeyValue(key, "", comment);
+				skip = r == IniHandler.SKIP_SECTION;
+				continue;
+			}
+
+			String value;
+			if (l[vs] == '"' && indexOf(l, '"', vs + 1, ce) == -1) {
+				// value starts with a quote then get rest of string value from the next lines.
+				StringBuilder sb = new StringBuilder(ce - vs + 64);
+				sb.append(l, vs, ce - vs);
+				boolean endQuote = false;
+				while (endQuote == false && src.nextLine(this)) {
+					for (int z = 0; z < len; z++) {
+						sb.append(line[z]);
+						if (line[z] == '"') {
+							endQuote = true;
+							break;
+						}
+					}
+				}
+				value = sb.toString();
+			} else if (l[ce - 1] == '\\') {
+				// trailing backslash, value continues on the next line.
+				StringBuilder sb = new StringBuilder(ce - vs + 64);
+				sb.append(l, vs, ce - vs - 1);
+				trimEnd(sb);
+				value = continuation(sb);
+			} else {
+				value = string(l, vs, ce - vs);
+			}
+
+			r = handler.onKeyValue(key, value, comment);
+			skip = r == IniHandler.SKIP_SECTION;
+		}
+
+		handler.onEnd();
+	}
+
+	private String string(char[] l, int s, int n) {
+		return (symbols != null) ? symbols.get(l, s, n) : new String(l, s, n);
+	}
+
+	// Appends continuation lines, separated by a space, until a line does not end with a backslash.
+	private String continuation(StringBuilder sb) throws IOException {
+		while (src.nextLine(this)) {
+			char[] l = line;
+			int s = 0;
+			int e = len;
+
+			int c = lastIndexOf(l, ';', s, e);		// remove trailing comment from line.
+			if (c != -1)
+				e = c;
+			while (s < e && l[s] <= ' ')
+				s++;
+			while (e > s && l[e - 1] <= ' ')
+				e--;
+
+			if (s == e)
+				continue;
+
+			sb.append(' ');
+			if (l[e - 1] != '\\') {
+				sb.append(l, s, e - s);
+				break;
+			}
+			sb.append(l, s, e - s - 1);
+			trimEnd(sb);
+		}
+
+		return sb.toString();
+	}
+
+	private static void trimEnd(StringBuilder sb) {
+		int n = sb.length();
+		while (n > 0 && sb.charAt(n - 1) <= ' ')
+			n--;
+		sb.setLength(n);
+	}
+
+	private static int indexOf(char[] a, char ch, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (a[i] == ch)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int lastIndexOf(char[] a, char ch, int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (a[i] == ch)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Supplies the parser with one line at a time.
+	 */
+	abstract static class Source {
+		// byte offset of the current line when known.
+		long lineStart = -1;
+
+		// Copies the next line into p.line and p.len, returns false at end of input.
+		abstract boolean nextLine(IniParser p) throws IOException;
+	}
+
+	private static final class ReaderSource extends Source {
+		private final Reader rd;
+		private final char[] buf = new char[1 << 16];
+		private int pos = 0;
+		private int lim = 0;
+		private boolean eof = false;
+
+		ReaderSource(Reader rd) {
+			this.rd = rd;
+		}
+
+		boolean nextLine(IniParser p) throws IOException {
+			p.len = 0;
+			boolean any = false;
+
+			while (true) {
+				if (pos == lim) {
+					if (eof)
+						break;
+					lim = rd.read(buf, 0, buf.length);
+					pos = 0;
+					if (lim <= 0) {
+						lim = 0;
+						eof = true;
+						break;
+					}
+				}
+				any = true;
+
+				int i = pos;
+				while (i < lim && buf[i] != '\n')
+					i++;
+
+				int n = i - pos;
+				p.ensureCapacity(p.len + n);
+				System.arraycopy(buf, pos, p.line, p.len, n);
+				p.len += n;
+
+				if (i < lim) {
+					pos = i + 1;
+					break;
+				}
+				pos = lim;
+			}
+
+			if (any && p.len > 0 && p.line[p.len - 1] == '\r')
+				p.len--;
+
+			return any;
+		}
+	}
+
+	private static final class CharSequenceSource extends Source {
+		private final CharSequence cs;
+		private final String str;
+		private int pos = 0;
+
+		CharSequenceSource(CharSequence cs) {
+			this.cs = cs;
+			this.str = (cs instanceof String) ? (String) cs : null;
+		}
+
+		boolean nextLine(IniParser p) {
+			int end = cs.length();
+			if (pos >= end)
+				return false;
+
+			int i = (str != null) ? str.indexOf('\n', pos) : indexOf(cs, pos, end);
+			if (i == -1)
+				i = end;
+
+			int n = i - pos;
+			p.ensureCapacity(n);
+			if (str != null) {
+				str.getChars(pos, i, p.line, 0);
+			} else {
+				for (int z = 0; z < n; z++)
+					p.line[z] = cs.charAt(pos + z);
+			}
+			p.len = n;
+			pos = i + 1;
+
+			if (n > 0 && p.line[n - 1] == '\r')
+				p.len--;
+
+			return true;
+		}
+
+		private int indexOf(CharSequence cs, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (cs.charAt(i) == '\n')
+					return i;
+			}
+			return -1;
+		}
+	}
+
+	private static final class MappedSource extends Source {
+		// largest part of the file mapped at one time.
+		private static final long WINDOW = 1L << 30;
+
+		private final FileChannel ch;
+		private final long end;
+		private final CharsetDecoder decoder;
+		private final boolean asciiCompatible;
+		private MappedByteBuffer buf = null;
+		private long winStart;
+		private int pos = 0;
+
+		MappedSource(FileChannel ch, long start, long end, Charset cs) {
+			this.ch = ch;
+			this.end = end;
+			this.winStart = start;
+			this.decoder = cs.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.asciiCompatible = asciiCompatible(cs);
+		}
+
+		// maps the window that starts at the absolute file position from.
+		private void map(long from) throws IOException {
+			winStart = from;
+			pos = 0;
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, from, Math.min(end - from, WINDOW));
+		}
+
+		boolean nextLine(IniParser p) throws IOException {
+			if (buf == null) {
+				if (winStart >= end)
+					return false;
+				map(winStart);
+			}
+			if (pos >= buf.limit()) {
+				if (winStart + pos >= end)
+					return false;
+				map(winStart + pos);
+			}
+
+			int i = scan(pos);
+			if (i == buf.limit() && winStart + i < end) {
+				// the line runs past the window, start a new window at the line.
+				map(winStart + pos);
+				i = scan(0);
+			}
+			lineStart = winStart + pos;
+
+			decode(p, pos, i);
+			pos = i + 1;
+
+			if (p.len > 0 && p.line[p.len - 1] == '\r')
+				p.len--;
+
+			return true;
+		}
+
+		private int scan(int i) {
+			MappedByteBuffer b = buf;
+			int lim = b.limit();
+			while (i < lim && b.get(i) != '\n')
+				i++;
+			return i;
+		}
+
+		private void decode(IniParser p, int from, int to) {
+			int n = to - from;
+			p.len = 0;
+			p.ensureCapacity(n);
+
+			if (asciiCompatible) {
+				char[] l = p.line;
+				MappedByteBuffer b = buf;
+				int z = 0;
+				for (; z < n; z++) {
+					byte c = b.get(from + z);
+					if (c < 0)
+						break;
+					l[z] = (char) c;
+				}
+				if (z == n) {
+					p.len = n;
+					return;
+				}
+			}
+
+			ByteBuffer in = buf.duplicate();
+			in.limit(to).position(from);
+			p.ensureCapacity((int) (n * (double) decoder.maxCharsPerByte()) + 1);
+			CharBuffer out = CharBuffer.wrap(p.line);
+			decoder.reset();
+			decoder.decode(in, out, true);
+			decoder.flush(out);
+			p.len = out.position();
+		}
+	}
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.util.Arrays;
+
+/**
+ * A read only copy of an IniFile, made by IniFile.freeze().
+ * Sections and key/value pairs are held in flat arrays with open addressing hash tables
+ * and variables are expanded when the snapshot is made, nothing changes after that so
+ * one snapshot can be read by any number of threads without locking.
+ * The getters are the same as the IniFile getters and return the same values.
+ */
+public final class IniSnapshot {
+	
+	private final String fileName;
+	
+	// sections in file order, the key/value pairs of section s are entries secStart[s] to secStart[s + 1] - 1.
+	private final String[] secNames;
+	private final int[] secTable;
+	private final int[] secStart;
+	private final String[] keys;
+	private final String[] values;
+	private final String[] expanded;
+	private final int[] keyTable;
+	
+	// indexed sections, idxSorted holds the entries of each section in index order for a binary search.
+	private final String[] idxNames;
+	private final int[] idxTable;
+	private final int[] idxStart;
+	private final int[] idxKeys;
+	private final int[] idxSorted;
+	private final String[] idxValues;
+	private final String[] idxExpanded;
+	
+	// parsed forms of the values, filled in on first use.  TypedValue only has final fields
+	// so a TypedValue written by one thread can be read by another without locking.
+	private final TypedValue[] typed;
+	private final TypedValue[] idxTyped;
+	
+	// Arrays are owned by the snapshot, built by IniFile.freeze().
+	IniSnapshot(String fileName, String[] secNames, int[] secStart, String[] keys, String[] values, String[] expanded,
+			String[] idxNames, int[] idxStart, int[] idxKeys, String[] idxValues, String[] idxExpanded) {
+		this.fileName = fileName;
+		
+		this.secNames = secNames;
+		this.secStart = secStart;
+		this.keys = keys;
+		this.values = values;
+		this.expanded = expanded;
+		this.secTable = nameTable(secNames);
+		
+		this.keyTable = new int[tableSize(keys.length)];
+		int mask = keyTable.length - 1;
+		for (int s = 0; s < secNames.length; s++) {
+			for (int i = secStart[s]; i < secStart[s + 1]; i++) {
+				int slot = hash(s, keys[i]) & mask;
+				while (keyTable[slot] != 0)
+					slot = (slot + 1) & mask;
+				keyTable[slot] = i + 1;
+			}
+		}
+		
+		this.idxNames = idxNames;
+		this.idxStart = idxStart;
+		this.idxKeys = idxKeys;
+		this.idxValues = idxValues;
+		this.idxExpanded = idxExpanded;
+		this.idxTable = nameTable(idxNames);
+		
+		this.idxSorted = new int[idxKeys.length];
+		for (int s = 0; s < idxNames.length; s++) {
+			int from = idxStart[s];
+			int to = idxStart[s + 1];
+			long[] order = new long[to - from];
+			for (int i = from; i < to; i++)
+				order[i - from] = ((long) idxKeys[i] << 32) | (i & 0xffffffffL);
+			Arrays.sort(order);
+			for (int i = from; i < to; i++)
+				idxSorted[i] = (int) order[i - from];
+		}
+		
+		this.typed = new TypedValue[keys.length];
+		this.idxTyped = new TypedValue[idxKeys.length];
+	}
+	
+	// a power of two at least twice n so probe runs stay short.
+	private static int tableSize(int n) {
+		int size = 2;
+		while (size < n * 2)
+			size <<= 1;
+		return size;
+	}
+	
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private static int hash(int sec, String key) {
+		return mix(key.hashCode() + sec * 31);
+	}
+	
+	private static int[] nameTable(String[] names) {
+		int[] table = new int[tableSize(names.length)];
+		int mask = table.length - 1;
+		for (int i = 0; i < names.length; i++) {
+			int slot = mix(names[i].hashCode()) & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = i + 1;
+		}
+		return table;
+	}
+	
+	// Position of name in names, -1 if not found.
+	private static int find(String[] names, int[] table, Object name) {
+		if (name instanceof String == false)
+			return -1;
+		
+		int mask = table.length - 1;
+		int slot = mix(name.hashCode()) & mask;
+		int i;
+		while ((i = table[slot]) != 0) {
+			if (names[i - 1].equals(name))
+				return i - 1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	// Entry of key in section s, -1 if not found.
+	private int findKey(int s, String key) {
+		int mask = keyTable.length - 1;
+		int slot = hash(s, key) & mask;
+		int i;
+		while ((i = keyTable[slot]) != 0) {
+			i--;
+			if (i >= secStart[s] && i < secStart[s + 1] && keys[i].equals(key))
+				return i;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	// Entry of index key in indexed section s, -1 if not found.
+	private int findIndex(int s, int key) {
+		int lo = idxStart[s];
+		int hi = idxStart[s + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int k = idxKeys[idxSorted[mid]];
+			if (k < key)
+				lo = mid + 1;
+			else if (k > key)
+				hi = mid - 1;
+			else
+				return idxSorted[mid];
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the file name of the IniFile the snapshot was made from.
+	 * @return file name
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+	
+	/**
+	 * Returns the number of sections in file.
+	 * @return int number of sections in a file.
+	 */
+	public int getSectionCount() {
+		return secNames.length + idxNames.length;
+	}
+	
+	/**
+	 * returns the number of total key/values pairs by adding all sections together.
+	 * @return int total key/value pair count
+	 */
+	public int getValueCount() {
+		return keys.length + idxKeys.length;
+	}
+	
+	/**
+	 * Returns key/value pair count of a section
+	 * @param sectionName section name
+	 * @return int count of key/value pairs in a section.
+	 */
+	public int getSectionValueCount(Object sectionName) {
+		int s = find(secNames, secTable, sectionName);
+		return (s == -1) ? 0 : secStart[s + 1] - secStart[s];
+	}
+	
+	/**
+	 * Returns index/value pair count of a section
+	 * @param sectionName section name
+	 * @return int count of key/value pairs in a section.
+	 */
+	public int getIndexedSectionValueCount(Object sectionName) {
+		int s = find(idxNames, idxTable, sectionName);
+		return (s == -1) ? 0 : idxStart[s + 1] - idxStart[s];
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string.
+	 * Same as getSectionValueAsString().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param flag whether to expand variables or not.
+	 * @return String value
+	 */
+	public String getString(Object sectionName, Object keyName, boolean flag) {
+		return getSectionValueAsString(sectionName, keyName, flag);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string but does not
+	 * expand any variables.  Same as getSectionValueAsString().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return String value
+	 */
+	public String getString(Object sectionName, Object keyName) {
+		return getSectionValueAsString(sectionName, keyName, false);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string but does not
+	 * expand any variables.
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return String value
+	 */
+	public String getSectionValueAsString(Object sectionName, Object keyName) {
+		return getSectionValueAsString(sectionName, keyName, false);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string.
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param flag whether to expand variables or not.
+	 * @return String value
+	 */
+	public String getSectionValueAsString(Object sectionName, Object keyName, boolean flag) {
+		if (keyName instanceof String) {
+			int s = find(secNames, secTable, sectionName);
+			if (s != -1) {
+				int i = findKey(s, (String) keyName);
+				if (i != -1)
+					return flag ? expanded[i] : values[i];
+			}
+		} else if (keyName instanceof Integer) {
+			int s = find(idxNames, idxTable, sectionName);
+			if (s != -1) {
+				int i = findIndex(s, (Integer) keyName);
+				if (i != -1)
+					return flag ? idxExpanded[i] : idxValues[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * Same as getSectionValueAsInt()
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return int value
+	 */
+	public int getInt(Object sectionName, Object keyName) {
+		return getSectionValueAsInt(sectionName, keyName);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * Same as getSectionValueAsDouble()
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return double value
+	 */
+	public double getDouble(Object sectionName, Object keyName) {
+		return getSectionValueAsDouble(sectionName, keyName);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return int value, -1 if the section does not exist, 0 if the key does not exist or is not a number.
+	 */
+	public int getSectionValueAsInt(Object sectionName, Object keyName) {
+		return TypedValue.asInt(typedValue(sectionName, keyName));
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return int value
+	 */
+	public int getSectionValueAsInt(Object sectionName, Object keyName, int def) {
+		return TypedValue.asInt(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as a long
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return long value
+	 */
+	public long getSectionValueAsLong(Object sectionName, Object keyName, long def) {
+		return TypedValue.asLong(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return double value, -1 if the section does not exist, 0 if the key does not exist or is not a number.
+	 */
+	public double getSectionValueAsDouble(Object sectionName, Object keyName) {
+		return TypedValue.asDouble(typedValue(sectionName, keyName));
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a number.
+	 * @return double value
+	 */
+	public double getSectionValueAsDouble(Object sectionName, Object keyName, double def) {
+		return TypedValue.asDouble(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * Same as getSectionValueAsBoolean().
+	 * @param sectionName
+	 * @param keyName
+	 * @return false if section or key/value does not exist.
+	 */
+	public boolean getBoolean(Object sectionName, Object keyName) {
+		return getSectionValueAsBoolean(sectionName, keyName);
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * @param sectionName
+	 * @param keyName
+	 * @return false if section or key/value does not exist.
+	 */
+	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName) {
+		return TypedValue.asBoolean(typedValue(sectionName, keyName));
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * @param sectionName
+	 * @param keyName
+	 * @param def value returned if the section or key does not exist or is not true or false.
+	 * @return boolean value
+	 */
+	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName, boolean def) {
+		return TypedValue.asBoolean(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Gets a duration in milliseconds, see IniFile.getSectionValueAsMillis().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a duration.
+	 * @return duration in milliseconds
+	 */
+	public long getSectionValueAsMillis(Object sectionName, Object keyName, long def) {
+		return TypedValue.asMillis(typedValue(sectionName, keyName), def);
+	}
+	
+	/**
+	 * Gets a size in bytes, see IniFile.getSectionValueAsBytes().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the section or key does not exist or is not a size.
+	 * @return size in bytes
+	 */
+	public long getSectionValueAsBytes(Object sectionName, Object keyName, long def) {
+		return TypedValue.asBytes(typedValue(sectionName, keyName), def);
+	}
+	
+	// The parsed forms of a value, TypedValue.EMPTY if the key does not exist, null if the section does not exist.
+	private TypedValue typedValue(Object sectionName, Object keyName) {
+		TypedValue[] cache;
+		String v;
+		int i;
+		
+		if (keyName instanceof String) {
+			int s = find(secNames, secTable, sectionName);
+			if (s == -1)
+				return null;
+			i = findKey(s, (String) keyName);
+			if (i == -1)
+				return TypedValue.EMPTY;
+			cache = typed;
+			v = values[i];
+		} else if (keyName instanceof Integer) {
+			int s = find(idxNames, idxTable, sectionName);
+			if (s == -1)
+				return null;
+			i = findIndex(s, (Integer) keyName);
+			if (i == -1)
+				return TypedValue.EMPTY;
+			cache = idxTyped;
+			v = idxValues[i];
+		} else {
+			return null;
+		}
+		
+		TypedValue t = cache[i];
+		if (t == null) {
+			t = TypedValue.parse(v);
+			cache[i] = t;
+		}
+		return t;
+	}
+	
+	/**
+	 * Returns a copy of a section, changes to the copy are not seen by the snapshot.
+	 * @param sectionName
+	 * @return ValuePairMap or null if the section does not exist.
+	 */
+	public ValuePairMap getSectionValues(Object sectionName) {
+		int s = find(secNames, secTable, sectionName);
+		if (s == -1)
+			return null;
+		
+		ValuePairMap vpm = new ValuePairMap();
+		for (int i = secStart[s]; i < secStart[s + 1]; i++)
+			vpm.add(keys[i], values[i]);
+		return vpm;
+	}
+	
+	/**
+	 * Returns a copy of an indexed section, changes to the copy are not seen by the snapshot.
+	 * @param sectionName
+	 * @return IndexedValuePair or null if the section does not exist.
+	 */
+	public IndexedValuePair getIndexedSectionValues(Object sectionName) {
+		int s = find(idxNames, idxTable, sectionName);
+		if (s == -1)
+			return null;
+		
+		IndexedValuePair ivp = new IndexedValuePair();
+		for (int i = idxStart[s]; i < idxStart[s + 1]; i++)
+			ivp.add(idxKeys[i], idxValues[i]);
+		return ivp;
+	}
+	
+	/**
+	 * Get an array of all section names.
+	 * @return an array of section names as an array of Objects.
+	 */
+	public Object[] getSectionNames() {
+		return Arrays.copyOf(secNames, secNames.length, Object[].class);
+	}
+	
+	/**
+	 * Get an array of all indexed section names.
+	 * @return an array of section names as an array of Objects.
+	 */
+	public Object[] getIndexedSectionNames() {
+		return Arrays.copyOf(idxNames, idxNames.length, Object[].class);
+	}
+	
+	/**
+	 * Returns an array of key names in the section.
+	 * @param sectionName
+	 * @return Object[] or null if the section does not exist.
+	 */
+	public Object[] getSectionKeys(Object sectionName) {
+		int s = find(secNames, secTable, sectionName);
+		if (s == -1)
+			return null;
+		
+		return Arrays.copyOfRange(keys, secStart[s], secStart[s + 1], Object[].class);
+	}
+	
+	/**
+	 * Returns an array of indexes in the indexed section.
+	 * @param sectionName
+	 * @return Object[] or null if the section does not exist.
+	 */
+	public Object[] getIndexedSectionKeys(Object sectionName) {
+		int s = find(idxNames, idxTable, sectionName);
+		if (s == -1)
+			return null;
+		
+		Object[] a = new Object[idxStart[s + 1] - idxStart[s]];
+		for (int i = 0; i < a.length; i++)
+			a[i] = Integer.valueOf(idxKeys[idxStart[s] + i]);
+		return a;
+	}
+	
+	/**
+	 * Checks if section exists.
+	 * @param sectionName
+	 * @return true if section exists.
+	 */
+	public boolean sectionExists(Object sectionName) {
+		return find(secNames, secTable, sectionName) != -1;
+	}
+	
+	/**
+	 * Checks if indexed section exists.
+	 * @param sectionName
+	 * @return true if section exists.
+	 */
+	public boolean indexedSectionExists(Object sectionName) {
+		return find(idxNames, idxTable, sectionName) != -1;
+	}
+	
+	/**
+	 * Checks if a key exists in given section.
+	 * @param sectionName
+	 * @param key
+	 * @return true if key exists.
+	 */
+	public boolean keyExists(Object sectionName, Object key) {
+		int s = find(secNames, secTable, sectionName);
+		return s != -1 && key instanceof String && findKey(s, (String) key) != -1;
+	}
+	
+	/**
+	 * Checks if a index exists in given indexed section.
+	 * @param sectionName
+	 * @param key
+	 * @return true if key exists.
+	 */
+	public boolean indexedKeyExists(Object sectionName, Object key) {
+		int s = find(idxNames, idxTable, sectionName);
+		return s != -1 && key instanceof Integer && findIndex(s, (Integer) key) != -1;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes sections and key/values in the .ti format as they are given, nothing is kept, so
+ * the memory used does not grow with the size of the file.
+ * A value holding line separators is written as one line per part joined by \n continuations.
+ */
+final class IniWriter {
+	private static final String SEP = System.getProperty("line.separator");
+	
+	private final Appendable out;
+	
+	IniWriter(Appendable out) {
+		this.out = out;
+	}
+	
+	void comment(String s) throws IOException {
+		out.append(s).append('\n');
+	}
+	
+	void section(String name, boolean indexed) throws IOException {
+		out.append(indexed ? "\n{" : "\n[").append(name).append(indexed ? "}\n" : "]\n");
+	}
+	
+	// a null value is left out.
+	void value(Object key, String value) throws IOException {
+		if (value == null)
+			return;
+		
+		String k = key.toString();
+		int i = value.indexOf(SEP);
+		if (i == -1) {
+			line(k, value, 0, value.length()).append('\n');
+			return;
+		}
+		
+		// same lines as value.split(SEP), trailing empty parts are dropped.
+		int end = value.length();
+		while (end >= SEP.length() && value.startsWith(SEP, end - SEP.length()))
+			end -= SEP.length();
+		if (end == 0) {
+			line(k, value, 0, value.length()).append('\n');		// only separators.
+			return;
+		}
+		
+		int s = 0;
+		while (i != -1 && i < end) {
+			line(k, value, s, i).append("\\n\n");
+			s = i + SEP.length();
+			i = value.indexOf(SEP, s);
+		}
+		line(k, value, s, end).append('\n');
+	}
+	
+	private Appendable line(String key, String value, int start, int end) throws IOException {
+		return out.append('\t').append(key).append(" = ").append(value, start, end);
+	}
+	
+	/**
+	 * An Appendable that encodes into one reusable buffer and writes it to a channel when full.
+	 * finish() must be called to write the rest.
+	 */
+	static final class ChannelSink implements Appendable {
+		private final WritableByteChannel ch;
+		private final CharsetEncoder enc;
+		private final CharBuffer chars = CharBuffer.allocate(8192);
+		private final ByteBuffer bytes = ByteBuffer.allocate(32768);
+		
+		ChannelSink(WritableByteChannel ch, Charset cs) {
+			this.ch = ch;
+			this.enc = cs.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		
+		public Appendable append(CharSequence csq) throws IOException {
+			return append(csq, 0, csq.length());
+		}
+		
+		public Appendable append(CharSequence csq, int start, int end) throws IOException {
+			while (start < end) {
+				if (chars.hasRemaining() == false)
+					encode(false);
+				int n = Math.min(end - start, chars.remaining());
+				if (csq instanceof String)
+					chars.put((String) csq, start, start + n);
+				else
+					chars.append(csq, start, start + n);
+				start += n;
+			}
+			return this;
+		}
+		
+		public Appendable append(char c) throws IOException {
+			if (chars.hasRemaining() == false)
+				encode(false);
+			chars.put(c);
+			return this;
+		}
+		
+		void finish() throws IOException {
+			encode(true);
+			CoderResult r;
+			while ((r = enc.flush(bytes)).isOverflow() == true)
+				drain();
+			if (r.isError() == true)
+				r.throwException();
+			drain();
+		}
+		
+		private void encode(boolean last) throws IOException {
+			chars.flip();
+			while (true) {
+				CoderResult r = enc.encode(chars, bytes, last);
+				if (r.isOverflow() == true)
+					drain();
+				else if (r.isUnderflow() == true)
+					break;
+				else
+					r.throwException();
+			}
+			chars.compact();		// keeps half of a surrogate pair for the next call.
+		}
+		
+		private void drain() throws IOException {
+			bytes.flip();
+			while (bytes.hasRemaining() == true)
+				ch.write(bytes);
+			bytes.clear();
+		}
+	}
+}
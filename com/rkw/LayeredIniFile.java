@@ -0,0 +1,332 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stacks IniFiles so a key in a higher layer hides the same key in the layers below it,
+ * ex. a base file, an environment file and a host file.  Nothing is copied between the layers.
+ *
+ * LayeredIniFile conf = new LayeredIniFile(base, env, host);	// lowest precedence first.
+ * int port = conf.getSectionValueAsInt("server", "port", 8080);
+ * IniFile from = conf.whichLayer("server", "port");
+ *
+ * A key is looked up from the top layer down the first time it is read, the layer found is
+ * kept so later reads go straight to it however many layers there are.  The getters then read
+ * that layer, so the typed getters use its parsed values and variables are expanded within it.
+ * Each layer is subscribed to, a change to a key in any layer drops only that key, a change to
+ * a whole section drops the keys of that section.  A layer read again with open() does not tell
+ * its listeners, call invalidate() after it.
+ * Like IniFile a LayeredIniFile is not thread safe.
+ */
+public class LayeredIniFile implements Closeable {
+	// the layer a key was found in, or the layer that decides what the getters return when no
+	// layer holds the key: the top layer holding the section, else the top layer.
+	private static final class Resolved {
+		final IniFile layer;
+		final boolean found;
+		
+		Resolved(IniFile layer, boolean found) {
+			this.layer = layer;
+			this.found = found;
+		}
+	}
+	
+	// lowest precedence first.
+	private final IniFile[] layers;
+	// section name to key to the layer it resolves to.
+	private final Map<Object, Map<Object, Resolved>> cache = new HashMap<Object, Map<Object, Resolved>>();
+	
+	private final IniListener listener = new IniListener() {
+		public void changed(List<IniChange> changes) {
+			for (IniChange c : changes) {
+				if (c.getKey() == null) {
+					cache.remove(c.getSection());
+				} else {
+					Map<Object, Resolved> m = cache.get(c.getSection());
+					if (m != null)
+						m.remove(c.getKey());
+				}
+			}
+		}
+	};
+	
+	/**
+	 * Stacks the layers, a key in a later layer hides the same key in the earlier ones.
+	 * @param layers the layers, lowest precedence first.
+	 */
+	public LayeredIniFile(IniFile... layers) {
+		if (layers.length == 0)
+			throw new IllegalArgumentException("no layers");
+		this.layers = layers.clone();
+		for (IniFile l : this.layers)
+			l.subscribe("", listener);
+	}
+	
+	/**
+	 * Stacks the layers, ex. the values of IniFile.loadAll() so a file sorting later wins.
+	 * @param layers the layers, lowest precedence first.
+	 */
+	public LayeredIniFile(List<IniFile> layers) {
+		this(layers.toArray(new IniFile[0]));
+	}
+	
+	/**
+	 * Returns the layers, lowest precedence first.
+	 * @return List
+	 */
+	public List<IniFile> getLayers() {
+		return Collections.unmodifiableList(Arrays.asList(layers));
+	}
+	
+	/**
+	 * Returns the layer the value of a key comes from.
+	 * @param sectionName section name
+	 * @param keyName key name within section, an Integer for an indexed section.
+	 * @return the IniFile, null if no layer has the key.
+	 */
+	public IniFile whichLayer(Object sectionName, Object keyName) {
+		Resolved r = resolve(sectionName, keyName);
+		return (r.found == true) ? r.layer : null;
+	}
+	
+	/**
+	 * Checks if a key exists in any layer.
+	 * @param sectionName section name
+	 * @param keyName key name within section, an Integer for an indexed section.
+	 * @return true if key exists.
+	 */
+	public boolean keyExists(Object sectionName, Object keyName) {
+		return resolve(sectionName, keyName).found;
+	}
+	
+	/**
+	 * Drops every resolved key, needed only after a layer was read again with open().
+	 */
+	public void invalidate() {
+		cache.clear();
+	}
+	
+	/**
+	 * Stops listening to the layers, the layers are not closed.
+	 */
+	public void close() {
+		for (IniFile l : layers)
+			l.unsubscribe(listener);
+		cache.clear();
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string but does not
+	 * expand any variables.  Same as getSectionValueAsString().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return String value
+	 */
+	public String getString(Object sectionName, Object keyName) {
+		return getSectionValueAsString(sectionName, keyName, false);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string.
+	 * Same as getSectionValueAsString().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param flag whether to expand variables or not.
+	 * @return String value
+	 */
+	public String getString(Object sectionName, Object keyName, boolean flag) {
+		return getSectionValueAsString(sectionName, keyName, flag);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string but does not
+	 * expand any variables.
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return String value
+	 */
+	public String getSectionValueAsString(Object sectionName, Object keyName) {
+		return getSectionValueAsString(sectionName, keyName, false);
+	}
+	
+	/**
+	 * Returns the value of a key/value pair as a string.
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param flag whether to expand variables or not, they are expanded within the layer of the key.
+	 * @return String value
+	 */
+	public String getSectionValueAsString(Object sectionName, Object keyName, boolean flag) {
+		Resolved r = resolve(sectionName, keyName);
+		return (r.found == true) ? r.layer.getSectionValueAsString(sectionName, keyName, flag) : null;
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * Same as getSectionValueAsInt()
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return int value
+	 */
+	public int getInt(Object sectionName, Object keyName) {
+		return getSectionValueAsInt(sectionName, keyName);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * Same as getSectionValueAsDouble()
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return double value
+	 */
+	public double getDouble(Object sectionName, Object keyName) {
+		return getSectionValueAsDouble(sectionName, keyName);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return int value, -1 if no layer has the section, 0 if the key does not exist or is not a number.
+	 */
+	public int getSectionValueAsInt(Object sectionName, Object keyName) {
+		return layer(sectionName, keyName).getSectionValueAsInt(sectionName, keyName);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an integer
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the key does not exist or is not a number.
+	 * @return int value
+	 */
+	public int getSectionValueAsInt(Object sectionName, Object keyName, int def) {
+		return layer(sectionName, keyName).getSectionValueAsInt(sectionName, keyName, def);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as a long
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the key does not exist or is not a number.
+	 * @return long value
+	 */
+	public long getSectionValueAsLong(Object sectionName, Object keyName, long def) {
+		return layer(sectionName, keyName).getSectionValueAsLong(sectionName, keyName, def);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @return double value, -1 if no layer has the section, 0 if the key does not exist or is not a number.
+	 */
+	public double getSectionValueAsDouble(Object sectionName, Object keyName) {
+		return layer(sectionName, keyName).getSectionValueAsDouble(sectionName, keyName);
+	}
+	
+	/**
+	 * Returns a value of a key/value pairs as an double
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the key does not exist or is not a number.
+	 * @return double value
+	 */
+	public double getSectionValueAsDouble(Object sectionName, Object keyName, double def) {
+		return layer(sectionName, keyName).getSectionValueAsDouble(sectionName, keyName, def);
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * Same as getSectionValueAsBoolean().
+	 * @param sectionName
+	 * @param keyName
+	 * @return false if the key does not exist.
+	 */
+	public boolean getBoolean(Object sectionName, Object keyName) {
+		return getSectionValueAsBoolean(sectionName, keyName);
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * @param sectionName
+	 * @param keyName
+	 * @return false if the key does not exist.
+	 */
+	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName) {
+		return layer(sectionName, keyName).getSectionValueAsBoolean(sectionName, keyName);
+	}
+	
+	/**
+	 * Gets value as a boolean value.
+	 * @param sectionName
+	 * @param keyName
+	 * @param def value returned if the key does not exist or is not true or false.
+	 * @return boolean value
+	 */
+	public boolean getSectionValueAsBoolean(Object sectionName, Object keyName, boolean def) {
+		return layer(sectionName, keyName).getSectionValueAsBoolean(sectionName, keyName, def);
+	}
+	
+	/**
+	 * Gets a duration in milliseconds, see IniFile.getSectionValueAsMillis().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the key does not exist or is not a duration.
+	 * @return duration in milliseconds
+	 */
+	public long getSectionValueAsMillis(Object sectionName, Object keyName, long def) {
+		return layer(sectionName, keyName).getSectionValueAsMillis(sectionName, keyName, def);
+	}
+	
+	/**
+	 * Gets a size in bytes, see IniFile.getSectionValueAsBytes().
+	 * @param sectionName section name
+	 * @param keyName key name within section
+	 * @param def value returned if the key does not exist or is not a size.
+	 * @return size in bytes
+	 */
+	public long getSectionValueAsBytes(Object sectionName, Object keyName, long def) {
+		return layer(sectionName, keyName).getSectionValueAsBytes(sectionName, keyName, def);
+	}
+	
+	private IniFile layer(Object sectionName, Object keyName) {
+		return resolve(sectionName, keyName).layer;
+	}
+	
+	private Resolved resolve(Object sectionName, Object keyName) {
+		Map<Object, Resolved> m = cache.get(sectionName);
+		if (m == null) {
+			m = new HashMap<Object, Resolved>();
+			cache.put(sectionName, m);
+		}
+		Resolved r = m.get(keyName);
+		if (r == null) {
+			r = lookup(sectionName, keyName);
+			m.put(keyName, r);
+		}
+		return r;
+	}
+	
+	// Walks the layers from the top.
+	private Resolved lookup(Object sectionName, Object keyName) {
+		boolean indexed = keyName instanceof Integer;
+		IniFile holder = null;
+		for (int i = layers.length - 1; i >= 0; i--) {
+			IniFile l = layers[i];
+			if ((indexed ? l.indexedKeyExists(sectionName, keyName) : l.keyExists(sectionName, keyName)) == true)
+				return new Resolved(l, true);
+			if (holder == null && (indexed ? l.indexedSectionExists(sectionName) : l.sectionExists(sectionName)) == true)
+				holder = l;
+		}
+		return new Resolved((holder != null) ? holder : layers[layers.length - 1], false);
+	}
+}
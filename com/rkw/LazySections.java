@@ -0,0 +1,135 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Byte ranges of the sections of a file opened with LoadMode.LAZY, or the compiled file of
+ * IniFile.openCompiled(), and the list of sections that have been read in least recently used order.
+ * Used by the IniFile class.
+ */
+final class LazySections {
+	final Path file;
+	Charset cs;
+	// section name to start/end byte offset pairs, a section can be in the file more than once.
+	final Map<String, long[]> ranges = new HashMap<String, long[]>();
+	final Map<String, long[]> idxRanges = new HashMap<String, long[]>();
+	// set when the sections are read from a compiled file instead of parsed.
+	final CompiledIni compiled;
+	
+	private final Map<String, ValuePairMap> sections;
+	private final Map<String, IndexedValuePair> idxSections;
+	// parsed sections that can be dropped again, least recently used first.
+	// The keys are the section name with ] or } in front for a [section] or {section}.
+	private final LinkedHashMap<String, Boolean> resident = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	// sections that have been changed or handed out, these are never dropped.
+	private final Set<String> pinned = new HashSet<String>();
+	private int maxResident = 0;
+	
+	LazySections(Path file, Charset cs, Map<String, ValuePairMap> sections, Map<String, IndexedValuePair> idxSections) {
+		this.file = file;
+		this.cs = cs;
+		this.compiled = null;
+		this.sections = sections;
+		this.idxSections = idxSections;
+	}
+	
+	LazySections(CompiledIni compiled, Map<String, ValuePairMap> sections, Map<String, IndexedValuePair> idxSections) {
+		this.file = compiled.file;
+		this.cs = null;
+		this.compiled = compiled;
+		this.sections = sections;
+		this.idxSections = idxSections;
+	}
+	
+	// adds a start/end pair to the ranges of a section.
+	static void addRange(Map<String, long[]> m, String name, long start, long end) {
+		long[] r = m.get(name);
+		if (r == null) {
+			r = new long[] { start, end };
+		} else {
+			long[] a = new long[r.length + 2];
+			System.arraycopy(r, 0, a, 0, r.length);
+			a[r.length] = start;
+			a[r.length + 1] = end;
+			r = a;
+		}
+		m.put(name, r);
+	}
+	
+	// The file was written again, the sections are now at these offsets.
+	void reindexed(Map<String, long[]> r, Map<String, long[]> idx, Charset cs) {
+		ranges.clear();
+		ranges.putAll(r);
+		idxRanges.clear();
+		idxRanges.putAll(idx);
+		this.cs = cs;
+	}
+	
+	// Sets how many parsed sections are kept, 0 keeps all of them.
+	void setMaxResident(int max) {
+		maxResident = max;
+		evict();
+	}
+	
+	// Records a newly parsed section and drops the least recently used ones over the limit.
+	void loaded(String name, boolean indexed) {
+		String k = key(name, indexed);
+		if (pinned.contains(k) == false)
+			resident.put(k, Boolean.TRUE);
+		evict();
+	}
+	
+	// Marks a section as recently used.
+	void touch(String name, boolean indexed) {
+		resident.get(key(name, indexed));
+	}
+	
+	// Keeps a section in memory from now on.
+	void pin(String name, boolean indexed) {
+		String k = key(name, indexed);
+		resident.remove(k);
+		pinned.add(k);
+	}
+	
+	// The section was removed or renamed, its file contents are no longer used.
+	void forget(String name, boolean indexed) {
+		String k = key(name, indexed);
+		resident.remove(k);
+		pinned.remove(k);
+		if (compiled != null)
+			compiled.forget(name, indexed);
+		if (indexed == false)
+			ranges.remove(name);
+		else
+			idxRanges.remove(name);
+	}
+	
+	private static String key(String name, boolean indexed) {
+		return (indexed ? "}" : "]") + name;
+	}
+	
+	private void evict() {
+		if (maxResident <= 0)
+			return;
+		
+		Iterator<String> it = resident.keySet().iterator();
+		while (resident.size() > maxResident) {
+			String k = it.next();
+			it.remove();
+			if (k.charAt(0) == ']')
+				sections.put(k.substring(1), null);
+			else
+				idxSections.put(k.substring(1), null);
+		}
+	}
+}
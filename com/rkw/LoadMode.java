@@ -0,0 +1,38 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+/**
+ * How IniFile.open(Path, LoadMode) reads a file.
+ * A file in a charset whose ASCII chars are not single bytes, ex. UTF-16, is always read as STREAM.
+ */
+public enum LoadMode {
+	/**
+	 * Read the file through a Reader, the same as open(String).
+	 */
+	STREAM,
+	
+	/**
+	 * Map the file into memory with FileChannel.map() and parse the mapped bytes directly.
+	 * The pages are shared through the operating system page cache with any other process
+	 * that maps or reads the same file.
+	 */
+	MAPPED,
+	
+	/**
+	 * Map the file but only record where each section starts.  A section is parsed the first
+	 * time it is used, see IniFile.setSectionCacheSize() to bound how many stay in memory.
+	 * The file must not change while the IniFile is in use.
+	 */
+	LAZY,
+	
+	/**
+	 * Map the file, split it into chunks that start at a section line and parse the chunks at
+	 * the same time on the common ForkJoinPool.  The chunks are merged in file order, so the
+	 * result is the same as MAPPED, a section in the file more than once and keys repeated in
+	 * it are joined the same way.  Files of a few MB are read as MAPPED.
+	 * The fingerprints used by IniFile.reloadIncremental() are not kept.
+	 */
+	PARALLEL
+}
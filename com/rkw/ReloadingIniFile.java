@@ -0,0 +1,335 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an IniSnapshot of a file up to date while the file is edited.
+ *
+ * A background thread watches the file with a WatchService, or by checking the modified time
+ * and size of the file when a WatchService can not be used.  A burst of changes is waited out
+ * until the file has been quiet for the debounce time, the file is then read into a new IniFile
+ * on the background thread, frozen and published with one volatile write.  Readers call snapshot()
+ * and never wait, they see the old snapshot until the new one is complete.
+ *
+ * ReloadingIniFile ini = new ReloadingIniFile(Paths.get("app.ti"));
+ * IniSnapshot snap = ini.snapshot();		// take one snapshot per request for consistent values.
+ * int port = snap.getSectionValueAsInt("server", "port", 8080);
+ * ini.close();
+ *
+ * If a reload fails, ex. the file is missing or can not be read, the old snapshot is kept.
+ *
+ * The file is read with LoadMode.STREAM unless another mode is given.  Give MAPPED or LAZY only
+ * for a file that is replaced by a rename, see IniFile.setAtomicWrite().  A mapped file that is
+ * truncated while it is read fails the reload with an InternalError, which is counted as a
+ * failure, or can crash the VM when the truncated bytes are read by an intrinsic such as CRC32C.
+ */
+public class ReloadingIniFile implements Closeable {
+	private final Path file;
+	private final LoadMode mode;
+	private final long debounceNanos;
+	private final long pollNanos;
+	
+	private volatile IniSnapshot current;
+	private final Object reloadLock = new Object();
+	private final Thread watcher;
+	private volatile boolean closed = false;
+	private volatile boolean polling = false;
+	
+	// modified time and size of the file when it was last read.
+	private long lastModified = -1;
+	private long lastSize = -1;
+	
+	// reload metrics, written by one thread at a time while holding reloadLock.
+	private volatile long reloadCount = 0;
+	private volatile long failureCount = 0;
+	private volatile long lastReloadNanos = 0;
+	private volatile long maxReloadNanos = 0;
+	private volatile long totalReloadNanos = 0;
+	private volatile long lastReloadTime = 0;
+	private volatile Exception lastFailure = null;
+	
+	/**
+	 * Watches file, read with LoadMode.STREAM and a 200 millisecond debounce.
+	 * @param file the .ti file.
+	 */
+	public ReloadingIniFile(Path file) {
+		this(file, LoadMode.STREAM, 200, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Reads the file and starts watching it.
+	 * @param file the .ti file.
+	 * @param mode how the file is read.
+	 * @param debounce how long the file must be unchanged before it is read again.
+	 * @param unit unit of debounce.
+	 */
+	public ReloadingIniFile(Path file, LoadMode mode, long debounce, TimeUnit unit) {
+		this.file = file.toAbsolutePath();
+		this.mode = mode;
+		this.debounceNanos = unit.toNanos(debounce);
+		this.pollNanos = Math.max(this.debounceNanos, TimeUnit.MILLISECONDS.toNanos(100));
+		
+		reload();
+		
+		watcher = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "ReloadingIniFile " + this.file.getFileName());
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+	
+	/**
+	 * Returns the current snapshot of the file, never null.
+	 * A file that does not exist gives an empty snapshot.
+	 * @return IniSnapshot
+	 */
+	public IniSnapshot snapshot() {
+		return current;
+	}
+	
+	/**
+	 * Reads the file now and publishes the new snapshot.
+	 * @return false if successful, true if the file could not be read and the old snapshot was kept.
+	 */
+	public boolean reload() {
+		synchronized (reloadLock) {
+			long start = System.nanoTime();
+			long[] stamp = stamp();
+			
+			IniFile ini = new IniFile((String) null);
+			ini.setFileName(file.toString());
+			boolean failed;
+			if (stamp == null && current == null) {
+				failed = false;		// nothing to read yet, start out empty.
+			} else if (stamp == null) {
+				failed = true;
+				lastFailure = new IOException(file + " does not exist.");
+			} else {
+				try {
+					failed = ini.open(file, mode);
+					if (failed == true)
+						lastFailure = new IOException(file + " could not be read.");
+				} catch (RuntimeException e) {
+					failed = true;
+					lastFailure = e;
+				} catch (InternalError e) {
+					// a mapped file was truncated while it was read.
+					failed = true;
+					lastFailure = new IOException(file + " changed while it was read.", e);
+				}
+			}
+			
+			if (failed == true) {
+				failureCount++;
+				return true;
+			}
+			
+			current = ini.freeze();
+			
+			if (stamp != null) {
+				lastModified = stamp[0];
+				lastSize = stamp[1];
+			}
+			long nanos = System.nanoTime() - start;
+			lastReloadNanos = nanos;
+			totalReloadNanos += nanos;
+			if (nanos > maxReloadNanos)
+				maxReloadNanos = nanos;
+			lastReloadTime = System.currentTimeMillis();
+			reloadCount++;
+		}
+		
+		return false;
+	}
+	
+	// modified time and size, null if the file does not exist.
+	private long[] stamp() {
+		try {
+			BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+			return new long[] { a.lastModifiedTime().toMillis(), a.size() };
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	private boolean stampChanged() {
+		long[] s = stamp();
+		synchronized (reloadLock) {
+			return s != null && (s[0] != lastModified || s[1] != lastSize);
+		}
+	}
+	
+	// Background thread, waits for a change, waits out the burst and reloads.
+	private void watch() {
+		WatchService ws = null;
+		try {
+			ws = file.getFileSystem().newWatchService();
+			file.getParent().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException | UnsupportedOperationException e) {
+			closeQuietly(ws);
+			ws = null;
+		}
+		polling = (ws == null);
+		
+		try {
+			while (closed == false) {
+				// wait for an event on the file, or check the file every poll period.
+				boolean dirty = waitForChange(ws, pollNanos) || stampChanged();
+				if (dirty == false)
+					continue;
+				
+				// debounce, keep waiting while events keep coming.
+				while (closed == false && waitForChange(ws, debounceNanos) == true)
+					;
+				
+				if (closed == false) {
+					try {
+						reload();
+					} catch (RuntimeException | InternalError e) {
+						// keep watching, the next change may be readable.
+						e.printStackTrace();
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed.
+		} finally {
+			closeQuietly(ws);
+		}
+	}
+	
+	// true if the file was changed within nanos, sleeps for nanos when polling.
+	private boolean waitForChange(WatchService ws, long nanos) throws InterruptedException {
+		if (ws == null) {
+			long[] before = stamp();
+			TimeUnit.NANOSECONDS.sleep(nanos);
+			long[] after = stamp();
+			return (before == null) ? after != null : after == null || before[0] != after[0] || before[1] != after[1];
+		}
+		
+		long end = System.nanoTime() + nanos;
+		boolean changed = false;
+		long left;
+		while ((left = end - System.nanoTime()) > 0) {
+			WatchKey key = ws.poll(left, TimeUnit.NANOSECONDS);
+			if (key == null)
+				break;
+			for (WatchEvent<?> e : key.pollEvents()) {
+				if (e.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(e.context()))
+					changed = true;
+			}
+			key.reset();
+			if (changed == true)
+				break;
+		}
+		return changed;
+	}
+	
+	private static void closeQuietly(WatchService ws) {
+		if (ws == null)
+			return;
+		try {
+			ws.close();
+		} catch (IOException e) {
+			// nothing to do.
+		}
+	}
+	
+	/**
+	 * Stops watching the file, the last snapshot can still be read.
+	 */
+	public void close() {
+		closed = true;
+		watcher.interrupt();
+	}
+	
+	/**
+	 * Returns the file being watched.
+	 * @return Path
+	 */
+	public Path getFile() {
+		return file;
+	}
+	
+	/**
+	 * Returns true if the file is checked by polling its modified time and size
+	 * because a WatchService could not be used.
+	 * @return boolean
+	 */
+	public boolean isPolling() {
+		return polling;
+	}
+	
+	/**
+	 * Returns the number of times the file was read, including the first time.
+	 * @return long
+	 */
+	public long getReloadCount() {
+		return reloadCount;
+	}
+	
+	/**
+	 * Returns the number of reloads that failed and kept the old snapshot.
+	 * @return long
+	 */
+	public long getFailureCount() {
+		return failureCount;
+	}
+	
+	/**
+	 * Returns why the last failed reload failed, null if none failed.
+	 * @return Exception
+	 */
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+	
+	/**
+	 * Returns how long the last reload took to read and freeze the file.
+	 * @return nanoseconds
+	 */
+	public long getLastReloadNanos() {
+		return lastReloadNanos;
+	}
+	
+	/**
+	 * Returns the longest reload.
+	 * @return nanoseconds
+	 */
+	public long getMaxReloadNanos() {
+		return maxReloadNanos;
+	}
+	
+	/**
+	 * Returns the average reload time.
+	 * @return nanoseconds, 0 if none.
+	 */
+	public long getAverageReloadNanos() {
+		long n = reloadCount;
+		return (n == 0) ? 0 : totalReloadNanos / n;
+	}
+	
+	/**
+	 * Returns when the current snapshot was published.
+	 * @return milliseconds since the epoch.
+	 */
+	public long getLastReloadTime() {
+		return lastReloadTime;
+	}
+}
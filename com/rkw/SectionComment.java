@@ -12,6 +12,12 @@ public class SectionComment {
 		
 	}
 	
+	// compact keeps the values in a CompactValueMap instead of a LinkedHashMap.
+	public SectionComment(boolean compact) {
+		if (compact == true)
+			values = new CompactValueMap();
+	}
+	
 	// add a name/value pair to the list
 	public void add(String n, String v) {
 		values.put(n, v);
@@ -0,0 +1,170 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Byte ranges and CRC32C fingerprints of the sections of a mapped file.
+ * Passes the parse events on to another handler while it records where each section starts,
+ * used by LoadMode.LAZY to find sections and by IniFile.reloadIncremental() to find the
+ * sections that changed.
+ */
+final class SectionPrints implements IniHandler {
+	// section name to start/end byte offset pairs in file order, a section can be in the file more than once.
+	final Map<String, long[]> ranges = new LinkedHashMap<String, long[]>();
+	final Map<String, long[]> idxRanges = new LinkedHashMap<String, long[]>();
+	// CRC32C of all of the bytes of each section.
+	final Map<String, Long> crcs = new HashMap<String, Long>();
+	final Map<String, Long> idxCrcs = new HashMap<String, Long>();
+	// the bytes before the first section, the top comments.
+	long topEnd = -1;
+	long topCrc = 0;
+	
+	private final IniHandler next;
+	private final boolean skip;
+	private IniParser parser;
+	private long size;
+	private String name = null;
+	private boolean indexed = false;
+	private long start = 0;
+	
+	// next gets the parse events, if skip is true the key/values of sections are not parsed.
+	SectionPrints(IniHandler next, boolean skip) {
+		this.next = next;
+		this.skip = skip;
+	}
+	
+	// Reads the ranges of a file without parsing its key/values.
+	static SectionPrints scan(Path file, Charset cs) throws IOException {
+		FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			SectionPrints sp = new SectionPrints(new IniHandler() {
+				public int onSection(String name, String comment) {
+					return SKIP_SECTION;
+				}
+				
+				public int onIndexedSection(String name, String comment) {
+					return SKIP_SECTION;
+				}
+				
+				public int onKeyValue(String key, String value, String comment) {
+					return CONTINUE;
+				}
+				
+				public int onComment(String comment) {
+					return CONTINUE;
+				}
+				
+				public void onEnd() {
+				}
+			}, true);
+			sp.run(ch, cs);
+			return sp;
+		} finally {
+			ch.close();
+		}
+	}
+	
+	// Parses the whole file, then computes the fingerprints.
+	void run(FileChannel ch, Charset cs) throws IOException {
+		size = ch.size();
+		parser = IniParser.mapped(ch, 0, size, cs, this);
+		parser.run();
+		fingerprint(ch);
+	}
+	
+	private void fingerprint(FileChannel ch) throws IOException {
+		// one mapping for the whole file, read() for a file too large for one ByteBuffer.
+		ByteBuffer buf = (size <= Integer.MAX_VALUE) ? ch.map(FileChannel.MapMode.READ_ONLY, 0, size) : ByteBuffer.allocateDirect(1 << 16);
+		CRC32C crc = new CRC32C();
+		
+		crc(ch, 0, (topEnd == -1) ? size : topEnd, crc, buf);
+		topCrc = crc.getValue();
+		
+		for (int i = 0; i < 2; i++) {
+			Map<String, long[]> m = (i == 0) ? ranges : idxRanges;
+			Map<String, Long> out = (i == 0) ? crcs : idxCrcs;
+			for (Map.Entry<String, long[]> e : m.entrySet()) {
+				crc.reset();
+				long[] r = e.getValue();
+				for (int j = 0; j < r.length; j += 2)
+					crc(ch, r[j], r[j + 1], crc, buf);
+				out.put(e.getKey(), crc.getValue());
+			}
+		}
+	}
+	
+	private void crc(FileChannel ch, long from, long to, CRC32C crc, ByteBuffer buf) throws IOException {
+		if (buf.capacity() == size) {
+			buf.limit((int) to).position((int) from);
+			crc.update(buf);
+			return;
+		}
+		
+		long pos = from;
+		while (pos < to) {
+			buf.clear();
+			if (to - pos < buf.capacity())
+				buf.limit((int) (to - pos));
+			int n = ch.read(buf, pos);
+			if (n <= 0)
+				break;
+			buf.flip();
+			crc.update(buf);
+			pos += n;
+		}
+	}
+	
+	private void close(long end) {
+		if (name != null)
+			LazySections.addRange(indexed ? idxRanges : ranges, name, start, end);
+		else if (topEnd == -1)
+			topEnd = end;
+	}
+	
+	public int onSection(String n, String comment) {
+		close(parser.lineStart());
+		name = n;
+		indexed = false;
+		start = parser.lineStart();
+		int r = next.onSection(n, comment);
+		return (skip == true && r == CONTINUE) ? SKIP_SECTION : r;
+	}
+	
+	public int onIndexedSection(String n, String comment) {
+		close(parser.lineStart());
+		name = n;
+		indexed = true;
+		start = parser.lineStart();
+		int r = next.onIndexedSection(n, comment);
+		return (skip == true && r == CONTINUE) ? SKIP_SECTION : r;
+	}
+	
+	public int onKeyValue(String key, String value, String comment) {
+		return next.onKeyValue(key, value, comment);
+	}
+	
+	public int onComment(String comment) {
+		return next.onComment(comment);
+	}
+	
+	public void onEnd() {
+		close(size);
+		next.onEnd();
+	}
+	
+	public SymbolTable symbols() {
+		return next.symbols();
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+/**
+ * Shares one String between the repeated keys and short values of a file while it is parsed.
+ * The chars of a key or value are looked up before a String is made, a String already in the
+ * table is handed out again so nothing is allocated for it.  Unlike String.intern() the table
+ * belongs to the IniFile.  The table an IniFile makes for itself is emptied when each load is
+ * done, a table given with IniFile.setSymbolTable() keeps its Strings until clear().
+ *
+ * IniFile ini = new IniFile((String) null);
+ * ini.setSymbolTable(new SymbolTable(32, 1 << 16));
+ * ini.open(Paths.get("big.ti"), LoadMode.MAPPED);
+ * System.out.println(ini.getSymbolTable());		// hits, misses and size.
+ *
+ * A table is not thread safe, it can be shared by IniFiles that are not loaded at the same time.
+ * LoadMode.PARALLEL gives each chunk of the file a table of its own and adds up the counts here.
+ */
+public final class SymbolTable {
+	private final int maxLength;
+	private final int maxSize;
+	private String[] table = new String[256];
+	private int size = 0;
+	private long hits = 0;
+	private long misses = 0;
+	
+	/**
+	 * A table of up to 65536 Strings of up to 32 chars.
+	 */
+	public SymbolTable() {
+		this(32, 1 << 16);
+	}
+	
+	/**
+	 * @param maxLength longest key or value shared, longer ones always get a new String.
+	 * @param maxSize most Strings kept, once full new Strings are made but not kept.
+	 */
+	public SymbolTable(int maxLength, int maxSize) {
+		this.maxLength = maxLength;
+		this.maxSize = maxSize;
+	}
+	
+	// An empty table with the same limits, for a load running at the same time as this one.
+	SymbolTable sibling() {
+		return new SymbolTable(maxLength, maxSize);
+	}
+	
+	// Adds the counts of a sibling once its load is done.
+	void count(SymbolTable t) {
+		hits += t.hits;
+		misses += t.misses;
+	}
+	
+	// Drops the Strings once the load that shared them is done, the counts are kept.
+	void release() {
+		if (size == 0)
+			return;
+		table = new String[256];
+		size = 0;
+	}
+	
+	// The String of n chars of a from off, the one in the table if it is there.
+	String get(char[] a, int off, int n) {
+		if (n > maxLength)
+			return new String(a, off, n);
+		
+		int h = 0;
+		for (int i = off; i < off + n; i++)
+			h = 31 * h + a[i];		// same as String.hashCode().
+		
+		int mask = table.length - 1;
+		int slot = mix(h) & mask;
+		String s;
+		while ((s = table[slot]) != null) {
+			if (s.hashCode() == h && equals(s, a, off, n) == true) {
+				hits++;
+				return s;
+			}
+			slot = (slot + 1) & mask;
+		}
+		
+		misses++;
+		s = new String(a, off, n);
+		if (size < maxSize) {
+			table[slot] = s;
+			if (++size * 2 > table.length)
+				grow();
+		}
+		return s;
+	}
+	
+	private static boolean equals(String s, char[] a, int off, int n) {
+		if (s.length() != n)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if (s.charAt(i) != a[off + i])
+				return false;
+		}
+		return true;
+	}
+	
+	private void grow() {
+		String[] old = table;
+		table = new String[old.length * 2];
+		int mask = table.length - 1;
+		for (String s : old) {
+			if (s == null)
+				continue;
+			int slot = mix(s.hashCode()) & mask;
+			while (table[slot] != null)
+				slot = (slot + 1) & mask;
+			table[slot] = s;
+		}
+	}
+	
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Returns how many keys and values were found in the table.
+	 * @return long
+	 */
+	public long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Returns how many keys and values short enough to share were not in the table.
+	 * @return long
+	 */
+	public long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of Strings in the table.
+	 * @return int
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Drops the Strings and the counts.
+	 */
+	public void clear() {
+		table = new String[256];
+		size = 0;
+		hits = 0;
+		misses = 0;
+	}
+	
+	@Override
+	public String toString() {
+		long n = hits + misses;
+		return "SymbolTable size " + size + " hits " + hits + " misses " + misses +
+			String.format(" (%.1f%% hits)", (n == 0) ? 0.0 : hits * 100.0 / n);
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+/**
+ * The number, boolean and unit forms of one value, parsed once without throwing exceptions.
+ * Used by the typed getters of the IniFile, ConcurrentIniFile and IniSnapshot classes, kept
+ * next to the value in ValuePairMap and IndexedValuePair until the value changes.
+ */
+final class TypedValue {
+	// the value that was parsed, compared by reference to see if the value changed.
+	final String source;
+
+	// whole number, the same as Long.parseLong().
+	final boolean isLong;
+	final long longValue;
+
+	// the same as Double.parseDouble().
+	final boolean isDouble;
+	final double doubleValue;
+
+	// the same as Boolean.parseBoolean(), isBoolean is false if not "true" or "false".
+	final boolean isBoolean;
+	final boolean booleanValue;
+
+	// duration in milliseconds, ex. 250, 10ms, 2s, 5m, 1h, 1d.
+	final boolean isMillis;
+	final long millis;
+
+	// size in bytes, ex. 512, 64KB, 10M, 2GiB.
+	final boolean isBytes;
+	final long bytes;
+
+	private TypedValue(String s) {
+		source = s;
+
+		long[] l = new long[1];
+		isLong = parseLong(s, 0, s.length(), l);
+		longValue = isLong ? l[0] : 0;
+
+		if (isLong) {
+			isDouble = true;
+			doubleValue = (double) longValue;
+		} else {
+			double d = parseDouble(s);
+			isDouble = Double.isNaN(d) == false || s.equals("NaN") || s.equals("+NaN") || s.equals("-NaN");
+			doubleValue = isDouble ? d : 0;
+		}
+
+		isBoolean = s.equalsIgnoreCase("true") || s.equalsIgnoreCase("false");
+		booleanValue = Boolean.parseBoolean(s);
+
+		isMillis = parseUnit(s, DURATION_UNITS, DURATION_SCALE, l);
+		millis = isMillis ? l[0] : 0;
+		isBytes = parseUnit(s, SIZE_UNITS, SIZE_SCALE, l);
+		bytes = isBytes ? l[0] : 0;
+	}
+
+	static TypedValue parse(String s) {
+		return new TypedValue(s);
+	}
+
+	// The results of the typed getters of IniFile, ConcurrentIniFile and IniSnapshot from the
+	// parsed value t, EMPTY if the key does not exist, null if the section does not exist.
+	static int asInt(TypedValue t) {
+		if (t == null)
+			return -1;
+
+		return t.isInt() ? (int) t.longValue : 0;
+	}
+
+	static int asInt(TypedValue t, int def) {
+		return (t != null && t.isInt()) ? (int) t.longValue : def;
+	}
+
+	static long asLong(TypedValue t, long def) {
+		return (t != null && t.isLong) ? t.longValue : def;
+	}
+
+	static double asDouble(TypedValue t) {
+		if (t == null)
+			return -1;
+
+		return t.isDouble ? t.doubleValue : 0;
+	}
+
+	static double asDouble(TypedValue t, double def) {
+		return (t != null && t.isDouble) ? t.doubleValue : def;
+	}
+
+	static boolean asBoolean(TypedValue t) {
+		return (t != null) ? t.booleanValue : false;
+	}
+
+	static boolean asBoolean(TypedValue t, boolean def) {
+		return (t != null && t.isBoolean) ? t.booleanValue : def;
+	}
+
+	static long asMillis(TypedValue t, long def) {
+		return (t != null && t.isMillis) ? t.millis : def;
+	}
+
+	static long asBytes(TypedValue t, long def) {
+		return (t != null && t.isBytes) ? t.bytes : def;
+	}
+
+	// true if the value is a whole number that fits in an int, the same as Integer.parseInt().
+	boolean isInt() {
+		return isLong && longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE;
+	}
+
+	// unit names in lower case, no unit means milliseconds or bytes.
+	private static final String[] DURATION_UNITS = { "", "ns", "us", "ms", "s", "sec", "m", "min", "h", "d" };
+	private static final double[] DURATION_SCALE = { 1, 1e-6, 1e-3, 1, 1000, 1000, 60000, 60000, 3600000, 86400000 };
+	private static final String[] SIZE_UNITS = { "", "b", "k", "kb", "kib", "m", "mb", "mib", "g", "gb", "gib", "t", "tb", "tib" };
+	private static final double[] SIZE_SCALE = { 1, 1, 1L << 10, 1L << 10, 1L << 10, 1L << 20, 1L << 20, 1L << 20,
+		1L << 30, 1L << 30, 1L << 30, 1L << 40, 1L << 40, 1L << 40 };
+
+	// the parsed form of a key that does not exist, made after the unit tables it is parsed with.
+	static final TypedValue EMPTY = new TypedValue("");
+
+	// Parses from/to as a long, returns false if it is not a whole number or overflows.
+	private static boolean parseLong(String s, int from, int to, long[] out) {
+		int i = from;
+		boolean neg = false;
+
+		if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+			neg = s.charAt(i) == '-';
+			i++;
+		}
+		if (i == to)
+			return false;
+
+		long v = 0;
+		for (; i < to; i++) {
+			int c = s.charAt(i) - '0';
+			if (c < 0 || c > 9)
+				return false;
+			// accumulate negative so Long.MIN_VALUE fits.
+			if (v < Long.MIN_VALUE / 10)
+				return false;
+			v *= 10;
+			if (v < Long.MIN_VALUE + c)
+				return false;
+			v -= c;
+		}
+		if (neg == false) {
+			if (v == Long.MIN_VALUE)
+				return false;
+			v = -v;
+		}
+
+		out[0] = v;
+		return true;
+	}
+
+	// Length of the plain decimal number at the start of s from "from", ex. -1.5e3, 0 if none.
+	private static int decimalLength(String s, int from, int to) {
+		int i = from;
+		if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+			i++;
+
+		int digits = 0;
+		while (i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+			i++;
+			digits++;
+		}
+		if (i < to && s.charAt(i) == '.') {
+			i++;
+			while (i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0)
+			return 0;
+
+		if (i < to && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			int e = i + 1;
+			if (e < to && (s.charAt(e) == '-' || s.charAt(e) == '+'))
+				e++;
+			int ed = e;
+			while (e < to && s.charAt(e) >= '0' && s.charAt(e) <= '9')
+				e++;
+			if (e > ed)
+				i = e;
+		}
+
+		return i - from;
+	}
+
+	// Double.parseDouble() without the exception, NaN if s is not a number.
+	private static double parseDouble(String s) {
+		int n = s.length();
+		int len = decimalLength(s, 0, n);
+		if (len > 0 && len == n)
+			return Double.parseDouble(s);		// can not fail.
+
+		// the rarer forms Double.parseDouble() takes, ex. NaN, Infinity, 0x1p3, 1.5d
+		char c = (n > 0) ? s.charAt(0) : ' ';
+		if (c == '+' || c == '-')
+			c = (n > 1) ? s.charAt(1) : ' ';
+		char last = (n > 0) ? s.charAt(n - 1) : ' ';
+		boolean hex = c == '0' && (s.indexOf('x') != -1 || s.indexOf('X') != -1);
+		if ((len > 0 && len == n - 1 && "dDfF".indexOf(last) != -1) || c == 'N' || c == 'I' || hex) {
+			try {
+				return Double.parseDouble(s);
+			} catch (NumberFormatException nfe) {
+				return Double.NaN;
+			}
+		}
+
+		return Double.NaN;
+	}
+
+	// Parses a number followed by one of units, spaces are allowed between them.
+	private static boolean parseUnit(String s, String[] units, double[] scale, long[] out) {
+		int n = s.length();
+		int len = decimalLength(s, 0, n);
+		if (len == 0)
+			return false;
+
+		int u = len;
+		while (u < n && s.charAt(u) == ' ')
+			u++;
+
+		for (int i = 0; i < units.length; i++) {
+			if (n - u == units[i].length() && s.regionMatches(true, u, units[i], 0, n - u)) {
+				if (scale[i] == 1 && parseLong(s, 0, len, out))
+					return true;		// exact for large whole numbers.
+				double d = Double.parseDouble(s.substring(0, len)) * scale[i];
+				if (d >= 0x1p63 || d < -0x1p63)
+					return false;
+				out[0] = (long) d;
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
@@ -8,8 +8,14 @@
  */
 package com.rkw;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 
 /**
@@ -17,25 +23,180 @@ import java.util.Map;
  * Used by the iniFile class.
  */
 public class ValuePairMap {
-	// Holds the name/value pairs in a LinkedHashMap which retains Order-of-Insertion.
-	public Map<String, String> values = new LinkedHashMap<String, String>();
+	// Holds the name/value pairs in a CompactValueMap which retains Order-of-Insertion and
+	// moves a key in constant time.
+	public Map<String, String> values = new CompactValueMap();
+	// Parsed forms of the values read by the typed getters, created on first use.
+	private Map<String, TypedValue> typed = null;
+	// set by IniFile.getSectionValues() once the values can be changed outside of the IniFile.
+	boolean handedOut = false;
 	
 	public ValuePairMap() {
 		
 	}
 	
+	// compact false keeps the values in a LinkedHashMap instead of a CompactValueMap.
+	public ValuePairMap(boolean compact) {
+		if (compact == false)
+			values = new LinkedHashMap<String, String>();
+	}
+	
 	// add a name/value pair to the list
 	public void add(String n, String v) {
 		values.put(n, v);
+		if (typed != null)
+			typed.remove(n);
 	}
 	
 	// add a name/value pair to the list
 	public void remove(String n) {
 		values.remove(n);
+		if (typed != null)
+			typed.remove(n);
+	}
+	
+	// Parsed forms of a value, parsed again if the value was changed through the values map.
+	TypedValue typed(String k) {
+		String v = values.get(k);
+		if (v == null)
+			return null;
+		
+		TypedValue t = null;
+		if (typed == null)
+			typed = new HashMap<String, TypedValue>();
+		else
+			t = typed.get(k);
+		
+		if (t == null || t.source != v) {
+			t = TypedValue.parse(v);
+			typed.put(k, t);
+		}
+		return t;
 	}
 	
 	// Retrieve value by key.
 	public String get(String k) {
 		return values.get(k);
 	}
+	
+	// The keys are moved in place, the values map is never replaced.  A CompactValueMap relinks
+	// one entry.  A LinkedHashMap (see IniFile.setCompactMaps()) or a map set by the caller keeps
+	// insertion order, so the moved key and the keys that must follow it are removed and added again.
+	
+	// Moves a key to the top, returns true if the key does not exist.
+	public boolean moveToTop(String k) {
+		return moveAfter(k, null);
+	}
+	
+	// Moves a key to the bottom, returns true if the key does not exist.
+	public boolean moveToBottom(String k) {
+		if (values instanceof CompactValueMap)
+			return ((CompactValueMap) values).moveToBottom(k);
+		if (values.containsKey(k) == false)
+			return true;
+		values.put(k, values.remove(k));
+		return false;
+	}
+	
+	// Moves a key one place up, returns true if the key does not exist or is at the top.
+	public boolean moveUp(String k) {
+		if (values instanceof CompactValueMap)
+			return ((CompactValueMap) values).moveUp(k);
+		
+		// the key goes after the key two places before it, found in one walk.
+		String pp = null;
+		String p = null;
+		boolean first = true;
+		for (String key : values.keySet()) {
+			if (Objects.equals(key, k) == true) {
+				if (first == true)
+					return true;
+				return moveAfter(k, pp);
+			}
+			pp = p;
+			p = key;
+			first = false;
+		}
+		return true;
+	}
+	
+	// Moves a key one place down, returns true if the key does not exist or is at the bottom.
+	public boolean moveDown(String k) {
+		if (values instanceof CompactValueMap)
+			return ((CompactValueMap) values).moveDown(k);
+		String n = null;
+		boolean found = false;
+		for (String key : values.keySet()) {
+			if (found == true) {
+				n = key;
+				break;
+			}
+			found = Objects.equals(key, k);
+		}
+		if (n == null)
+			return true;
+		return moveAfter(k, n);
+	}
+	
+	// Moves a key to after another key, null for the top, returns true if either key does not exist.
+	public boolean moveAfter(String k, String after) {
+		if (values instanceof CompactValueMap)
+			return ((CompactValueMap) values).moveAfter(k, after);
+		if (values.containsKey(k) == false || (after != null && values.containsKey(after) == false))
+			return true;
+		if (after != null && after.equals(k) == true)
+			return false;
+		
+		List<String> tail = new ArrayList<String>();
+		tail.add(k);
+		boolean found = (after == null);
+		for (String key : values.keySet()) {
+			if (found == true && Objects.equals(key, k) == false)
+				tail.add(key);
+			else if (found == false && Objects.equals(key, after) == true)
+				found = true;
+		}
+		toEnd(tail);
+		return false;
+	}
+	
+	// Puts the keys in the order given, keys not given keep their order after them.
+	public void reorder(List<String> order) {
+		if (values instanceof CompactValueMap) {
+			((CompactValueMap) values).reorder(order);
+			return;
+		}
+		
+		Set<String> listed = new LinkedHashSet<String>();
+		for (String k : order) {
+			if (values.containsKey(k) == true)
+				listed.add(k);
+		}
+		List<String> tail = new ArrayList<String>(listed);
+		for (String key : values.keySet()) {
+			if (listed.contains(key) == false)
+				tail.add(key);
+		}
+		toEnd(tail);
+	}
+	
+	// The key before a key, null if it is the first key or does not exist.
+	String previousKey(String k) {
+		if (values instanceof CompactValueMap)
+			return ((CompactValueMap) values).previousKey(k);
+		
+		String p = null;
+		for (String key : values.keySet()) {
+			if (Objects.equals(key, k) == true)
+				return p;
+			p = key;
+		}
+		return null;
+	}
+	
+	// Removes the keys and adds them again in this order, so they end the LinkedHashMap.
+	private void toEnd(List<String> keys) {
+		for (String k : keys)
+			values.put(k, values.remove(k));
+	}
 }
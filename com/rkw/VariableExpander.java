@@ -0,0 +1,293 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces the (var) variables of values and keeps the results until one of the keys they
+ * used changes.  Used by the IniFile and ConcurrentIniFile classes, which tell it about every
+ * changed key with valueChanged().
+ *
+ * Many threads can expand values at once while another thread changes them.  A value expanded
+ * while a key changed is not kept, so a kept value is never older than the keys it used.
+ */
+final class VariableExpander {
+	// variables look like (var) with open and close params.
+	static final Pattern VAR_PATTERN = Pattern.compile("\\([A-Za-z_0-9]*\\)");	// CASE SENSITIVE
+	
+	/**
+	 * The values and key owners of the file being expanded.
+	 */
+	interface Source {
+		// The value of key in section sec, null if the section or key does not exist.
+		String value(String sec, Object key, boolean indexed);
+		
+		// The first section holding key, null if no section holds it.
+		String owner(Object key, boolean indexed);
+		
+		// true if the value of key in sec is no longer source, only asked after sourcesShared().
+		boolean changed(String sec, Object key, boolean indexed, String source);
+	}
+	
+	private final String name;
+	private final Source source;
+	// expanded values of section/key pairs that hold variables, by section.
+	private final Map<String, Map<Object, Expansion>> expanded = new ConcurrentHashMap<String, Map<Object, Expansion>>();
+	private final Map<String, Map<Object, Expansion>> idxExpanded = new ConcurrentHashMap<String, Map<Object, Expansion>>();
+	// variable name to the expanded values that used it.
+	private final Map<String, Set<Ref>> dependents = new ConcurrentHashMap<String, Set<Ref>>();
+	// counts the calls of valueChanged() and clear(), a value expanded while it moved is not kept.
+	private final AtomicLong changes = new AtomicLong();
+	// set once values can be changed without valueChanged() seeing it.
+	private volatile boolean sourcesShared = false;
+	
+	// name is put in front of the warnings, ex. IniFile.
+	VariableExpander(String name, Source source) {
+		this.name = name;
+		this.source = source;
+	}
+	
+	// Returns value, the value of key in sec, with all of its (var) variables replaced,
+	// variables within the values of variables are replaced too.
+	String expand(String sec, Object key, String value, boolean indexed) {
+		if (value == null || value.indexOf('(') == -1)
+			return value;
+		
+		Expansion e = cached(sec, key, indexed);
+		if (e != null)
+			return e.value;
+		
+		e = expand(sec, key, indexed, new ArrayList<Ref>(), changes.get());
+		return (e != null) ? e.value : value;
+	}
+	
+	// Same as expand() for a value that has not been read yet.
+	String expand(String sec, Object key, boolean indexed) {
+		Expansion e = cached(sec, key, indexed);
+		if (e != null)
+			return e.value;
+		
+		String value = source.value(sec, key, indexed);
+		if (value == null || value.indexOf('(') == -1)
+			return value;
+		
+		e = expand(sec, key, indexed, new ArrayList<Ref>(), changes.get());
+		return (e != null) ? e.value : value;
+	}
+	
+	// The value of key changed, was added or removed, drops the expanded values that used it.
+	// Counted even when nothing is kept, a value being expanded may be kept after the check.
+	void valueChanged(Object key) {
+		changes.incrementAndGet();
+		Set<Ref> refs = dependents.remove(key.toString());
+		if (refs == null)
+			return;
+		
+		for (Ref r : refs) {
+			Map<String, Map<Object, Expansion>> cache = (r.indexed ? idxExpanded : expanded);
+			Map<Object, Expansion> m = cache.get(r.sec);
+			if (m != null) {
+				m.remove(r.key);
+				if (m.isEmpty() == true)
+					cache.remove(r.sec, m);
+			}
+		}
+	}
+	
+	// true if no expanded value is kept.
+	boolean isEmpty() {
+		return dependents.isEmpty();
+	}
+	
+	void clear() {
+		changes.incrementAndGet();
+		expanded.clear();
+		idxExpanded.clear();
+		dependents.clear();
+	}
+	
+	// Values can now be changed without valueChanged(), kept values are checked against the
+	// values they were built from with Source.changed() before they are used.
+	void sourcesShared() {
+		sourcesShared = true;
+	}
+	
+	private Expansion cached(String sec, Object key, boolean indexed) {
+		Map<Object, Expansion> m = (indexed ? idxExpanded : expanded).get(sec);
+		if (m == null)
+			return null;
+		
+		Expansion e = m.get(key);
+		return (e != null && current(e) == true) ? e : null;
+	}
+	
+	// Expands one section/key value, visiting holds the values being expanded to find cycles.
+	// A value that is part of a cycle is not kept, what it expands to depends on which value of
+	// the cycle the expansion started from.  start is the count of changes before any value was read.
+	private Expansion expand(String sec, Object key, boolean indexed, List<Ref> visiting, long start) {
+		Expansion e = cached(sec, key, indexed);
+		if (e != null)
+			return e;
+		
+		String s = source.value(sec, key, indexed);
+		if (s == null)
+			return null;
+		
+		Ref ref = new Ref(sec, key, indexed);
+		Set<String> deps = new HashSet<String>();
+		deps.add(key.toString());
+		List<Ref> used = new ArrayList<Ref>();
+		List<String> sources = new ArrayList<String>();
+		used.add(ref);
+		sources.add(s);
+		String value = s;
+		int depth = visiting.size();
+		int cut = Integer.MAX_VALUE;
+		
+		if (s.indexOf('(') != -1) {
+			visiting.add(ref);
+			
+			Matcher mt = VAR_PATTERN.matcher(s);
+			StringBuilder newBuf = new StringBuilder(s.length() + 32);
+			
+			while (mt.find()) {
+				String var = s.substring(mt.start() + 1, mt.end() - 1);
+				deps.add(var);
+				
+				// find the key the variable names, the first section holding it wins.
+				Ref vref = null;
+				String owner = source.owner(var, false);
+				if (owner != null) {
+					vref = new Ref(owner, var, false);
+				} else {
+					Integer idx = IniFile.parseIndex(var);
+					if (idx != null && (owner = source.owner(idx, true)) != null)
+						vref = new Ref(owner, idx, true);
+				}
+				
+				String v = null;
+				if (vref != null && visiting.contains(vref) == true) {
+					System.err.println(name + ": variable (" + var + ") in " + sec + "." + key +
+						" refers back to itself, left unexpanded.");
+					v = mt.group();
+					cut = Math.min(cut, visiting.indexOf(vref));
+				} else if (vref != null) {
+					Expansion ve = expand(vref.sec, vref.key, vref.indexed, visiting, start);
+					if (ve != null) {
+						v = ve.value;
+						cut = Math.min(cut, ve.cut);
+						deps.addAll(ve.deps);
+						Collections.addAll(used, ve.refs);
+						Collections.addAll(sources, ve.sources);
+					}
+				}
+				mt.appendReplacement(newBuf, (v != null) ? Matcher.quoteReplacement(v) : "");
+			}
+			mt.appendTail(newBuf);
+			value = newBuf.toString();
+			
+			visiting.remove(visiting.size() - 1);
+		}
+		
+		e = new Expansion(value, deps, used.toArray(new Ref[used.size()]),
+				sources.toArray(new String[sources.size()]), cut);
+		if (cut <= depth)
+			return e;
+		
+		// the dependents are added before the value is kept so valueChanged() always finds it.
+		for (String d : deps) {
+			Set<Ref> refs = dependents.get(d);
+			if (refs == null) {
+				refs = Collections.newSetFromMap(new ConcurrentHashMap<Ref, Boolean>());
+				Set<Ref> had = dependents.putIfAbsent(d, refs);
+				if (had != null)
+					refs = had;
+			}
+			refs.add(ref);
+		}
+		
+		Map<String, Map<Object, Expansion>> cache = (indexed ? idxExpanded : expanded);
+		Map<Object, Expansion> m = cache.get(sec);
+		if (m == null) {
+			m = new ConcurrentHashMap<Object, Expansion>();
+			Map<Object, Expansion> had = cache.putIfAbsent(sec, m);
+			if (had != null)
+				m = had;
+		}
+		m.put(key, e);
+		
+		// a key changed while this value was expanded, the value may hold its old value.
+		if (changes.get() != start)
+			m.remove(key, e);
+		
+		return e;
+	}
+	
+	// true if every value e was built from is still the same String.
+	private boolean current(Expansion e) {
+		if (sourcesShared == false)
+			return true;
+		
+		for (int i = 0; i < e.refs.length; i++) {
+			Ref r = e.refs[i];
+			if (source.changed(r.sec, r.key, r.indexed, e.sources[i]) == true)
+				return false;
+		}
+		return true;
+	}
+	
+	// An expanded value, the names of all the keys used to build it and the values they had.
+	// cut is the depth of the value a cycle went back to, Integer.MAX_VALUE if there was none.
+	private static final class Expansion {
+		final String value;
+		final Set<String> deps;
+		final Ref[] refs;
+		final String[] sources;
+		final int cut;
+		
+		Expansion(String value, Set<String> deps, Ref[] refs, String[] sources, int cut) {
+			this.value = value;
+			this.deps = deps;
+			this.refs = refs;
+			this.sources = sources;
+			this.cut = cut;
+		}
+	}
+	
+	// Names one section/key value.
+	private static final class Ref {
+		final String sec;
+		final Object key;
+		final boolean indexed;
+		
+		Ref(String sec, Object key, boolean indexed) {
+			this.sec = sec;
+			this.key = key;
+			this.indexed = indexed;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if ((o instanceof Ref) == false)
+				return false;
+			Ref r = (Ref) o;
+			return indexed == r.indexed && sec.equals(r.sec) && key.equals(r.key);
+		}
+		
+		@Override
+		public int hashCode() {
+			return sec.hashCode() * 31 + key.hashCode();
+		}
+	}
+}
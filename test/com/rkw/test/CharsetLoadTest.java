@@ -0,0 +1,126 @@
+/*
+ * Copyright Kelly Wiles 2005-2009
+ */
+package com.rkw.test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.rkw.IniFile;
+import com.rkw.IniHandler;
+import com.rkw.IniParser;
+import com.rkw.LoadMode;
+
+/**
+ * Loads files in charsets whose ASCII chars are not single bytes with every LoadMode and checks
+ * that each mode finds the same sections and values as LoadMode.STREAM.
+ *
+ * Like the benchmarks it only needs the JDK:
+ *
+ * javac -d /tmp/initest com/rkw/*.java test/com/rkw/test/*.java
+ * java -cp /tmp/initest com.rkw.test.CharsetLoadTest
+ *
+ * Prints one line per charset and mode and exits with status 1 if any check failed.
+ */
+public class CharsetLoadTest {
+	private static final int SECTIONS = 300;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("initest");
+		try {
+			for (String name : new String[] { "UTF-16LE", "UTF-16BE", "UTF-16", "UTF-32", "UTF-8" }) {
+				Charset cs = Charset.forName(name);
+				Path file = dir.resolve(name + ".ti");
+				Files.write(file, content().getBytes(cs));
+				try {
+					for (LoadMode mode : LoadMode.values())
+						check(file, cs, mode);
+					checkParser(file, cs);
+				} finally {
+					Files.delete(file);
+				}
+			}
+		} finally {
+			Files.delete(dir);
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+		System.out.println("all passed");
+	}
+
+	// U+0A0A and U+010A hold a '\n' byte in UTF-16 and UTF-32, U+5B5B holds '[' bytes.
+	private static String content() {
+		StringBuilder sb = new StringBuilder("; top comment \u0a0a\r\n");
+		for (int i = 0; i < SECTIONS; i++) {
+			sb.append("[sec").append(i).append("]\r\n");
+			sb.append("\tname = \u010a\u5b5b").append(i).append("\r\n");
+			sb.append("\tport = ").append(8000 + i).append("\r\n");
+		}
+		sb.append("{list}\n\t0 = first\n\t1 = \u0a0asecond\n");
+		return sb.toString();
+	}
+
+	private static void check(Path file, Charset cs, LoadMode mode) {
+		IniFile ini = new IniFile(null);
+		String label = cs.name() + " " + mode;
+		if (ini.open(file, mode, cs) == true) {
+			fail(label, "open failed");
+			return;
+		}
+
+		expect(label, "sections", SECTIONS + 1, ini.getSectionCount());
+		for (int i = 0; i < SECTIONS; i += 37) {
+			expect(label, "sec" + i + ".name", "\u010a\u5b5b" + i, ini.getString("sec" + i, "name"));
+			expect(label, "sec" + i + ".port", 8000 + i, ini.getSectionValueAsInt("sec" + i, "port"));
+		}
+		expect(label, "list.1", "\u0a0asecond", ini.getString("list", Integer.valueOf(1)));
+		System.out.println(label + " ok");
+	}
+
+	private static void checkParser(Path file, Charset cs) throws IOException {
+		final int[] count = new int[2];
+		IniParser.parse(file, cs, new IniHandler() {
+			public int onSection(String name, String comment) {
+				count[0]++;
+				return CONTINUE;
+			}
+
+			public int onIndexedSection(String name, String comment) {
+				count[0]++;
+				return CONTINUE;
+			}
+
+			public int onKeyValue(String key, String value, String comment) {
+				count[1]++;
+				return CONTINUE;
+			}
+
+			public int onComment(String comment) {
+				return CONTINUE;
+			}
+
+			public void onEnd() {
+			}
+		});
+		String label = cs.name() + " IniParser.parse(Path)";
+		expect(label, "sections", SECTIONS + 1, count[0]);
+		expect(label, "key/values", SECTIONS * 2 + 2, count[1]);
+		System.out.println(label + " ok");
+	}
+
+	private static void expect(String label, String what, Object want, Object got) {
+		if (want.equals(got) == false)
+			fail(label, what + " is " + got + ", expected " + want);
+	}
+
+	private static void fail(String label, String msg) {
+		System.out.println(label + " FAILED: " + msg);
+		failures++;
+	}
+}